@@ -1,12 +1,14 @@
 package net.citizensnpcs;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -19,9 +21,12 @@ import org.bukkit.plugin.java.JavaPlugin;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import com.mojang.authlib.GameProfile;
 import com.mojang.authlib.properties.Property;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.CitizensPlugin;
@@ -45,6 +50,8 @@ import net.citizensnpcs.api.scripting.EventRegistrar;
 import net.citizensnpcs.api.scripting.ObjectProvider;
 import net.citizensnpcs.api.scripting.ScriptCompiler;
 import net.citizensnpcs.api.trait.TraitFactory;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
 import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.api.util.NBTStorage;
 import net.citizensnpcs.api.util.Storage;
@@ -57,13 +64,29 @@ import net.citizensnpcs.commands.TemplateCommands;
 import net.citizensnpcs.commands.TraitCommands;
 import net.citizensnpcs.commands.WaypointCommands;
 import net.citizensnpcs.editor.Editor;
+import net.citizensnpcs.npc.CitizensNPC;
 import net.citizensnpcs.npc.CitizensNPCRegistry;
 import net.citizensnpcs.npc.CitizensTraitFactory;
 import net.citizensnpcs.npc.NPCSelector;
+import net.citizensnpcs.npc.NPCTickEngine;
+import net.citizensnpcs.npc.NPCTickScheduler;
+import net.citizensnpcs.npc.ai.AsyncAStarPlanner;
+import net.citizensnpcs.npc.ai.ChunkPortalGraph;
+import net.citizensnpcs.npc.ai.ChunkSnapshotCache;
+import net.citizensnpcs.npc.ai.WalkabilityCache;
 import net.citizensnpcs.npc.ai.speech.Chat;
 import net.citizensnpcs.npc.ai.speech.CitizensSpeechFactory;
 import net.citizensnpcs.npc.profile.ProfileFetcher;
 import net.citizensnpcs.npc.skin.Skin;
+import net.citizensnpcs.npc.skin.SkinTextureStore;
+import net.citizensnpcs.storage.AtomicFileWriter;
+import net.citizensnpcs.storage.AtomicFileWriter.FsyncPolicy;
+import net.citizensnpcs.storage.BinaryStorage;
+import net.citizensnpcs.storage.JournalStorage;
+import net.citizensnpcs.storage.ParallelNPCDataStore;
+import net.citizensnpcs.storage.SQLiteStorage;
+import net.citizensnpcs.storage.SaveWriter;
+import net.citizensnpcs.storage.YamlSaveWriter;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.NMS;
 import net.citizensnpcs.util.PlayerUpdateTask;
@@ -76,7 +99,10 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
     private final CommandManager commands = new CommandManager();
     private boolean compatible;
     private Settings config;
+    private AtomicFileWriter fileWriter;
     private CitizensNPCRegistry npcRegistry;
+    private int saveCount;
+    private SaveWriter saveWriter;
     private NPCDataStore saves;
     private NPCSelector selector;
     private final SkullMetaProvider skullMetaProvider = new SkullMetaProvider() {
@@ -95,9 +121,29 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         }
     };
     private CitizensSpeechFactory speechFactory;
+    private Storage storage;
     private final Map<String, NPCRegistry> storedRegistries = Maps.newHashMap();
+    private NPCTickEngine tickEngine;
     private CitizensTraitFactory traitFactory;
 
+    // converts the configured yaml or nbt saves the first time binary storage is used
+    private void convertToBinary(File folder, File to) {
+        File from = new File(folder, Setting.STORAGE_FILE.asString());
+        if (!from.exists())
+            return;
+        Storage source = Files.getFileExtension(from.getName()).equalsIgnoreCase("nbt")
+                ? new NBTStorage(from, "Citizens NPC Storage")
+                : new YamlStorage(from, "Citizens NPC Storage");
+        if (!source.load())
+            return;
+        try {
+            Messaging.logTr(Messages.CONVERTED_SAVES, BinaryStorage.convert(source, to, getFsyncPolicy()),
+                    from.getName(), to.getName());
+        } catch (IOException e) {
+            Messaging.severe("Unable to convert", from.getName(), "to", to.getName() + ":", e.getMessage());
+        }
+    }
+
     @Override
     public NPCRegistry createAnonymousNPCRegistry(NPCDataStore store) {
         CitizensNPCRegistry anon = new CitizensNPCRegistry(store, "anonymous-" + UUID.randomUUID().toString());
@@ -118,13 +164,51 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         if (type.equalsIgnoreCase("nbt")) {
             saves = new NBTStorage(new File(folder + File.separator + Setting.STORAGE_FILE.asString()),
                     "Citizens NPC Storage");
+        } else if (type.equalsIgnoreCase("journal")) {
+            String name = Files.getNameWithoutExtension(Setting.STORAGE_FILE.asString());
+            JournalStorage journal = new JournalStorage(new File(folder, name + ".journal"),
+                    new File(folder, name + ".snapshot"), Setting.JOURNAL_COMPACTION_RATIO.asDouble(),
+                    getFsyncPolicy());
+            saveWriter = journal;
+            saves = journal;
+        } else if (type.equalsIgnoreCase("binary")) {
+            File file = new File(folder, Files.getNameWithoutExtension(Setting.STORAGE_FILE.asString()) + ".bin");
+            if (!file.exists()) {
+                convertToBinary(folder, file);
+            }
+            BinaryStorage binary = new BinaryStorage(file, getFsyncPolicy());
+            saveWriter = binary;
+            saves = binary;
+        } else if (type.equalsIgnoreCase("sqlite")) {
+            SQLiteStorage database = new SQLiteStorage(
+                    new File(folder, Files.getNameWithoutExtension(Setting.STORAGE_FILE.asString()) + ".db"));
+            if (database.connect()) {
+                saveWriter = database;
+                saves = database;
+            } else {
+                database.shutdown();
+                Messaging.logTr(Messages.DATABASE_CONNECTION_FAILED);
+            }
         }
         if (saves == null) {
-            saves = new YamlStorage(new File(folder, Setting.STORAGE_FILE.asString()), "Citizens NPC Storage");
+            File file = new File(folder, Setting.STORAGE_FILE.asString());
+            saves = new YamlStorage(file, "Citizens NPC Storage");
+            if (Setting.INCREMENTAL_SAVES.asBoolean()) {
+                if (fileWriter == null) {
+                    fileWriter = new AtomicFileWriter("Citizens file writer", getFsyncPolicy());
+                }
+                saveWriter = new YamlSaveWriter(file, fileWriter);
+            }
         }
         if (!saves.load())
             return null;
-        return SimpleNPCDataStore.create(saves);
+        storage = saves;
+        int threads = Setting.PARALLEL_LOAD_THREADS.asInt();
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        NPCDataStore store = SimpleNPCDataStore.create(saves);
+        return threads > 1 ? new ParallelNPCDataStore(saves, store, threads) : store;
     }
 
     private void despawnNPCs() {
@@ -181,6 +265,10 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         return selector;
     }
 
+    private FsyncPolicy getFsyncPolicy() {
+        return FsyncPolicy.parse(Setting.STORAGE_FSYNC.asString());
+    }
+
     @Override
     public NPCRegistry getNamedNPCRegistry(String name) {
         if (name.equals(npcRegistry.getName()))
@@ -261,12 +349,19 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         }
 
         NPC npc = selector == null ? null : selector.getSelected(sender);
+        if (npc instanceof CitizensNPC) {
+            ((CitizensNPC) npc).ensureLoaded();
+        }
         // TODO: change the args supplied to a context style system for
         // flexibility (ie. adding more context in the future without
         // changing everything)
 
         Object[] methodArgs = { sender, npc };
-        return commands.executeSafe(command, args, sender, methodArgs);
+        boolean result = commands.executeSafe(command, args, sender, methodArgs);
+        if (npc instanceof CitizensNPC) {
+            ((CitizensNPC) npc).markDirty();
+        }
+        return result;
     }
 
     @Override
@@ -275,10 +370,23 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         Editor.leaveAll();
 
         if (compatible) {
-            saves.storeAll(npcRegistry);
-            saves.saveToDiskImmediate();
+            if (saveWriter != null) {
+                shutdownSaveWriter();
+            } else {
+                saves.storeAll(npcRegistry);
+                saves.saveToDiskImmediate();
+            }
+            SkinTextureStore.saveImmediate();
             despawnNPCs();
             npcRegistry = null;
+            if (tickEngine != null) {
+                tickEngine.cancel();
+                tickEngine = null;
+            }
+            AsyncAStarPlanner.shutdown();
+            ChunkSnapshotCache.clear();
+            ChunkPortalGraph.clear();
+            WalkabilityCache.shutdown();
             NMS.shutdown();
         }
 
@@ -313,6 +421,7 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
             return;
         }
 
+        SkinTextureStore.load(new File(getDataFolder(), "skins.bin"), getFsyncPolicy());
         npcRegistry = new CitizensNPCRegistry(saves, "citizens");
         traitFactory = new CitizensTraitFactory();
         selector = new NPCSelector(this);
@@ -337,11 +446,17 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
             @Override
             public void run() {
                 saves.loadInto(npcRegistry);
+                seedSaveWriter();
                 Messaging.logTr(Messages.NUM_LOADED_NOTIFICATION, Iterables.size(npcRegistry), "?");
                 startMetrics();
                 scheduleSaveTask(Setting.SAVE_TASK_DELAY.asInt());
                 Bukkit.getPluginManager().callEvent(new CitizensEnableEvent());
                 new PlayerUpdateTask().runTaskTimer(Citizens.this, 0, 1);
+                new NPCTickScheduler().runTaskTimer(Citizens.this, 0, 1);
+                if (Setting.PARALLEL_TICK.asBoolean()) {
+                    tickEngine = new NPCTickEngine(Setting.PARALLEL_TICK_THREADS.asInt());
+                    tickEngine.runTaskTimer(Citizens.this, 0, 1);
+                }
             }
         }, 1) == -1) {
             Messaging.severeTr(Messages.LOAD_TASK_NOT_SCHEDULED);
@@ -389,8 +504,12 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         Skin.clearCache();
         getServer().getPluginManager().callEvent(new CitizensPreReloadEvent());
 
+        if (saveWriter != null) {
+            saveWriter.flush();
+        }
         saves.reloadFromSource();
         saves.loadInto(npcRegistry);
+        seedSaveWriter();
 
         getServer().getPluginManager().callEvent(new CitizensReloadEvent());
     }
@@ -400,10 +519,47 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         storedRegistries.remove(name);
     }
 
+    // serialises NPCs changed since the last save on the main thread and hands them to the background writer
+    private void saveIncrementally(boolean full) {
+        long start = System.nanoTime();
+        if (full) {
+            npcRegistry.markAllDirty();
+        }
+        Map<Integer, Map<String, Object>> changed = Maps.newHashMap();
+        TIntList removed = new TIntArrayList();
+        for (int id : npcRegistry.takeDirty()) {
+            NPC npc = npcRegistry.getById(id);
+            if (npc == null) {
+                removed.add(id);
+                continue;
+            }
+            MemoryDataKey key = new MemoryDataKey();
+            npc.save(key);
+            Map<String, Object> values = key.getValuesDeep();
+            if (values.isEmpty()) {
+                removed.add(id);
+            } else {
+                changed.put(id, values);
+            }
+        }
+        Map<String, Object> header = Maps.newLinkedHashMap();
+        for (DataKey key : storage.getKey("").getSubKeys()) {
+            if (key.name().equals("npc"))
+                continue;
+            header.put(key.name(), key.getSubKeys().iterator().hasNext() ? key.getValuesDeep() : key.getRaw(""));
+        }
+        saveWriter.write(changed, removed.toArray(), header, System.nanoTime() - start);
+    }
+
     private void scheduleSaveTask(int delay) {
         Bukkit.getScheduler().scheduleSyncRepeatingTask(this, new Runnable() {
             @Override
             public void run() {
+                SkinTextureStore.save();
+                if (saveWriter != null) {
+                    saveIncrementally(++saveCount % Math.max(1, Setting.INCREMENTAL_SAVE_FULL_INTERVAL.asInt()) == 0);
+                    return;
+                }
                 storeNPCs();
                 saves.saveToDisk();
             }
@@ -415,6 +571,9 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         if (store == null) {
             throw new IllegalArgumentException("must be non-null");
         }
+        if (saveWriter != null) {
+            shutdownSaveWriter();
+        }
         if (saves != null) {
             saves.storeAll(npcRegistry);
             saves.saveToDiskImmediate();
@@ -424,6 +583,13 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         this.npcRegistry = new CitizensNPCRegistry(saves, "citizens-global-" + UUID.randomUUID().toString());
     }
 
+    private void seedSaveWriter() {
+        if (saveWriter == null)
+            return;
+        npcRegistry.takeDirty();
+        saveWriter.seed(storage.getKey("npc"));
+    }
+
     private void setupEconomy() {
         try {
             RegisteredServiceProvider<Economy> provider = Bukkit.getServicesManager().getRegistration(Economy.class);
@@ -458,6 +624,17 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         Translator.setInstance(new File(getDataFolder(), "lang"), locale);
     }
 
+    // writes every NPC and waits for the writers, bounded by the shutdown timeout for the file writer
+    private void shutdownSaveWriter() {
+        saveIncrementally(true);
+        saveWriter.shutdown();
+        saveWriter = null;
+        if (fileWriter != null) {
+            fileWriter.shutdown(Setting.SAVE_SHUTDOWN_TIMEOUT.asInt(), TimeUnit.SECONDS);
+            fileWriter = null;
+        }
+    }
+
     private void startMetrics() {
         try {
             Metrics metrics = new Metrics(this, 2463);
@@ -487,6 +664,10 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
     public void storeNPCs() {
         if (saves == null)
             return;
+        if (saveWriter != null) {
+            saveIncrementally(true);
+            return;
+        }
         saves.storeAll(npcRegistry);
     }
 
@@ -494,6 +675,15 @@ public class Citizens extends JavaPlugin implements CitizensPlugin {
         storeNPCs();
         boolean async = args.hasFlag('a');
         if (async) {
+            SkinTextureStore.save();
+        } else {
+            SkinTextureStore.saveImmediate();
+        }
+        if (saveWriter != null) {
+            if (!async) {
+                saveWriter.flush();
+            }
+        } else if (async) {
             saves.saveToDisk();
         } else {
             saves.saveToDiskImmediate();
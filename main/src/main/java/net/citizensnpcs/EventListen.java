@@ -9,6 +9,9 @@ import java.util.UUID;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
 import org.bukkit.entity.FishHook;
@@ -20,7 +23,21 @@ import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockGrowEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
 import org.bukkit.event.entity.CreatureSpawnEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
 import org.bukkit.event.entity.EntityCombustByBlockEvent;
 import org.bukkit.event.entity.EntityCombustByEntityEvent;
 import org.bukkit.event.entity.EntityCombustEvent;
@@ -28,6 +45,7 @@ import org.bukkit.event.entity.EntityDamageByBlockEvent;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.entity.EntityDamageEvent;
 import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.event.entity.EntityPortalEvent;
 import org.bukkit.event.entity.EntityTargetEvent;
 import org.bukkit.event.entity.PlayerLeashEntityEvent;
@@ -47,6 +65,7 @@ import org.bukkit.event.vehicle.VehicleDestroyEvent;
 import org.bukkit.event.vehicle.VehicleEnterEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.StructureGrowEvent;
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.inventory.meta.SkullMeta;
@@ -55,9 +74,7 @@ import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scoreboard.Team;
 
 import com.google.common.base.Predicates;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.mojang.authlib.GameProfile;
 import com.mojang.authlib.properties.Property;
@@ -89,17 +106,21 @@ import net.citizensnpcs.api.event.PlayerCreateNPCEvent;
 import net.citizensnpcs.api.event.SpawnReason;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCRegistry;
-import net.citizensnpcs.api.trait.trait.Owner;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.api.util.SpigotUtil;
 import net.citizensnpcs.editor.Editor;
+import net.citizensnpcs.npc.ChunkTicketManager;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
+import net.citizensnpcs.npc.RespawnIndex;
+import net.citizensnpcs.npc.RespawnScheduler;
+import net.citizensnpcs.npc.ai.ChunkPortalGraph;
+import net.citizensnpcs.npc.ai.ChunkSnapshotCache;
+import net.citizensnpcs.npc.ai.WalkabilityCache;
 import net.citizensnpcs.npc.skin.SkinUpdateTracker;
 import net.citizensnpcs.trait.ClickRedirectTrait;
 import net.citizensnpcs.trait.CommandTrait;
 import net.citizensnpcs.trait.Controllable;
-import net.citizensnpcs.trait.CurrentLocation;
-import net.citizensnpcs.util.ChunkCoord;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.NMS;
 import net.citizensnpcs.util.Util;
@@ -107,11 +128,13 @@ import net.citizensnpcs.util.Util;
 public class EventListen implements Listener {
     private final Map<String, NPCRegistry> registries;
     private final SkinUpdateTracker skinUpdateTracker;
-    private final ListMultimap<ChunkCoord, NPC> toRespawn = ArrayListMultimap.create();
+    private final RespawnScheduler respawnScheduler;
+    private final RespawnIndex toRespawn = new RespawnIndex();
 
     EventListen(Map<String, NPCRegistry> registries) {
         this.registries = registries;
         this.skinUpdateTracker = new SkinUpdateTracker(registries);
+        this.respawnScheduler = new RespawnScheduler(toRespawn);
     }
 
     private void checkCreationEvent(CommandSenderCreateNPCEvent event) {
@@ -128,9 +151,8 @@ public class EventListen implements Listener {
         if (limit < 0)
             return;
         int owned = 0;
-        for (NPC npc : CitizensAPI.getNPCRegistry()) {
-            if (!event.getNPC().equals(npc) && npc.hasTrait(Owner.class)
-                    && npc.getTrait(Owner.class).isOwnedBy(event.getCreator())) {
+        for (NPC npc : ((CitizensNPCRegistry) CitizensAPI.getNPCRegistry()).getNPCsOwnedBy(event.getCreator())) {
+            if (!event.getNPC().equals(npc)) {
                 owned++;
             }
         }
@@ -147,12 +169,101 @@ public class EventListen implements Listener {
                 Predicates.notNull());
     }
 
+    private void invalidatePathfinding(Block block) {
+        ChunkSnapshotCache.invalidate(block);
+        ChunkPortalGraph.invalidate(block);
+        WalkabilityCache.invalidate(block);
+    }
+
+    private void invalidatePathfinding(Block piston, List<Block> moved, BlockFace direction) {
+        invalidatePathfinding(piston);
+        invalidatePathfinding(piston.getRelative(direction));
+        invalidatePathfinding(piston.getRelative(direction.getOppositeFace()));
+        for (Block block : moved) {
+            invalidatePathfinding(block);
+            invalidatePathfinding(block.getRelative(direction));
+            invalidatePathfinding(block.getRelative(direction.getOppositeFace()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        invalidatePathfinding(event.getBlock());
+        for (Block block : event.blockList()) {
+            invalidatePathfinding(block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        invalidatePathfinding(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        // physics updates fire far more often than blocks actually change type
+        if (event.getChangedType() == event.getBlock().getType())
+            return;
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPistonExtend(BlockPistonExtendEvent event) {
+        invalidatePathfinding(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
-    public void onChunkLoad(ChunkLoadEvent event) {
+    public void onBlockPistonRetract(BlockPistonRetractEvent event) {
+        invalidatePathfinding(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockSpread(BlockSpreadEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkLoad(final ChunkLoadEvent event) {
+        if (Setting.CHUNK_RESPAWN_BUDGET_MS.asDouble() > 0) {
+            respawnScheduler.queue(event.getChunk().getWorld().getUID(), event.getChunk().getX(),
+                    event.getChunk().getZ());
+            return;
+        }
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                respawnAllFromCoord(new ChunkCoord(event.getChunk()), event);
+                respawnAllFromChunk(event.getChunk().getWorld().getUID(), event.getChunk().getX(),
+                        event.getChunk().getZ(), event);
             }
         };
         if (event instanceof Cancellable) {
@@ -164,16 +275,37 @@ public class EventListen implements Listener {
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     public void onChunkUnload(final ChunkUnloadEvent event) {
+        if (event instanceof Cancellable && ChunkTicketManager.isPinned(event.getChunk())) {
+            ((Cancellable) event).setCancelled(true);
+            return;
+        }
+        ChunkSnapshotCache.invalidate(event.getChunk());
         final List<NPC> toDespawn = Lists.newArrayList();
-        for (Entity entity : event.getChunk().getEntities()) {
-            NPC npc = CitizensAPI.getNPCRegistry().getNPC(entity);
-            if (npc == null || !npc.isSpawned())
+        Entity[] entities = null;
+        for (NPCRegistry registry : CitizensAPI.getNPCRegistries()) {
+            if (registry instanceof CitizensNPCRegistry) {
+                for (NPC npc : ((CitizensNPCRegistry) registry).getNPCsInChunk(event.getChunk())) {
+                    if (npc.isSpawned()) {
+                        toDespawn.add(npc);
+                    }
+                }
                 continue;
-            toDespawn.add(npc);
+            }
+            // registries from other plugins have no spatial index
+            if (entities == null) {
+                entities = event.getChunk().getEntities();
+            }
+            for (Entity entity : entities) {
+                NPC npc = registry.getNPC(entity);
+                if (npc != null && npc.getOwningRegistry() == registry && npc.isSpawned()) {
+                    toDespawn.add(npc);
+                }
+            }
         }
         if (toDespawn.isEmpty())
             return;
-        ChunkCoord coord = new ChunkCoord(event.getChunk());
+        UUID world = event.getChunk().getWorld().getUID();
+        int cx = event.getChunk().getX(), cz = event.getChunk().getZ();
         boolean loadChunk = false;
         for (NPC npc : toDespawn) {
             if (!npc.despawn(DespawnReason.CHUNK_UNLOAD)) {
@@ -182,20 +314,19 @@ public class EventListen implements Listener {
                         Messaging.debug("Reloading chunk because", npc.getId(), "couldn't despawn");
                     }
                     loadChunk = true;
-                    toRespawn.put(coord, npc);
+                    toRespawn.add(world, cx, cz, npc);
                     continue;
                 }
                 ((Cancellable) event).setCancelled(true);
                 if (Messaging.isDebugging()) {
-                    Messaging.debug("Cancelled chunk unload at [" + coord.x + "," + coord.z + "]");
+                    Messaging.debug("Cancelled chunk unload at [" + cx + "," + cz + "]");
                 }
-                respawnAllFromCoord(coord, event);
+                respawnAllFromChunk(world, cx, cz, event);
                 return;
             }
-            toRespawn.put(coord, npc);
+            toRespawn.add(world, cx, cz, npc);
             if (Messaging.isDebugging()) {
-                Messaging.debug("Despawned id", npc.getId(),
-                        "due to chunk unload at [" + coord.x + "," + coord.z + "]");
+                Messaging.debug("Despawned id", npc.getId(), "due to chunk unload at [" + cx + "," + cz + "]");
             }
         }
         if (loadChunk) {
@@ -214,6 +345,7 @@ public class EventListen implements Listener {
     public void onCitizensReload(CitizensPreReloadEvent event) {
         skinUpdateTracker.reset();
         toRespawn.clear();
+        respawnScheduler.clear();
     }
 
     @EventHandler(ignoreCancelled = true)
@@ -224,6 +356,11 @@ public class EventListen implements Listener {
     /*
      * Entity events
      */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
     @EventHandler
     public void onEntityCombust(EntityCombustEvent event) {
         NPC npc = CitizensAPI.getNPCRegistry().getNPC(event.getEntity());
@@ -308,6 +445,13 @@ public class EventListen implements Listener {
         }, delay + 2);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for (Block block : event.blockList()) {
+            invalidatePathfinding(block);
+        }
+    }
+
     @EventHandler
     public void onEntityPortal(EntityPortalEvent event) {
         NPC npc = CitizensAPI.getNPCRegistry().getNPC(event.getEntity());
@@ -336,6 +480,11 @@ public class EventListen implements Listener {
         Bukkit.getPluginManager().callEvent(new EntityTargetNPCEvent(event, npc));
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        invalidatePathfinding(event.getBlock());
+    }
+
     @EventHandler
     public void onMetaDeserialise(CitizensDeserialiseMetaEvent event) {
         if (event.getKey().keyExists("skull")) {
@@ -403,11 +552,9 @@ public class EventListen implements Listener {
 
     @EventHandler
     public void onNeedsRespawn(NPCNeedsRespawnEvent event) {
-        ChunkCoord coord = new ChunkCoord(event.getSpawnLocation());
-        if (toRespawn.containsEntry(coord, event.getNPC()))
+        if (!toRespawn.add(event.getSpawnLocation(), event.getNPC()))
             return;
         Messaging.debug("Stored", event.getNPC().getId(), "for respawn from NPCNeedsRespawnEvent");
-        toRespawn.put(coord, event.getNPC());
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
@@ -417,7 +564,7 @@ public class EventListen implements Listener {
             Messaging.debug("Preventing further respawns of " + event.getNPC().getId() + " due to DespawnReason."
                     + event.getReason().name());
             if (event.getNPC().getStoredLocation() != null) {
-                toRespawn.remove(new ChunkCoord(event.getNPC().getStoredLocation()), event.getNPC());
+                toRespawn.remove(event.getNPC().getStoredLocation(), event.getNPC());
             }
         } else {
             Messaging.debug("Removing " + event.getNPC().getId() + " from skin tracker due to DespawnReason."
@@ -588,6 +735,14 @@ public class EventListen implements Listener {
         }.runTaskTimer(CitizensAPI.getPlugin(), 0, 1);
     }
 
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        invalidatePathfinding(event.getLocation().getBlock());
+        for (BlockState state : event.getBlocks()) {
+            invalidatePathfinding(state.getBlock());
+        }
+    }
+
     @EventHandler
     public void onVehicleDamage(VehicleDamageEvent event) {
         NPC npc = CitizensAPI.getNPCRegistry().getNPC(event.getVehicle());
@@ -633,24 +788,31 @@ public class EventListen implements Listener {
 
     @EventHandler(ignoreCancelled = true)
     public void onWorldLoad(WorldLoadEvent event) {
-        for (ChunkCoord chunk : toRespawn.keySet()) {
-            if (!chunk.worldUUID.equals(event.getWorld().getUID()) || !event.getWorld().isChunkLoaded(chunk.x, chunk.z))
+        UUID world = event.getWorld().getUID();
+        if (Messaging.isDebugging() && toRespawn.getPendingCount(world) > 0) {
+            Messaging.debug(toRespawn.getPendingCount(world), "NPCs pending respawn in", event.getWorld().getName());
+        }
+        for (long chunk : toRespawn.getChunks(world)) {
+            int cx = RespawnIndex.getX(chunk), cz = RespawnIndex.getZ(chunk);
+            if (!event.getWorld().isChunkLoaded(cx, cz))
                 continue;
-            respawnAllFromCoord(chunk, event);
+            respawnAllFromChunk(world, cx, cz, event);
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onWorldUnload(WorldUnloadEvent event) {
+        ChunkSnapshotCache.invalidateWorld(event.getWorld().getUID());
+        ChunkPortalGraph.invalidateWorld(event.getWorld().getUID());
+        WalkabilityCache.invalidateWorld(event.getWorld().getUID());
         for (NPC npc : getAllNPCs()) {
             if (npc == null || !npc.isSpawned() || !npc.getEntity().getWorld().equals(event.getWorld()))
                 continue;
             boolean despawned = npc.despawn(DespawnReason.WORLD_UNLOAD);
             if (event.isCancelled() || !despawned) {
-                for (ChunkCoord coord : toRespawn.keySet()) {
-                    if (event.getWorld().getUID().equals(coord.worldUUID)) {
-                        respawnAllFromCoord(coord, event);
-                    }
+                UUID world = event.getWorld().getUID();
+                for (long chunk : toRespawn.getChunks(world)) {
+                    respawnAllFromChunk(world, RespawnIndex.getX(chunk), RespawnIndex.getZ(chunk), event);
                 }
                 event.setCancelled(true);
                 return;
@@ -662,58 +824,11 @@ public class EventListen implements Listener {
         }
     }
 
-    private void respawnAllFromCoord(ChunkCoord coord, Event event) {
-        List<NPC> ids = toRespawn.get(coord);
-        for (int i = 0; i < ids.size(); i++) {
-            NPC npc = ids.get(i);
-            if (npc.getOwningRegistry().getById(npc.getId()) != npc) {
-                ids.remove(i--);
-                if (Messaging.isDebugging()) {
-                    Messaging.debug("Prevented deregistered NPC from respawning", npc.getId());
-                }
-                continue;
-            }
-            if (npc.isSpawned()) {
-                ids.remove(i--);
-                if (Messaging.isDebugging()) {
-                    Messaging.debug("NPC", npc.getId(), "already spawned");
-                }
-                continue;
-            }
-            boolean success = spawn(npc);
-            if (!success) {
-                if (Messaging.isDebugging()) {
-                    Messaging.debug("Couldn't respawn id", npc.getId(), "during", event,
-                            "at [" + coord.x + "," + coord.z + "]");
-                }
-                continue;
-            }
-            try {
-                ids.remove(i--);
-            } catch (IndexOutOfBoundsException ex) {
-                // something caused toRespawn to get modified?
-                Messaging.debug("Some strange chunk loading happened while spawning", npc.getId(),
-                        " - check all your NPCs in chunk [" + coord.x + "," + coord.z + "] are spawned");
-                break;
-            }
-            if (Messaging.isDebugging()) {
-                Messaging.debug("Spawned id", npc.getId(), "during", event, "at [" + coord.x + "," + coord.z + "]");
-            }
-        }
-    }
-
-    private boolean spawn(NPC npc) {
-        Location spawn = npc.getTrait(CurrentLocation.class).getLocation();
-        if (spawn == null) {
-            if (Messaging.isDebugging()) {
-                Messaging.debug("Couldn't find a spawn location for despawned NPC id", npc.getId());
-            }
-            return false;
-        }
-        return npc.spawn(spawn, SpawnReason.CHUNK_LOAD);
+    private void respawnAllFromChunk(UUID world, int cx, int cz, Event event) {
+        respawnScheduler.respawn(world, cx, cz, event);
     }
 
     private void storeForRespawn(NPC npc) {
-        toRespawn.put(new ChunkCoord(npc.getEntity().getLocation()), npc);
+        toRespawn.add(npc.getEntity().getLocation(), npc);
     }
 }
@@ -59,6 +59,10 @@ public class Settings {
     public enum Setting {
         ALWAYS_USE_NAME_HOLOGRAM("npc.always-use-name-holograms", false),
         ASTAR_ITERATIONS_PER_TICK("npc.pathfinding.new-finder.iterations-per-tick", 5000),
+        ASTAR_TARGET_REPAIR_DISTANCE("npc.pathfinding.new-finder.target-repair-distance", 8D),
+        ASYNC_ASTAR_ITERATIONS_PER_TICK("npc.pathfinding.new-finder.async.iterations-per-tick", 20000),
+        ASYNC_PATHFINDING("npc.pathfinding.new-finder.async.enabled", false),
+        ASYNC_PATHFINDING_THREADS("npc.pathfinding.new-finder.async.threads", 2),
         AUTH_SERVER_URL("general.authlib.profile-url", "https://sessionserver.mojang.com/session/minecraft/profile/"),
         CHAT_BYSTANDERS_HEAR_TARGETED_CHAT("npc.chat.options.bystanders-hear-targeted-chat", true),
         CHAT_FORMAT("npc.chat.format.no-targets", "[<npc>]: <text>"),
@@ -71,6 +75,8 @@ public class Settings {
                 "<target>|, <target>| & <target>| & others"),
         CHAT_RANGE("npc.chat.options.range", 5),
         CHECK_MINECRAFT_VERSION("advanced.check-minecraft-version", true),
+        // 0 respawns NPCs as soon as their chunk loads
+        CHUNK_RESPAWN_BUDGET_MS("npc.chunks.respawn-budget-ms", 0D),
         CONTROLLABLE_GROUND_DIRECTION_MODIFIER("npc.controllable.ground-direction-modifier", 1.0D),
         DEBUG_FILE("general.debug-file", ""),
         DEBUG_MODE("general.debug-mode", false),
@@ -104,8 +110,23 @@ public class Settings {
         DISABLE_MC_NAVIGATION_FALLBACK("npc.pathfinding.disable-mc-fallback-navigation", true),
         DISABLE_TABLIST("npc.tablist.disable", true),
         ERROR_COLOUR("general.color-scheme.message-error", "<c>"),
+        FLOW_FIELD_MAX_CELLS("npc.pathfinding.flow-field.max-cells", 262144),
+        HIERARCHICAL_PATHFINDING("npc.pathfinding.hierarchical.enabled", false),
+        HIERARCHICAL_PATHFINDING_DISTANCE("npc.pathfinding.hierarchical.minimum-distance", 64D),
+        HIERARCHICAL_PATHFINDING_ITERATIONS_PER_TICK("npc.pathfinding.hierarchical.iterations-per-tick", 50),
+        HIERARCHICAL_PATHFINDING_MAX_ITERATIONS("npc.pathfinding.hierarchical.maximum-iterations", 5000),
+        HIERARCHICAL_PATHFINDING_SECTIONS_PER_TICK("npc.pathfinding.hierarchical.sections-per-tick", 4),
         HIGHLIGHT_COLOUR("general.color-scheme.message-highlight", "<e>"),
+        INCREMENTAL_SAVE_FULL_INTERVAL("storage.incremental-saves.full-save-interval", 24),
+        // only NPCs marked dirty by Citizens are written, so changes plugins make to trait fields or metadata through the
+        // API are only saved by the periodic full save
+        INCREMENTAL_SAVES("storage.incremental-saves.enabled", false),
+        JOURNAL_COMPACTION_RATIO("storage.journal.compaction-ratio", 4D),
         KEEP_CHUNKS_LOADED("npc.chunks.always-keep-loaded", false),
+        KEEP_CHUNKS_LOADED_RADIUS("npc.chunks.keep-loaded-radius", 1),
+        // NPCs in unloaded chunks only load their location and owner until they spawn, so lookups by trait or type
+        // miss them until then unless CitizensNPC#ensureLoaded() is called
+        LAZY_LOADING("npc.chunks.lazy-loading", false),
         LOCALE("general.translation.locale", ""),
         MAX_CONTROLLABLE_GROUND_SPEED("npc.controllable.max-ground-speed", 0.5),
         MAX_NPC_LIMIT_CHECKS("npc.limits.max-permission-checks", 100),
@@ -119,17 +140,35 @@ public class Settings {
         NEW_PATHFINDER_OPENS_DOORS("npc.pathfinding.new-finder.open-doors", false),
         NPC_ATTACK_DISTANCE("npc.pathfinding.attack-range", 1.75 * 1.75),
         NPC_COST("economy.npc.cost", 100D),
+        NPC_SKIN_CACHE_TTL_HOURS("npc.skins.cache-ttl-hours", 24),
+        NPC_SKIN_FETCH_REQUESTS_PER_MINUTE("npc.skins.fetch.requests-per-minute", 60),
+        NPC_SKIN_FETCH_THREADS("npc.skins.fetch.threads", 2),
         NPC_SKIN_RETRY_DELAY("npc.skins.retry-delay", 120),
         NPC_SKIN_ROTATION_UPDATE_DEGREES("npc.skins.rotation-update-degrees", 90f),
         NPC_SKIN_USE_LATEST("npc.skins.use-latest-by-default", false),
         NPC_SKIN_VIEW_DISTANCE("npc.skins.view-distance", 100D),
+        NPC_TICK_BUDGET_MS("npc.tick.budget-ms", -1D),
+        NPC_TICK_FAR_INTERVAL("npc.tick.level-of-detail.far-interval", 20),
+        NPC_TICK_LEVEL_OF_DETAIL("npc.tick.level-of-detail.enabled", false),
+        NPC_TICK_LINE_OF_SIGHT("npc.tick.level-of-detail.line-of-sight", true),
+        NPC_TICK_MID_INTERVAL("npc.tick.level-of-detail.mid-interval", 4),
+        NPC_TICK_NEAR_DISTANCE("npc.tick.level-of-detail.near-distance", 24D),
+        NPC_TICK_VIEW_DISTANCE("npc.tick.level-of-detail.view-distance", 64D),
         PACKET_UPDATE_DELAY("npc.packets.update-delay", 30),
+        PARALLEL_LOAD_THREADS("storage.parallel-load.threads", 1),
+        PARALLEL_TICK("npc.tick.parallel.enabled", false),
+        PARALLEL_TICK_THREADS("npc.tick.parallel.threads", 2),
+        PATHFINDING_CHUNK_CACHE_MEMORY("npc.pathfinding.chunk-cache.max-memory-mb", 32),
+        PATHFINDING_WALKABILITY_CACHE("npc.pathfinding.walkability-cache.enabled", false),
+        PATHFINDING_WALKABILITY_CACHE_VERIFY_INTERVAL("npc.pathfinding.walkability-cache.verify-interval-seconds", 60),
         REMOVE_PLAYERS_FROM_PLAYER_LIST("npc.player.remove-from-list", true),
+        SAVE_SHUTDOWN_TIMEOUT("storage.shutdown-timeout-seconds", 30),
         SAVE_TASK_DELAY("storage.save-task.delay", 20 * 60 * 60),
         SELECTION_ITEM("npc.selection.item", "stick"),
         SELECTION_MESSAGE("npc.selection.message", "<b>You selected <a><npc><b>!"),
         SERVER_OWNS_NPCS("npc.server-ownership", false),
         STORAGE_FILE("storage.file", "saves.yml"),
+        STORAGE_FSYNC("storage.fsync", "always"),
         STORAGE_TYPE("storage.type", "yaml"),
         SUBPLUGIN_FOLDER("subplugins.folder", "plugins"),
         TALK_CLOSE_MAXIMUM_COOLDOWN("npc.text.max-talk-cooldown", 5),
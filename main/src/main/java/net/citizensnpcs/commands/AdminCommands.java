@@ -1,5 +1,9 @@
 package net.citizensnpcs.commands;
 
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 
 import net.citizensnpcs.Citizens;
@@ -10,6 +14,8 @@ import net.citizensnpcs.api.command.exception.CommandException;
 import net.citizensnpcs.api.exception.NPCLoadException;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.npc.ChunkTicketManager;
+import net.citizensnpcs.npc.ai.ChunkSnapshotCache;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.StringHelper;
 
@@ -21,6 +27,24 @@ public class AdminCommands {
         this.plugin = plugin;
     }
 
+    @Command(
+            aliases = { "citizens" },
+            usage = "chunks",
+            desc = "Show how many chunks Citizens is keeping loaded",
+            modifiers = { "chunks" },
+            min = 1,
+            max = 1,
+            permission = "citizens.admin")
+    public void chunks(CommandContext args, CommandSender sender, NPC npc) {
+        Messaging.sendTr(sender, Messages.CHUNK_TICKET_STATS, ChunkTicketManager.getPinnedChunks(),
+                ChunkTicketManager.getTickets());
+        for (UUID uuid : ChunkTicketManager.getPinnedWorlds()) {
+            World world = Bukkit.getWorld(uuid);
+            Messaging.sendTr(sender, Messages.CHUNK_TICKET_WORLD_STATS, world == null ? uuid : world.getName(),
+                    ChunkTicketManager.getPinnedChunks(uuid));
+        }
+    }
+
     @Command(aliases = { "citizens" }, desc = "Show basic plugin information", max = 0, permission = "citizens.admin")
     public void citizens(CommandContext args, CommandSender sender, NPC npc) throws CommandException {
         Messaging.send(sender, StringHelper.wrapHeader("<e>Citizens v" + plugin.getDescription().getVersion()));
@@ -30,6 +54,21 @@ public class AdminCommands {
         Messaging.send(sender, "     <7>-- <c>Report an issue: http://github.com/CitizensDev/Citizens2/issues");
     }
 
+    @Command(
+            aliases = { "citizens" },
+            usage = "pathcache",
+            desc = "Show pathfinding chunk cache statistics",
+            modifiers = { "pathcache" },
+            min = 1,
+            max = 1,
+            permission = "citizens.admin")
+    public void pathcache(CommandContext args, CommandSender sender, NPC npc) {
+        Messaging.sendTr(sender, Messages.PATHFINDING_CACHE_STATS, ChunkSnapshotCache.getSize(),
+                ChunkSnapshotCache.getMemoryUsage() / 1024, ChunkSnapshotCache.getHits(),
+                ChunkSnapshotCache.getMisses(), ChunkSnapshotCache.getEvictions(),
+                ChunkSnapshotCache.getInvalidations());
+    }
+
     @Command(
             aliases = { "citizens" },
             usage = "reload",
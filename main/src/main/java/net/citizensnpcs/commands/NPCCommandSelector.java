@@ -24,6 +24,7 @@ import net.citizensnpcs.api.command.exception.WrappedCommandException;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCRegistry;
 import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.Util;
 
@@ -109,7 +110,10 @@ public class NPCCommandSelector extends NumericPrompt {
             if (args.hasValueFlag("r")) {
                 range = Math.abs(args.getFlagDouble("r"));
             }
-            for (NPC test : npcRegistry) {
+            Iterable<NPC> candidates = npcRegistry instanceof CitizensNPCRegistry
+                    ? ((CitizensNPCRegistry) npcRegistry).getByName(name)
+                    : npcRegistry;
+            for (NPC test : candidates) {
                 if (test.getName().equalsIgnoreCase(name)) {
                     if (range > 0 && test.isSpawned() && !Util.locationWithinRange(args.getSenderLocation(),
                             test.getEntity().getLocation(), range))
@@ -9,10 +9,10 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.bukkit.Bukkit;
@@ -45,6 +45,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.mysql.jdbc.StringUtils;
 
 import net.citizensnpcs.Citizens;
@@ -78,6 +79,7 @@ import net.citizensnpcs.api.util.Colorizer;
 import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.api.util.Paginator;
 import net.citizensnpcs.api.util.SpigotUtil;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
 import net.citizensnpcs.npc.EntityControllers;
 import net.citizensnpcs.npc.NPCSelector;
 import net.citizensnpcs.npc.Template;
@@ -474,6 +476,7 @@ public class NPCCommands {
             npc.getTrait(Owner.class).setOwner(sender);
         }
         npc.getTrait(MobType.class).setType(type);
+        CitizensNPCRegistry.reindex(npc);
 
         Location spawnLoc = null;
         if (sender instanceof Player) {
@@ -905,7 +908,7 @@ public class NPCCommands {
 
     @Command(
             aliases = { "npc" },
-            usage = "list (page) ((-a) --owner (owner) --type (type) --char (char) --registry (name))",
+            usage = "list (page) ((-a) --owner (owner) --type (type) --ids (min-max) --char (char) --registry (name))",
             desc = "List NPCs",
             flags = "a",
             modifiers = { "list" },
@@ -918,24 +921,53 @@ public class NPCCommands {
                 : CitizensAPI.getNPCRegistry();
         if (source == null)
             throw new CommandException();
-        List<NPC> npcs = new ArrayList<NPC>();
+        // registries from other plugins have no indexes, so fall back to scanning them
+        CitizensNPCRegistry registry = source instanceof CitizensNPCRegistry ? (CitizensNPCRegistry) source : null;
+        List<NPC> npcs;
 
         if (args.hasFlag('a')) {
-            for (NPC add : source.sorted()) {
-                npcs.add(add);
+            npcs = registry != null ? registry.sorted() : Lists.newArrayList(source.sorted());
+        } else if (args.hasValueFlag("ids")) {
+            String[] parts = args.getFlag("ids").split("-", 2);
+            int min, max;
+            try {
+                min = Integer.parseInt(parts[0].trim());
+                max = parts.length == 1 ? Integer.MAX_VALUE : Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new CommandUsageException();
+            }
+            if (registry != null) {
+                npcs = registry.getByIdRange(min, max);
+            } else {
+                npcs = new ArrayList<NPC>();
+                for (NPC add : source.sorted()) {
+                    if (add.getId() >= min && add.getId() <= max) {
+                        npcs.add(add);
+                    }
+                }
             }
         } else if (args.getValueFlags().size() == 0 && sender instanceof Player) {
-            for (NPC add : source.sorted()) {
-                if (!npcs.contains(add) && add.getTrait(Owner.class).isOwnedBy(sender)) {
-                    npcs.add(add);
+            if (registry != null) {
+                npcs = registry.getNPCsOwnedBy(sender);
+            } else {
+                npcs = new ArrayList<NPC>();
+                for (NPC add : source.sorted()) {
+                    if (add.getTrait(Owner.class).isOwnedBy(sender)) {
+                        npcs.add(add);
+                    }
                 }
             }
         } else {
+            Set<NPC> found = Sets.newHashSet();
             if (args.hasValueFlag("owner")) {
                 String name = args.getFlag("owner");
-                for (NPC add : source.sorted()) {
-                    if (!npcs.contains(add) && add.getTrait(Owner.class).isOwnedBy(name)) {
-                        npcs.add(add);
+                if (registry != null) {
+                    found.addAll(registry.getByOwner(name));
+                } else {
+                    for (NPC add : source) {
+                        if (add.getTrait(Owner.class).isOwnedBy(name)) {
+                            found.add(add);
+                        }
                     }
                 }
             }
@@ -946,11 +978,23 @@ public class NPCCommands {
                 if (type == null)
                     throw new CommandException(Messages.COMMAND_INVALID_MOBTYPE, type);
 
-                for (NPC add : source) {
-                    if (!npcs.contains(add) && add.getTrait(MobType.class).getType() == type)
-                        npcs.add(add);
+                if (registry != null) {
+                    found.addAll(registry.getByType(type));
+                } else {
+                    for (NPC add : source) {
+                        if (add.getTrait(MobType.class).getType() == type) {
+                            found.add(add);
+                        }
+                    }
                 }
             }
+            npcs = Lists.newArrayList(found);
+            Collections.sort(npcs, new Comparator<NPC>() {
+                @Override
+                public int compare(NPC o1, NPC o2) {
+                    return o1.getId() - o2.getId();
+                }
+            });
         }
 
         Paginator paginator = new Paginator().header("NPCs").console(sender instanceof ConsoleCommandSender);
@@ -1287,6 +1331,7 @@ public class NPCCommands {
         if (ownerTrait.isOwnedBy(name))
             throw new CommandException(Messages.ALREADY_OWNER, name, npc.getName());
         ownerTrait.setOwner(name);
+        CitizensNPCRegistry.reindex(npc);
         boolean serverOwner = name.equalsIgnoreCase(Owner.SERVER);
         Messaging.sendTr(sender, serverOwner ? Messages.OWNER_SET_SERVER : Messages.OWNER_SET, npc.getName(), name);
     }
@@ -1530,11 +1575,8 @@ public class NPCCommands {
     public void remove(final CommandContext args, final CommandSender sender, NPC npc) throws CommandException {
         if (args.hasValueFlag("owner")) {
             String owner = args.getFlag("owner");
-            Collection<NPC> npcs = Lists.newArrayList(CitizensAPI.getNPCRegistry());
-            for (NPC o : npcs) {
-                if (o.getTrait(Owner.class).isOwnedBy(owner)) {
-                    o.destroy(sender);
-                }
+            for (NPC o : ((CitizensNPCRegistry) CitizensAPI.getNPCRegistry()).getByOwner(owner)) {
+                o.destroy(sender);
             }
             Messaging.sendTr(sender, Messages.NPCS_REMOVED);
             return;
@@ -1693,22 +1735,10 @@ public class NPCCommands {
             if (!(sender instanceof Player))
                 throw new ServerCommandException();
             double range = Math.abs(args.getFlagDouble("r", 10));
-            Entity player = (Player) sender;
-            final Location location = args.getSenderLocation();
-            List<Entity> search = player.getNearbyEntities(range, range, range);
-            Collections.sort(search, new Comparator<Entity>() {
-                @Override
-                public int compare(Entity o1, Entity o2) {
-                    double d = o1.getLocation().distanceSquared(location) - o2.getLocation().distanceSquared(location);
-                    return d > 0 ? 1 : d < 0 ? -1 : 0;
-                }
-            });
-            for (Entity possibleNPC : search) {
-                NPC test = CitizensAPI.getNPCRegistry().getNPC(possibleNPC);
-                if (test == null)
-                    continue;
-                callback.run(test);
-                break;
+            List<NPC> search = ((CitizensNPCRegistry) CitizensAPI.getNPCRegistry())
+                    .getNearestNPCs(args.getSenderLocation(), 1, range);
+            if (!search.isEmpty()) {
+                callback.run(search.get(0));
             }
         } else {
             NPCCommandSelector.startWithCallback(callback, CitizensAPI.getNPCRegistry(), sender, args,
@@ -0,0 +1,131 @@
+package net.citizensnpcs.npc;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+
+import com.google.common.collect.Maps;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Reference counts the chunks Citizens keeps loaded. Each NPC holds at most one {@link Ticket}, covering the square
+ * of chunks within a radius of the chunk it is in; the ticket only moves when the NPC crosses a chunk boundary or its
+ * radius changes. A chunk stays pinned while any ticket covers it. All methods must be called from the main thread.
+ */
+public class ChunkTicketManager {
+    private int tickets;
+    private final Map<UUID, TLongIntHashMap> worlds = Maps.newHashMap();
+
+    private ChunkTicketManager() {
+    }
+
+    private void adjust(Ticket ticket, int delta) {
+        TLongIntHashMap counts = worlds.get(ticket.world);
+        if (counts == null) {
+            worlds.put(ticket.world, counts = new TLongIntHashMap());
+        }
+        for (int cx = ticket.cx - ticket.radius; cx <= ticket.cx + ticket.radius; cx++) {
+            for (int cz = ticket.cz - ticket.radius; cz <= ticket.cz + ticket.radius; cz++) {
+                long key = getKey(cx, cz);
+                if (counts.adjustOrPutValue(key, delta, delta) <= 0) {
+                    counts.remove(key);
+                }
+            }
+        }
+        if (counts.isEmpty()) {
+            worlds.remove(ticket.world);
+        }
+        tickets += delta;
+    }
+
+    /**
+     * A chunk ticket held by a single NPC.
+     */
+    public static class Ticket {
+        private int cx;
+        private int cz;
+        private boolean held;
+        private int radius;
+        private UUID world;
+
+        public boolean isHeld() {
+            return held;
+        }
+    }
+
+    private static long getKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the number of chunks pinned by at least one ticket.
+     */
+    public static int getPinnedChunks() {
+        int pinned = 0;
+        for (TLongIntHashMap counts : MANAGER.worlds.values()) {
+            pinned += counts.size();
+        }
+        return pinned;
+    }
+
+    /**
+     * Returns the number of chunks pinned in the given world.
+     */
+    public static int getPinnedChunks(UUID world) {
+        TLongIntHashMap counts = MANAGER.worlds.get(world);
+        return counts == null ? 0 : counts.size();
+    }
+
+    /**
+     * Returns the ids of the worlds with pinned chunks.
+     */
+    public static Iterable<UUID> getPinnedWorlds() {
+        return MANAGER.worlds.keySet();
+    }
+
+    /**
+     * Returns the number of tickets currently held.
+     */
+    public static int getTickets() {
+        return MANAGER.tickets;
+    }
+
+    public static boolean isPinned(Chunk chunk) {
+        TLongIntHashMap counts = MANAGER.worlds.get(chunk.getWorld().getUID());
+        return counts != null && counts.containsKey(getKey(chunk.getX(), chunk.getZ()));
+    }
+
+    /**
+     * Releases the ticket if it is held.
+     */
+    public static void release(Ticket ticket) {
+        if (!ticket.held)
+            return;
+        MANAGER.adjust(ticket, -1);
+        ticket.held = false;
+    }
+
+    /**
+     * Moves the ticket to the chunks around the given location, acquiring it if it isn't held. Does nothing if the
+     * location is in the same chunk as before and the radius hasn't changed.
+     */
+    public static void update(Ticket ticket, Location location, int radius) {
+        UUID world = location.getWorld().getUID();
+        int cx = location.getBlockX() >> 4, cz = location.getBlockZ() >> 4;
+        radius = Math.max(0, radius);
+        if (ticket.held && ticket.cx == cx && ticket.cz == cz && ticket.radius == radius && ticket.world.equals(world))
+            return;
+        release(ticket);
+        ticket.world = world;
+        ticket.cx = cx;
+        ticket.cz = cz;
+        ticket.radius = radius;
+        MANAGER.adjust(ticket, 1);
+        ticket.held = true;
+    }
+
+    private static final ChunkTicketManager MANAGER = new ChunkTicketManager();
+}
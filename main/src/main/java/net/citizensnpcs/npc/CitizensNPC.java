@@ -2,10 +2,13 @@ package net.citizensnpcs.npc;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
@@ -18,8 +21,6 @@ import org.bukkit.scoreboard.Team;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
 
 import net.citizensnpcs.NPCNeedsRespawnEvent;
 import net.citizensnpcs.Settings.Setting;
@@ -34,27 +35,35 @@ import net.citizensnpcs.api.npc.BlockBreaker;
 import net.citizensnpcs.api.npc.BlockBreaker.BlockBreakerConfiguration;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCRegistry;
+import net.citizensnpcs.api.persistence.PersistenceLoader;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.trait.trait.MobType;
+import net.citizensnpcs.api.trait.trait.Owner;
 import net.citizensnpcs.api.trait.trait.Spawned;
 import net.citizensnpcs.api.util.DataKey;
 import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.npc.ai.CitizensNavigator;
+import net.citizensnpcs.npc.skin.SkinTextureStore;
 import net.citizensnpcs.npc.skin.SkinnableEntity;
+import net.citizensnpcs.storage.DataKeyCodec;
 import net.citizensnpcs.trait.CurrentLocation;
 import net.citizensnpcs.trait.Gravity;
 import net.citizensnpcs.trait.HologramTrait;
+import net.citizensnpcs.trait.ParallelTrait;
 import net.citizensnpcs.trait.ScoreboardTrait;
-import net.citizensnpcs.util.ChunkCoord;
 import net.citizensnpcs.util.Messages;
 import net.citizensnpcs.util.NMS;
 import net.citizensnpcs.util.PlayerUpdateTask;
 import net.citizensnpcs.util.Util;
 
 public class CitizensNPC extends AbstractNPC {
-    private ChunkCoord cachedCoord;
+    private final ChunkTicketManager.Ticket chunkTicket = new ChunkTicketManager.Ticket();
     private EntityController entityController;
+    private long lastBlock;
     private final CitizensNavigator navigator = new CitizensNavigator(this);
+    private List<ParallelTrait> parallelTraits;
+    private DataKey pendingLoad;
+    private final NPCTickScheduler.TickState tickState = new NPCTickScheduler.TickState();
     private int updateCounter = 0;
 
     public CitizensNPC(UUID uuid, int id, String name, EntityController entityController, NPCRegistry registry) {
@@ -63,6 +72,39 @@ public class CitizensNPC extends AbstractNPC {
         this.entityController = entityController;
     }
 
+    @Override
+    public void addTrait(Trait trait) {
+        super.addTrait(trait);
+        onChanged();
+    }
+
+    // reads only the stored location and owner; the rest of the NPC is loaded when its chunk loads and it spawns
+    private boolean deferLoad(DataKey root) {
+        if (root.keyExists("traits.spawned") && !root.getBoolean("traits.spawned"))
+            return false;
+        World world = root.keyExists("traits.location.world")
+                ? Bukkit.getWorld(root.getString("traits.location.world"))
+                : null;
+        if (world == null)
+            return false;
+        Location at = new Location(world, root.getDouble("traits.location.x"), root.getDouble("traits.location.y"),
+                root.getDouble("traits.location.z"), (float) root.getDouble("traits.location.yaw"),
+                (float) root.getDouble("traits.location.pitch"));
+        if (world.isChunkLoaded(at.getBlockX() >> 4, at.getBlockZ() >> 4))
+            return false;
+        pendingLoad = root;
+        getTrait(CurrentLocation.class).setLocation(at);
+        if (root.keyExists("traits.owner")) {
+            PersistenceLoader.load(getTrait(Owner.class), root.getRelative("traits.owner"));
+        }
+        if (root.keyExists("traits.skintrait.textureId")) {
+            SkinTextureStore.retain(root.getString("traits.skintrait.textureId"));
+        }
+        CitizensNPCRegistry.reindex(this);
+        Bukkit.getPluginManager().callEvent(new NPCNeedsRespawnEvent(this, at));
+        return true;
+    }
+
     @Override
     public boolean despawn(DespawnReason reason) {
         if (!isSpawned() && reason != DespawnReason.DEATH) {
@@ -93,6 +135,11 @@ public class CitizensNPC extends AbstractNPC {
             PlayerUpdateTask.deregisterPlayer(getEntity());
         }
         navigator.onDespawn();
+        if (getOwningRegistry() instanceof CitizensNPCRegistry) {
+            ((CitizensNPCRegistry) getOwningRegistry()).removeFromSpatialIndex(this);
+        }
+        ChunkTicketManager.release(chunkTicket);
+        markDirty();
         if (reason == DespawnReason.RELOAD) {
             unloadEvents();
         }
@@ -111,7 +158,22 @@ public class CitizensNPC extends AbstractNPC {
     @Override
     public void destroy() {
         super.destroy();
-        resetCachedCoord();
+        ChunkTicketManager.release(chunkTicket);
+    }
+
+    /**
+     * Finishes loading the NPC if its load was deferred until its chunk loads. Call this before reading or changing
+     * traits of an NPC that may not have spawned yet.
+     */
+    public void ensureLoaded() {
+        if (pendingLoad == null)
+            return;
+        DataKey root = pendingLoad;
+        pendingLoad = null;
+        super.load(root);
+        parallelTraits = null;
+        navigator.load(root.getRelative("navigator"));
+        CitizensNPCRegistry.reindex(this);
     }
 
     @Override
@@ -136,11 +198,31 @@ public class CitizensNPC extends AbstractNPC {
         return navigator;
     }
 
+    /**
+     * @return the NPC's parallel traits, cached until its traits change
+     */
+    List<ParallelTrait> getParallelTraits() {
+        if (parallelTraits == null) {
+            List<ParallelTrait> found = new ArrayList<ParallelTrait>(1);
+            for (Trait trait : getTraits()) {
+                if (trait instanceof ParallelTrait) {
+                    found.add((ParallelTrait) trait);
+                }
+            }
+            parallelTraits = found.isEmpty() ? Collections.<ParallelTrait> emptyList() : found;
+        }
+        return parallelTraits;
+    }
+
     @Override
     public Location getStoredLocation() {
         return isSpawned() ? getEntity().getLocation() : getTrait(CurrentLocation.class).getLocation();
     }
 
+    NPCTickScheduler.TickState getTickState() {
+        return tickState;
+    }
+
     @Override
     public boolean isFlyable() {
         updateFlyableState();
@@ -154,7 +236,11 @@ public class CitizensNPC extends AbstractNPC {
 
     @Override
     public void load(final DataKey root) {
+        if (Setting.LAZY_LOADING.asBoolean() && deferLoad(root))
+            return;
+        pendingLoad = null;
         super.load(root);
+        parallelTraits = null;
         // Spawn the NPC
         CurrentLocation spawnLocation = getTrait(CurrentLocation.class);
         if (getTrait(Spawned.class).shouldSpawn() && spawnLocation.getLocation() != null) {
@@ -166,6 +252,29 @@ public class CitizensNPC extends AbstractNPC {
         }
 
         navigator.load(root.getRelative("navigator"));
+        CitizensNPCRegistry.reindex(this);
+    }
+
+    /**
+     * Marks the NPC as changed so that the next incremental save writes it. Changes made through Citizens are tracked
+     * automatically; call this after changing persisted trait fields or metadata directly.
+     */
+    public void markDirty() {
+        if (getOwningRegistry() instanceof CitizensNPCRegistry) {
+            ((CitizensNPCRegistry) getOwningRegistry()).markDirty(this);
+        }
+    }
+
+    private void onChanged() {
+        parallelTraits = null;
+        CitizensNPCRegistry.reindex(this);
+        markDirty();
+    }
+
+    @Override
+    public void removeTrait(Class<? extends Trait> traitClass) {
+        super.removeTrait(traitClass);
+        onChanged();
     }
 
     @Override
@@ -174,19 +283,14 @@ public class CitizensNPC extends AbstractNPC {
                 || (getEntityType() != EntityType.ARMOR_STAND && Setting.ALWAYS_USE_NAME_HOLOGRAM.asBoolean());
     }
 
-    private void resetCachedCoord() {
-        if (cachedCoord == null)
-            return;
-        CHUNK_LOADERS.remove(NPC_METADATA_MARKER, CHUNK_LOADERS);
-        CHUNK_LOADERS.remove(cachedCoord, this);
-        if (CHUNK_LOADERS.get(cachedCoord).size() == 0) {
-            cachedCoord.setForceLoaded(false);
-        }
-        cachedCoord = null;
-    }
-
     @Override
     public void save(DataKey root) {
+        // saves visit NPCs that aren't spawned, so owner changes made through the API reach the index eventually
+        CitizensNPCRegistry.reindexIfOwnerChanged(this);
+        if (pendingLoad != null) {
+            DataKeyCodec.copyInto(pendingLoad.getValuesDeep(), root);
+            return;
+        }
         super.save(root);
         if (!data().get(NPC.SHOULD_SAVE_METADATA, true))
             return;
@@ -199,6 +303,7 @@ public class CitizensNPC extends AbstractNPC {
         if (controller == null)
             throw new IllegalArgumentException("Unsupported entity type " + type);
         setEntityController(controller);
+        onChanged();
     }
 
     public void setEntityController(EntityController newController) {
@@ -221,6 +326,12 @@ public class CitizensNPC extends AbstractNPC {
         updateFlyableState();
     }
 
+    @Override
+    public void setName(String name) {
+        super.setName(name);
+        onChanged();
+    }
+
     @Override
     public boolean spawn(Location at) {
         return spawn(at, SpawnReason.PLUGIN);
@@ -238,6 +349,7 @@ public class CitizensNPC extends AbstractNPC {
             Messaging.debug("Tried to spawn", getId(), "but the world was null.");
             return false;
         }
+        ensureLoaded();
         data().get(NPC.DEFAULT_PROTECTED_METADATA, true);
         at = at.clone();
 
@@ -288,6 +400,8 @@ public class CitizensNPC extends AbstractNPC {
         }
 
         navigator.onSpawn();
+        trackLocation();
+        markDirty();
 
         // Modify NPC using traits after the entity has been created
         Collection<Trait> onSpawn = traits.values();
@@ -332,6 +446,7 @@ public class CitizensNPC extends AbstractNPC {
     @Override
     public void teleport(Location location, TeleportCause reason) {
         super.teleport(location, reason);
+        markDirty();
         if (!isSpawned())
             return;
         Location npcLoc = getEntity().getLocation(CACHE_LOCATION);
@@ -340,30 +455,53 @@ public class CitizensNPC extends AbstractNPC {
         }
     }
 
+    private void trackLocation() {
+        Location location = getEntity().getLocation(CACHE_LOCATION);
+        if (Setting.KEEP_CHUNKS_LOADED.asBoolean()) {
+            ChunkTicketManager.update(chunkTicket, location,
+                    navigator.isNavigating() ? Setting.KEEP_CHUNKS_LOADED_RADIUS.asInt() : 0);
+        } else {
+            ChunkTicketManager.release(chunkTicket);
+        }
+        if (!(getOwningRegistry() instanceof CitizensNPCRegistry))
+            return;
+        CitizensNPCRegistry registry = (CitizensNPCRegistry) getOwningRegistry();
+        registry.updateSpatialIndex(this, location);
+        long block = ((long) location.getBlockX() & 0x3FFFFFF) << 38 | ((long) location.getBlockZ() & 0x3FFFFFF) << 12
+                | (location.getBlockY() & 0xFFF);
+        if (block != lastBlock) {
+            lastBlock = block;
+            registry.markDirty(this);
+        }
+    }
+
     @Override
     public void update() {
+        // only traits, goals and navigation follow the scheduler; swimming, nameplates and knockback run every tick
+        boolean due = true;
+        if (isSpawned()) {
+            trackLocation();
+            due = NPCTickScheduler.shouldUpdate(this, tickState);
+        }
+        long start = System.nanoTime();
         try {
-            super.update();
+            if (due) {
+                super.update();
+                CitizensNPCRegistry.reindexIfOwnerChanged(this);
+            }
             if (!isSpawned()) {
-                resetCachedCoord();
+                ChunkTicketManager.release(chunkTicket);
                 return;
             }
             if (data().get(NPC.SWIMMING_METADATA, true)) {
                 NMS.trySwim(getEntity());
             }
-            navigator.run();
+            if (due) {
+                navigator.run();
+            }
 
             boolean isLiving = getEntity() instanceof LivingEntity;
             if (updateCounter++ > Setting.PACKET_UPDATE_DELAY.asInt()) {
-                if (Setting.KEEP_CHUNKS_LOADED.asBoolean()) {
-                    ChunkCoord currentCoord = new ChunkCoord(getStoredLocation());
-                    if (!currentCoord.equals(cachedCoord)) {
-                        resetCachedCoord();
-                        currentCoord.setForceLoaded(true);
-                        CHUNK_LOADERS.put(currentCoord, this);
-                        cachedCoord = currentCoord;
-                    }
-                }
                 if (isLiving) {
                     updateCustomName();
                 }
@@ -381,6 +519,8 @@ public class CitizensNPC extends AbstractNPC {
             Throwable error = Throwables.getRootCause(ex);
             Messaging.logTr(Messages.EXCEPTION_UPDATING_NPC, getId(), error.getMessage());
             error.printStackTrace();
+        } finally {
+            NPCTickScheduler.record(System.nanoTime() - start);
         }
     }
 
@@ -425,7 +565,6 @@ public class CitizensNPC extends AbstractNPC {
     }
 
     private static final Location CACHE_LOCATION = new Location(null, 0, 0, 0);
-    private static final SetMultimap<ChunkCoord, NPC> CHUNK_LOADERS = HashMultimap.create();
     private static final String NPC_METADATA_MARKER = "NPC";
     private static boolean SUPPORT_GLOWING = true;
     private static boolean SUPPORT_SILENT = true;
@@ -1,6 +1,7 @@
 package net.citizensnpcs.npc;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -9,14 +10,21 @@ import java.util.Map;
 import java.util.UUID;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
 import org.bukkit.event.HandlerList;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.event.DespawnReason;
@@ -25,6 +33,7 @@ import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCDataStore;
 import net.citizensnpcs.api.npc.NPCRegistry;
 import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.api.trait.trait.Owner;
 import net.citizensnpcs.npc.ai.NPCHolder;
 import net.citizensnpcs.trait.ArmorStandTrait;
 import net.citizensnpcs.trait.LookClose;
@@ -32,9 +41,16 @@ import net.citizensnpcs.trait.MountTrait;
 import net.citizensnpcs.util.NMS;
 
 public class CitizensNPCRegistry implements NPCRegistry {
+    private final NPCAttributeIndex attributeIndex = new NPCAttributeIndex();
+    private TIntHashSet dirty = new TIntHashSet();
     private final String name;
     private final TIntObjectHashMap<NPC> npcs = new TIntObjectHashMap<NPC>();
     private final NPCDataStore saves;
+    private int[] sortedIds = new int[0];
+    private NPC[] sortedNPCs = new NPC[0];
+    private boolean sortedShared;
+    private int sortedSize;
+    private final NPCSpatialIndex spatialIndex = new NPCSpatialIndex();
     private final Map<UUID, NPC> uniqueNPCs = Maps.newHashMap();
 
     public CitizensNPCRegistry(NPCDataStore store) {
@@ -47,6 +63,30 @@ public class CitizensNPCRegistry implements NPCRegistry {
         name = registryName;
     }
 
+    private void addSorted(NPC npc) {
+        int index = Arrays.binarySearch(sortedIds, 0, sortedSize, npc.getId());
+        if (index >= 0) {
+            unshareSorted();
+            sortedNPCs[index] = npc;
+            return;
+        }
+        index = -index - 1;
+        if (sortedSize == sortedIds.length) {
+            int capacity = Math.max(16, sortedSize * 2);
+            sortedIds = Arrays.copyOf(sortedIds, capacity);
+            sortedNPCs = Arrays.copyOf(sortedNPCs, capacity);
+            sortedShared = false;
+        } else if (index < sortedSize) {
+            unshareSorted();
+        }
+        // appending never touches the part of the array covered by an outstanding view, so it needs no copy
+        System.arraycopy(sortedIds, index, sortedIds, index + 1, sortedSize - index);
+        System.arraycopy(sortedNPCs, index, sortedNPCs, index + 1, sortedSize - index);
+        sortedIds[index] = npc.getId();
+        sortedNPCs[index] = npc;
+        sortedSize++;
+    }
+
     @Override
     public NPC createNPC(EntityType type, String name) {
         return createNPC(type, UUID.randomUUID(), generateUniqueId(), name);
@@ -62,6 +102,8 @@ public class CitizensNPCRegistry implements NPCRegistry {
             throw new IllegalStateException("Could not create NPC.");
         npcs.put(id, npc);
         uniqueNPCs.put(npc.getUniqueId(), npc);
+        addSorted(npc);
+        dirty.add(id);
         Bukkit.getPluginManager().callEvent(new NPCCreateEvent(npc));
         if (type == EntityType.ARMOR_STAND && !npc.hasTrait(ArmorStandTrait.class)) {
             npc.addTrait(ArmorStandTrait.class);
@@ -70,6 +112,7 @@ public class CitizensNPCRegistry implements NPCRegistry {
             npc.addTrait(LookClose.class);
         }
         npc.addTrait(MountTrait.class);
+        attributeIndex.update(npc);
         return npc;
     }
 
@@ -78,6 +121,9 @@ public class CitizensNPCRegistry implements NPCRegistry {
         npc.despawn(DespawnReason.REMOVAL);
         npcs.remove(npc.getId());
         uniqueNPCs.remove(npc.getUniqueId());
+        removeSorted(npc.getId());
+        attributeIndex.remove(npc);
+        dirty.add(npc.getId());
         if (saves != null) {
             saves.clearData(npc);
         }
@@ -94,16 +140,33 @@ public class CitizensNPCRegistry implements NPCRegistry {
                 t.onRemove();
             }
             itr.remove();
+            uniqueNPCs.remove(npc.getUniqueId());
+            attributeIndex.remove(npc);
+            dirty.add(npc.getId());
             if (saves != null) {
                 saves.clearData(npc);
             }
         }
+        sortedIds = new int[0];
+        sortedNPCs = new NPC[0];
+        sortedShared = false;
+        sortedSize = 0;
     }
 
     private int generateUniqueId() {
         return saves.createUniqueNPCId(this);
     }
 
+    /**
+     * Returns the NPCs with ids between min and max inclusive, in id order, as a view that is not copied.
+     */
+    public List<NPC> getByIdRange(int min, int max) {
+        int from = lowerBound(sortedIds, sortedSize, min);
+        int to = max == Integer.MAX_VALUE ? sortedSize : lowerBound(sortedIds, sortedSize, max + 1);
+        sortedShared = true;
+        return Collections.unmodifiableList(Arrays.asList(sortedNPCs).subList(from, Math.max(from, to)));
+    }
+
     @Override
     public NPC getById(int id) {
         if (id < 0)
@@ -136,11 +199,60 @@ public class CitizensNPCRegistry implements NPCRegistry {
         return null;
     }
 
+    /**
+     * Returns the NPCs whose name matches, ignoring case, in id order.
+     */
+    public List<NPC> getByName(String name) {
+        return sort(attributeIndex.getByName(name));
+    }
+
+    /**
+     * Returns the NPCs owned by the given owner name, ignoring case, in id order.
+     */
+    public List<NPC> getByOwner(String owner) {
+        return sort(attributeIndex.getByOwnerName(owner));
+    }
+
+    /**
+     * Returns the NPCs owned by the given player UUID, in id order.
+     */
+    public List<NPC> getByOwner(UUID owner) {
+        return sort(attributeIndex.getByOwnerId(owner));
+    }
+
+    /**
+     * Returns the NPCs with the given trait attached, in id order.
+     */
+    public List<NPC> getByTrait(Class<? extends Trait> clazz) {
+        return sort(attributeIndex.getByTrait(clazz));
+    }
+
+    /**
+     * Returns the NPCs of the given entity type, in id order.
+     */
+    public List<NPC> getByType(EntityType type) {
+        return sort(attributeIndex.getByType(type));
+    }
+
     @Override
     public String getName() {
         return name;
     }
 
+    /**
+     * Returns the spawned NPCs within the given radius.
+     */
+    public List<NPC> getNearbyNPCs(Location centre, double radius) {
+        return spatialIndex.getNearby(centre, radius);
+    }
+
+    /**
+     * Returns up to k spawned NPCs within the given radius, closest first.
+     */
+    public List<NPC> getNearestNPCs(Location centre, int k, double radius) {
+        return spatialIndex.getNearest(centre, k, radius);
+    }
+
     @Override
     public NPC getNPC(Entity entity) {
         if (entity == null)
@@ -150,6 +262,38 @@ public class CitizensNPCRegistry implements NPCRegistry {
         return NMS.getNPC(entity);
     }
 
+    /**
+     * Returns the spawned NPCs in the given chunk.
+     */
+    public List<NPC> getNPCsInChunk(Chunk chunk) {
+        return spatialIndex.getNPCsInChunk(chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    /**
+     * Returns the NPCs for which {@link Owner#isOwnedBy(CommandSender)} holds, in id order. Players without admin
+     * permissions are answered from the owner index.
+     */
+    public List<NPC> getNPCsOwnedBy(CommandSender sender) {
+        boolean indexed = sender instanceof Player && !sender.hasPermission("citizens.admin");
+        Collection<NPC> candidates;
+        if (indexed) {
+            candidates = Sets.newHashSet(attributeIndex.getByOwnerId(((Player) sender).getUniqueId()));
+            candidates.addAll(attributeIndex.getByOwnerName(sender.getName()));
+        } else {
+            candidates = sorted();
+        }
+        List<NPC> owned = Lists.newArrayList();
+        for (NPC npc : candidates) {
+            if (npc.hasTrait(Owner.class) && npc.getTrait(Owner.class).isOwnedBy(sender)) {
+                owned.add(npc);
+            }
+        }
+        if (indexed) {
+            Collections.sort(owned, NPC_COMPARATOR);
+        }
+        return owned;
+    }
+
     @Override
     public boolean isNPC(Entity entity) {
         return getNPC(entity) != null;
@@ -160,11 +304,111 @@ public class CitizensNPCRegistry implements NPCRegistry {
         return npcs.valueCollection().iterator();
     }
 
+    /**
+     * Marks every NPC as needing to be saved.
+     */
+    public void markAllDirty() {
+        for (int i = 0; i < sortedSize; i++) {
+            dirty.add(sortedIds[i]);
+        }
+    }
+
+    /**
+     * Marks the NPC as changed since the last save.
+     */
+    public void markDirty(NPC npc) {
+        if (npcs.get(npc.getId()) == npc) {
+            dirty.add(npc.getId());
+        }
+    }
+
+    private void removeSorted(int id) {
+        int index = Arrays.binarySearch(sortedIds, 0, sortedSize, id);
+        if (index < 0)
+            return;
+        unshareSorted();
+        System.arraycopy(sortedIds, index + 1, sortedIds, index, sortedSize - index - 1);
+        System.arraycopy(sortedNPCs, index + 1, sortedNPCs, index, sortedSize - index - 1);
+        sortedNPCs[--sortedSize] = null;
+    }
+
+    void removeFromSpatialIndex(NPC npc) {
+        spatialIndex.remove(npc);
+    }
+
+    /**
+     * Returns every NPC in id order. The list is a view of the registry at the time of the call and is not copied.
+     */
     @Override
-    public Iterable<NPC> sorted() {
-        List<NPC> vals = new ArrayList<NPC>(npcs.valueCollection());
-        Collections.sort(vals, NPC_COMPARATOR);
-        return vals;
+    public List<NPC> sorted() {
+        sortedShared = true;
+        return Collections.unmodifiableList(Arrays.asList(sortedNPCs).subList(0, sortedSize));
+    }
+
+    /**
+     * Returns the ids of NPCs changed or removed since the last call and resets the dirty set.
+     */
+    public int[] takeDirty() {
+        int[] ids = dirty.toArray();
+        dirty = new TIntHashSet();
+        return ids;
+    }
+
+    /**
+     * Recomputes the secondary indexes for an NPC after its name, owner, type or traits change.
+     */
+    public void updateIndexes(NPC npc) {
+        if (npcs.get(npc.getId()) != npc)
+            return;
+        attributeIndex.update(npc);
+    }
+
+    /**
+     * Copies the sorted NPCs before they are changed in place if a view of them has been handed out, so views returned
+     * by {@link #sorted()} and {@link #getByIdRange(int, int)} never change underneath their readers.
+     */
+    private void unshareSorted() {
+        if (!sortedShared)
+            return;
+        sortedNPCs = sortedNPCs.clone();
+        sortedShared = false;
+    }
+
+    void updateSpatialIndex(NPC npc, Location location) {
+        spatialIndex.update(npc, location);
+    }
+
+    private static int lowerBound(int[] ids, int size, int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Recomputes the secondary indexes for an NPC if it belongs to a Citizens registry.
+     */
+    public static void reindex(NPC npc) {
+        if (npc.getOwningRegistry() instanceof CitizensNPCRegistry) {
+            ((CitizensNPCRegistry) npc.getOwningRegistry()).updateIndexes(npc);
+        }
+    }
+
+    /**
+     * Recomputes the secondary indexes for an NPC if it belongs to a Citizens registry and its owner was changed
+     * without going through Citizens.
+     */
+    public static void reindexIfOwnerChanged(NPC npc) {
+        if (npc.getOwningRegistry() instanceof CitizensNPCRegistry) {
+            CitizensNPCRegistry registry = (CitizensNPCRegistry) npc.getOwningRegistry();
+            if (registry.attributeIndex.isOwnerChanged(npc)) {
+                registry.updateIndexes(npc);
+            }
+        }
+    }
+
+    private static List<NPC> sort(Collection<NPC> npcs) {
+        List<NPC> sorted = Lists.newArrayList(npcs);
+        Collections.sort(sorted, NPC_COMPARATOR);
+        return sorted;
     }
 
     private static final Comparator<NPC> NPC_COMPARATOR = new Comparator<NPC>() {
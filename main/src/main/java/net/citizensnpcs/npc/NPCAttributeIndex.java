@@ -0,0 +1,124 @@
+package net.citizensnpcs.npc;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.entity.EntityType;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.api.trait.trait.MobType;
+import net.citizensnpcs.api.trait.trait.Owner;
+
+/**
+ * Secondary indexes over registered NPCs: owner, lower-cased name, entity type and attached trait classes. Entries are
+ * recomputed whenever one of those attributes changes through Citizens. The owner can also be changed directly through
+ * the {@link Owner} trait, so callers check {@link #isOwnerChanged(NPC)} as NPCs update and save.
+ */
+public class NPCAttributeIndex {
+    private final Map<NPC, Keys> keys = Maps.newHashMap();
+    private final SetMultimap<String, NPC> names = HashMultimap.create();
+    private final SetMultimap<UUID, NPC> ownerIds = HashMultimap.create();
+    private final SetMultimap<String, NPC> ownerNames = HashMultimap.create();
+    private final SetMultimap<Class<? extends Trait>, NPC> traits = HashMultimap.create();
+    private final SetMultimap<EntityType, NPC> types = HashMultimap.create();
+
+    public Collection<NPC> getByName(String name) {
+        return names.get(name.toLowerCase());
+    }
+
+    public Collection<NPC> getByOwnerId(UUID owner) {
+        return ownerIds.get(owner);
+    }
+
+    public Collection<NPC> getByOwnerName(String owner) {
+        return ownerNames.get(owner.toLowerCase());
+    }
+
+    public Collection<NPC> getByTrait(Class<? extends Trait> clazz) {
+        return traits.get(clazz);
+    }
+
+    public Collection<NPC> getByType(EntityType type) {
+        return types.get(type);
+    }
+
+    /**
+     * @return whether the NPC's owner differs from the indexed one
+     */
+    public boolean isOwnerChanged(NPC npc) {
+        Keys current = keys.get(npc);
+        if (current == null)
+            return false;
+        Owner owner = npc.hasTrait(Owner.class) ? npc.getTrait(Owner.class) : null;
+        UUID ownerId = owner == null ? null : owner.getOwnerId();
+        String ownerName = owner == null ? null : owner.getOwner();
+        return !Objects.equal(current.ownerId, ownerId)
+                || (ownerName == null ? current.ownerName != null : !ownerName.equalsIgnoreCase(current.ownerName));
+    }
+
+    public void remove(NPC npc) {
+        Keys old = keys.remove(npc);
+        if (old == null)
+            return;
+        names.remove(old.name, npc);
+        if (old.ownerId != null) {
+            ownerIds.remove(old.ownerId, npc);
+        }
+        if (old.ownerName != null) {
+            ownerNames.remove(old.ownerName, npc);
+        }
+        for (Class<? extends Trait> clazz : old.traits) {
+            traits.remove(clazz, npc);
+        }
+        if (old.type != null) {
+            types.remove(old.type, npc);
+        }
+    }
+
+    public void update(NPC npc) {
+        remove(npc);
+        Keys current = new Keys(npc);
+        keys.put(npc, current);
+        names.put(current.name, npc);
+        if (current.ownerId != null) {
+            ownerIds.put(current.ownerId, npc);
+        }
+        if (current.ownerName != null) {
+            ownerNames.put(current.ownerName, npc);
+        }
+        for (Class<? extends Trait> clazz : current.traits) {
+            traits.put(clazz, npc);
+        }
+        if (current.type != null) {
+            types.put(current.type, npc);
+        }
+    }
+
+    private static class Keys {
+        private final String name;
+        private final UUID ownerId;
+        private final String ownerName;
+        private final List<Class<? extends Trait>> traits = Lists.newArrayList();
+        private final EntityType type;
+
+        private Keys(NPC npc) {
+            name = npc.getName().toLowerCase();
+            Owner owner = npc.hasTrait(Owner.class) ? npc.getTrait(Owner.class) : null;
+            ownerId = owner == null ? null : owner.getOwnerId();
+            ownerName = owner == null || owner.getOwner() == null ? null : owner.getOwner().toLowerCase();
+            type = npc.hasTrait(MobType.class) ? npc.getTrait(MobType.class).getType() : null;
+            for (Trait trait : npc.getTraits()) {
+                traits.add(trait.getClass());
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package net.citizensnpcs.npc;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.bukkit.GameMode;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.metadata.MetadataValue;
+import org.bukkit.potion.PotionEffectType;
+
+import net.citizensnpcs.api.npc.NPC;
+
+/**
+ * An immutable view of a spawned NPC and the real players in its world, taken on the main thread for use by
+ * {@link net.citizensnpcs.trait.ParallelTrait}s.
+ */
+public class NPCSnapshot {
+    private final int id;
+    private final boolean navigating;
+    private final List<PlayerSnapshot> players;
+    private final float pitch, yaw;
+    private final UUID world;
+    private final double x, y, z;
+
+    NPCSnapshot(NPC npc, Location location, List<PlayerSnapshot> players) {
+        this.id = npc.getId();
+        this.navigating = npc.getNavigator().isNavigating();
+        this.players = players;
+        this.world = location.getWorld().getUID();
+        this.x = location.getX();
+        this.y = location.getY();
+        this.z = location.getZ();
+        this.yaw = location.getYaw();
+        this.pitch = location.getPitch();
+    }
+
+    public double getDistanceSquared(PlayerSnapshot player) {
+        double dX = player.x - x, dY = player.y - y, dZ = player.z - z;
+        return dX * dX + dY * dY + dZ * dZ;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the closest player within range that is not hidden from NPCs.
+     *
+     * @return the player, or null if there is none
+     */
+    public PlayerSnapshot getNearestPlayer(double range) {
+        PlayerSnapshot nearest = null;
+        double nearestDistance = range * range;
+        for (PlayerSnapshot player : players) {
+            if (player.hidden)
+                continue;
+            double distance = getDistanceSquared(player);
+            if (distance <= nearestDistance) {
+                nearest = player;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    public float getPitch() {
+        return pitch;
+    }
+
+    /**
+     * @return the real players in the NPC's world
+     */
+    public List<PlayerSnapshot> getPlayers() {
+        return players;
+    }
+
+    public UUID getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public float getYaw() {
+        return yaw;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public boolean isNavigating() {
+        return navigating;
+    }
+
+    public static class PlayerSnapshot {
+        private final boolean hidden;
+        private final UUID uuid;
+        private final double x, y, z;
+
+        PlayerSnapshot(Player player, Location location) {
+            this.uuid = player.getUniqueId();
+            this.x = location.getX();
+            this.y = location.getY();
+            this.z = location.getZ();
+            this.hidden = player.getGameMode() == GameMode.SPECTATOR
+                    || player.hasPotionEffect(PotionEffectType.INVISIBILITY) || isPluginVanished(player);
+        }
+
+        public UUID getUniqueId() {
+            return uuid;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        public double getZ() {
+            return z;
+        }
+
+        /**
+         * @return whether the player is a spectator, invisible or vanished
+         */
+        public boolean isHidden() {
+            return hidden;
+        }
+
+        private static boolean isPluginVanished(Player player) {
+            for (MetadataValue meta : player.getMetadata("vanished")) {
+                if (meta.asBoolean()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package net.citizensnpcs.npc;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.citizensnpcs.api.npc.NPC;
+
+/**
+ * A per-world grid of spawned NPCs bucketed by chunk. Entries move only when an NPC crosses a chunk boundary; distance
+ * checks in queries use the live entity location.
+ */
+public class NPCSpatialIndex {
+    private final TIntObjectHashMap<Cell> cells = new TIntObjectHashMap<Cell>();
+    private final Map<UUID, TLongObjectHashMap<List<NPC>>> worlds = Maps.newHashMap();
+
+    private void add(NPC npc, Cell cell) {
+        TLongObjectHashMap<List<NPC>> chunks = worlds.get(cell.world);
+        if (chunks == null) {
+            worlds.put(cell.world, chunks = new TLongObjectHashMap<List<NPC>>());
+        }
+        List<NPC> bucket = chunks.get(cell.chunk);
+        if (bucket == null) {
+            chunks.put(cell.chunk, bucket = Lists.newArrayListWithCapacity(2));
+        }
+        bucket.add(npc);
+        cells.put(npc.getId(), cell);
+    }
+
+    private void collect(TLongObjectHashMap<List<NPC>> chunks, int cx, int cz, Location centre, double radiusSquared,
+            List<NPC> output) {
+        List<NPC> bucket = chunks.get(getKey(cx, cz));
+        if (bucket == null)
+            return;
+        for (int i = 0; i < bucket.size(); i++) {
+            NPC npc = bucket.get(i);
+            if (!npc.isSpawned())
+                continue;
+            Location location = npc.getEntity().getLocation(NPC_LOCATION);
+            if (location.getWorld() == centre.getWorld() && location.distanceSquared(centre) <= radiusSquared) {
+                output.add(npc);
+            }
+        }
+    }
+
+    /**
+     * Returns the spawned NPCs within the given radius.
+     */
+    public List<NPC> getNearby(Location centre, double radius) {
+        List<NPC> result = Lists.newArrayList();
+        TLongObjectHashMap<List<NPC>> chunks = worlds.get(centre.getWorld().getUID());
+        if (chunks == null)
+            return result;
+        int minX = (int) Math.floor(centre.getX() - radius) >> 4, maxX = (int) Math.floor(centre.getX() + radius) >> 4;
+        int minZ = (int) Math.floor(centre.getZ() - radius) >> 4, maxZ = (int) Math.floor(centre.getZ() + radius) >> 4;
+        if ((long) (maxX - minX + 1) * (maxZ - minZ + 1) > chunks.size()) {
+            for (long key : chunks.keys()) {
+                int cx = (int) (key >> 32), cz = (int) key;
+                if (cx >= minX && cx <= maxX && cz >= minZ && cz <= maxZ) {
+                    collect(chunks, cx, cz, centre, radius * radius, result);
+                }
+            }
+            return result;
+        }
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cz = minZ; cz <= maxZ; cz++) {
+                collect(chunks, cx, cz, centre, radius * radius, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to k spawned NPCs within the given radius, closest first.
+     */
+    public List<NPC> getNearest(final Location centre, int k, double radius) {
+        List<NPC> result = Lists.newArrayList();
+        TLongObjectHashMap<List<NPC>> chunks = worlds.get(centre.getWorld().getUID());
+        if (chunks == null || k <= 0)
+            return result;
+        int ox = centre.getBlockX() >> 4, oz = centre.getBlockZ() >> 4;
+        int maxRing = (int) Math.ceil(radius / 16) + 1;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int cx = ox - ring; cx <= ox + ring; cx++) {
+                for (int cz = oz - ring; cz <= oz + ring; cz++) {
+                    if (Math.abs(cx - ox) == ring || Math.abs(cz - oz) == ring) {
+                        collect(chunks, cx, cz, centre, radius * radius, result);
+                    }
+                }
+            }
+            // anything in a further ring is at least this far away
+            double covered = ring * 16;
+            if (result.size() >= k && getDistanceSquared(result, centre, k) <= covered * covered)
+                break;
+        }
+        sort(result, centre);
+        return result.size() > k ? Lists.newArrayList(result.subList(0, k)) : result;
+    }
+
+    /**
+     * Returns the NPCs indexed in the given chunk.
+     */
+    public List<NPC> getNPCsInChunk(World world, int cx, int cz) {
+        TLongObjectHashMap<List<NPC>> chunks = worlds.get(world.getUID());
+        List<NPC> bucket = chunks == null ? null : chunks.get(getKey(cx, cz));
+        return bucket == null ? Collections.<NPC> emptyList() : Lists.newArrayList(bucket);
+    }
+
+    /**
+     * Removes the NPC from the index.
+     */
+    public void remove(NPC npc) {
+        Cell cell = cells.remove(npc.getId());
+        if (cell == null)
+            return;
+        TLongObjectHashMap<List<NPC>> chunks = worlds.get(cell.world);
+        if (chunks == null)
+            return;
+        List<NPC> bucket = chunks.get(cell.chunk);
+        if (bucket == null)
+            return;
+        bucket.remove(npc);
+        if (bucket.isEmpty()) {
+            chunks.remove(cell.chunk);
+            if (chunks.isEmpty()) {
+                worlds.remove(cell.world);
+            }
+        }
+    }
+
+    /**
+     * Adds the NPC at the given location, or moves it if it has crossed into a different chunk.
+     */
+    public void update(NPC npc, Location location) {
+        UUID world = location.getWorld().getUID();
+        long chunk = getKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+        Cell cell = cells.get(npc.getId());
+        if (cell != null && cell.chunk == chunk && cell.world.equals(world))
+            return;
+        remove(npc);
+        add(npc, new Cell(world, chunk));
+    }
+
+    private static class Cell {
+        private final long chunk;
+        private final UUID world;
+
+        private Cell(UUID world, long chunk) {
+            this.world = world;
+            this.chunk = chunk;
+        }
+    }
+
+    private static double getDistanceSquared(List<NPC> npcs, Location centre, int k) {
+        sort(npcs, centre);
+        return npcs.get(k - 1).getEntity().getLocation(NPC_LOCATION).distanceSquared(centre);
+    }
+
+    private static long getKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    private static void sort(List<NPC> npcs, final Location centre) {
+        Collections.sort(npcs, new Comparator<NPC>() {
+            @Override
+            public int compare(NPC o1, NPC o2) {
+                return Double.compare(o1.getEntity().getLocation(NPC_LOCATION).distanceSquared(centre),
+                        o2.getEntity().getLocation(NPC_LOCATION).distanceSquared(centre));
+            }
+        });
+    }
+
+    private static final Location NPC_LOCATION = new Location(null, 0, 0, 0);
+}
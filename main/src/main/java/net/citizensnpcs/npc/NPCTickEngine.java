@@ -0,0 +1,120 @@
+package net.citizensnpcs.npc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.npc.NPCRegistry;
+import net.citizensnpcs.api.trait.Trait;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.npc.NPCSnapshot.PlayerSnapshot;
+import net.citizensnpcs.trait.ParallelTrait;
+
+/**
+ * Runs the compute phase of every {@link ParallelTrait} at the start of each tick. Snapshots are taken on the main
+ * thread, computed on a {@link ForkJoinPool} and joined before the server ticks entities, so the serial apply phase in
+ * {@link Trait#run()} always sees the current tick's results. NPCs that the {@link NPCTickScheduler} won't update this
+ * tick are skipped, so level of detail applies to both phases.
+ */
+public class NPCTickEngine extends BukkitRunnable {
+    private final ForkJoinPool pool;
+    private final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+
+    public NPCTickEngine(int threads) {
+        pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        pool.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        Map<UUID, List<PlayerSnapshot>> players = null;
+        for (NPCRegistry registry : CitizensAPI.getNPCRegistries()) {
+            for (NPC npc : registry) {
+                final List<ParallelTrait> traits = getParallelTraits(npc);
+                if (traits.isEmpty() || !npc.isSpawned())
+                    continue;
+                if (npc instanceof CitizensNPC && !NPCTickScheduler.isDue(npc, ((CitizensNPC) npc).getTickState()))
+                    continue;
+                if (players == null) {
+                    players = snapshotPlayers();
+                }
+                Location location = npc.getEntity().getLocation(CACHE_LOCATION);
+                final NPCSnapshot snapshot = new NPCSnapshot(npc, location,
+                        getPlayers(players, location.getWorld().getUID()));
+                tasks.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (ParallelTrait trait : traits) {
+                            trait.compute(snapshot);
+                        }
+                    }
+                }));
+            }
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                Messaging.severe("Exception while computing parallel trait:", e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        tasks.clear();
+    }
+
+    private static List<ParallelTrait> getParallelTraits(NPC npc) {
+        if (npc instanceof CitizensNPC)
+            return ((CitizensNPC) npc).getParallelTraits();
+        List<ParallelTrait> traits = null;
+        for (Trait trait : npc.getTraits()) {
+            if (trait instanceof ParallelTrait) {
+                if (traits == null) {
+                    traits = Lists.newArrayListWithCapacity(1);
+                }
+                traits.add((ParallelTrait) trait);
+            }
+        }
+        return traits == null ? Collections.<ParallelTrait> emptyList() : traits;
+    }
+
+    private static List<PlayerSnapshot> getPlayers(Map<UUID, List<PlayerSnapshot>> players, UUID world) {
+        List<PlayerSnapshot> result = players.get(world);
+        return result == null ? Collections.<PlayerSnapshot> emptyList() : result;
+    }
+
+    private static Map<UUID, List<PlayerSnapshot>> snapshotPlayers() {
+        Map<UUID, List<PlayerSnapshot>> players = Maps.newHashMap();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            if (player.hasMetadata("NPC"))
+                continue;
+            Location location = player.getLocation(CACHE_LOCATION);
+            UUID world = location.getWorld().getUID();
+            List<PlayerSnapshot> list = players.get(world);
+            if (list == null) {
+                players.put(world, list = Lists.newArrayList());
+            }
+            list.add(new PlayerSnapshot(player, location));
+        }
+        return players;
+    }
+
+    private static final Location CACHE_LOCATION = new Location(null, 0, 0, 0);
+}
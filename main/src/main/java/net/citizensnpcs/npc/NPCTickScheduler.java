@@ -0,0 +1,153 @@
+package net.citizensnpcs.npc;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.npc.NPC;
+
+/**
+ * Decides which NPCs are updated each tick. With level of detail enabled, an NPC is updated every tick when a player
+ * who can see it is nearby, every few ticks when the nearest such player is further away but still within view
+ * distance, and rarely when no player can see it. A player can see an NPC if the NPC isn't hidden from them and, when
+ * npc.tick.level-of-detail.line-of-sight is set, nothing blocks the line of sight between them; a nearby player who
+ * can't see the NPC only keeps it at the middle level. Navigating NPCs are moved up one level so they keep making
+ * progress.
+ *
+ * <p>
+ * Updates also share a global per-tick time budget, checked for every NPC. Once it is spent, due NPCs are deferred. At
+ * the start of each tick, part of the budget is reserved for the NPCs deferred last tick, based on the average update
+ * cost, so they are updated before NPCs that were not deferred. Deferral then rotates through NPCs instead of starving
+ * the ones that happen to tick last.
+ * </p>
+ */
+public class NPCTickScheduler extends BukkitRunnable {
+    @Override
+    public void run() {
+        TICK++;
+        SPENT_NANOS = 0;
+        RESERVED_NANOS = DEFERRED_COUNT * AVERAGE_NANOS;
+        DEFERRED_COUNT = 0;
+    }
+
+    public static class TickState {
+        private boolean deferred;
+        private int interval = 1;
+        private long lastUpdate = Integer.MIN_VALUE;
+        private long nextClassify;
+
+        private void classify(NPC npc) {
+            nextClassify = TICK + Setting.NPC_TICK_FAR_INTERVAL.asInt();
+            if (!Setting.NPC_TICK_LEVEL_OF_DETAIL.asBoolean()) {
+                interval = 1;
+                return;
+            }
+            Entity entity = npc.getEntity();
+            Location location = entity.getLocation(NPC_LOCATION);
+            double near = Setting.NPC_TICK_NEAR_DISTANCE.asDouble(), view = Setting.NPC_TICK_VIEW_DISTANCE.asDouble();
+            double nearestVisible = Double.MAX_VALUE, nearestHidden = Double.MAX_VALUE;
+            for (Player player : location.getWorld().getPlayers()) {
+                if (player.hasMetadata("NPC"))
+                    continue;
+                double distance = player.getLocation(PLAYER_LOCATION).distanceSquared(location);
+                // only players within view distance can move the NPC up a level, so skip the visibility checks
+                if (distance > view * view || distance >= nearestVisible)
+                    continue;
+                if (canSee(player, entity)) {
+                    nearestVisible = distance;
+                } else {
+                    nearestHidden = Math.min(nearestHidden, distance);
+                }
+            }
+            int level = nearestVisible <= near * near ? 0
+                    : nearestVisible <= view * view || nearestHidden <= near * near ? 1 : 2;
+            if (npc.getNavigator().isNavigating()) {
+                level = Math.max(0, level - 1);
+            }
+            interval = level == 0 ? 1
+                    : level == 1 ? Setting.NPC_TICK_MID_INTERVAL.asInt() : Setting.NPC_TICK_FAR_INTERVAL.asInt();
+        }
+
+        /**
+         * @return the number of ticks between updates of the NPC
+         */
+        public int getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return whether the NPC was due last time but deferred because the budget was spent
+         */
+        public boolean isDeferred() {
+            return deferred;
+        }
+    }
+
+    private static boolean canSee(Player player, Entity entity) {
+        if (entity instanceof Player && !player.canSee((Player) entity))
+            return false;
+        if (!Setting.NPC_TICK_LINE_OF_SIGHT.asBoolean() || !(entity instanceof LivingEntity))
+            return true;
+        return ((LivingEntity) entity).hasLineOfSight(player);
+    }
+
+    /**
+     * @return the number of ticks since the scheduler started
+     */
+    public static long getTick() {
+        return TICK;
+    }
+
+    /**
+     * Returns whether the NPC's update interval has elapsed, without consuming its turn or checking the budget.
+     */
+    public static boolean isDue(NPC npc, TickState state) {
+        if (TICK >= state.nextClassify) {
+            state.classify(npc);
+        }
+        return TICK - state.lastUpdate >= state.interval;
+    }
+
+    /**
+     * Records time spent updating an NPC against this tick's budget.
+     */
+    public static void record(long nanos) {
+        SPENT_NANOS += nanos;
+        AVERAGE_NANOS += (nanos - AVERAGE_NANOS) / 16;
+    }
+
+    /**
+     * Returns whether the NPC should be updated this tick, consuming its turn if so.
+     */
+    public static boolean shouldUpdate(NPC npc, TickState state) {
+        if (!isDue(npc, state))
+            return false;
+        double budget = Setting.NPC_TICK_BUDGET_MS.asDouble() * 1000000;
+        if (budget > 0) {
+            // deferred NPCs may use the reserved part of the budget, others have to leave it for them
+            long spent = state.deferred ? SPENT_NANOS : SPENT_NANOS + RESERVED_NANOS;
+            if (spent >= budget) {
+                state.deferred = true;
+                DEFERRED_COUNT++;
+                return false;
+            }
+            if (state.deferred) {
+                RESERVED_NANOS = Math.max(0, RESERVED_NANOS - AVERAGE_NANOS);
+            }
+        }
+        state.deferred = false;
+        state.lastUpdate = TICK;
+        return true;
+    }
+
+    private static final Location NPC_LOCATION = new Location(null, 0, 0, 0);
+    private static final Location PLAYER_LOCATION = new Location(null, 0, 0, 0);
+    private static long AVERAGE_NANOS;
+    private static long DEFERRED_COUNT;
+    private static long RESERVED_NANOS;
+    private static long SPENT_NANOS;
+    private static long TICK;
+}
@@ -0,0 +1,133 @@
+package net.citizensnpcs.npc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.Location;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import net.citizensnpcs.api.npc.NPC;
+
+/**
+ * Despawned NPCs waiting for their chunk to load, grouped by world and keyed by a packed chunk coordinate. Each chunk
+ * holds a set, so storing an NPC twice is a no-op, and a running count of pending NPCs is kept per world.
+ */
+public class RespawnIndex {
+    private final TObjectIntHashMap<UUID> pending = new TObjectIntHashMap<UUID>();
+    private final Map<UUID, TLongObjectHashMap<Set<NPC>>> worlds = Maps.newHashMap();
+
+    /**
+     * Stores the NPC for respawn in the given chunk.
+     *
+     * @return false if the NPC was already stored there
+     */
+    public boolean add(UUID world, int cx, int cz, NPC npc) {
+        TLongObjectHashMap<Set<NPC>> chunks = worlds.get(world);
+        if (chunks == null) {
+            worlds.put(world, chunks = new TLongObjectHashMap<Set<NPC>>());
+        }
+        long key = getKey(cx, cz);
+        Set<NPC> bucket = chunks.get(key);
+        if (bucket == null) {
+            chunks.put(key, bucket = Sets.newLinkedHashSet());
+        }
+        if (!bucket.add(npc))
+            return false;
+        pending.adjustOrPutValue(world, 1, 1);
+        return true;
+    }
+
+    public boolean add(Location location, NPC npc) {
+        return add(location.getWorld().getUID(), location.getBlockX() >> 4, location.getBlockZ() >> 4, npc);
+    }
+
+    public void clear() {
+        worlds.clear();
+        pending.clear();
+    }
+
+    /**
+     * Returns whether the NPC is waiting to respawn in the given chunk.
+     */
+    public boolean contains(UUID world, int cx, int cz, NPC npc) {
+        TLongObjectHashMap<Set<NPC>> chunks = worlds.get(world);
+        Set<NPC> bucket = chunks == null ? null : chunks.get(getKey(cx, cz));
+        return bucket != null && bucket.contains(npc);
+    }
+
+    /**
+     * Returns the packed coordinates of every chunk in the world with NPCs waiting to respawn.
+     *
+     * @see #getX(long)
+     * @see #getZ(long)
+     */
+    public long[] getChunks(UUID world) {
+        TLongObjectHashMap<Set<NPC>> chunks = worlds.get(world);
+        return chunks == null ? new long[0] : chunks.keys();
+    }
+
+    /**
+     * Returns a copy of the NPCs waiting to respawn in the given chunk.
+     */
+    public List<NPC> getNPCs(UUID world, int cx, int cz) {
+        TLongObjectHashMap<Set<NPC>> chunks = worlds.get(world);
+        Set<NPC> bucket = chunks == null ? null : chunks.get(getKey(cx, cz));
+        return bucket == null ? Collections.<NPC> emptyList() : Lists.newArrayList(bucket);
+    }
+
+    /**
+     * Returns the number of NPCs waiting to respawn in the world.
+     */
+    public int getPendingCount(UUID world) {
+        return pending.get(world);
+    }
+
+    public boolean remove(Location location, NPC npc) {
+        return remove(location.getWorld().getUID(), location.getBlockX() >> 4, location.getBlockZ() >> 4, npc);
+    }
+
+    /**
+     * Removes the NPC from the given chunk.
+     *
+     * @return whether the NPC was stored there
+     */
+    public boolean remove(UUID world, int cx, int cz, NPC npc) {
+        TLongObjectHashMap<Set<NPC>> chunks = worlds.get(world);
+        if (chunks == null)
+            return false;
+        long key = getKey(cx, cz);
+        Set<NPC> bucket = chunks.get(key);
+        if (bucket == null || !bucket.remove(npc))
+            return false;
+        if (bucket.isEmpty()) {
+            chunks.remove(key);
+            if (chunks.isEmpty()) {
+                worlds.remove(world);
+            }
+        }
+        if (pending.adjustOrPutValue(world, -1, 0) <= 0) {
+            pending.remove(world);
+        }
+        return true;
+    }
+
+    public static long getKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    public static int getX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int getZ(long key) {
+        return (int) key;
+    }
+}
@@ -0,0 +1,192 @@
+package net.citizensnpcs.npc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.event.SpawnReason;
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.trait.CurrentLocation;
+
+/**
+ * Respawns NPCs from a {@link RespawnIndex} when their chunk loads. Queued chunk loads are spread over several ticks:
+ * each tick respawns the queued NPCs closest to a player first until the per-tick time budget is spent. An NPC stays
+ * in the index until it has actually spawned, so one whose chunk unloads again before its turn is simply respawned by
+ * the next chunk load.
+ */
+public class RespawnScheduler implements Runnable {
+    private final RespawnIndex index;
+    private final Map<NPC, Pending> queued = Maps.newLinkedHashMap();
+    private BukkitTask task;
+
+    public RespawnScheduler(RespawnIndex index) {
+        this.index = index;
+    }
+
+    public void clear() {
+        queued.clear();
+    }
+
+    /**
+     * Queues the NPCs waiting in the given chunk. An NPC that is already queued is only queued once.
+     */
+    public void queue(UUID world, int cx, int cz) {
+        for (NPC npc : index.getNPCs(world, cx, cz)) {
+            queued.put(npc, new Pending(npc, world, cx, cz));
+        }
+        if (task == null && !queued.isEmpty()) {
+            task = Bukkit.getScheduler().runTaskTimer(CitizensAPI.getPlugin(), this, 0, 1);
+        }
+    }
+
+    /**
+     * Immediately respawns every NPC waiting in the given chunk.
+     */
+    public void respawn(UUID world, int cx, int cz, Object cause) {
+        for (NPC npc : index.getNPCs(world, cx, cz)) {
+            respawn(world, cx, cz, npc, cause);
+        }
+    }
+
+    private void respawn(UUID world, int cx, int cz, NPC npc, Object cause) {
+        if (npc.getOwningRegistry().getById(npc.getId()) != npc) {
+            index.remove(world, cx, cz, npc);
+            if (Messaging.isDebugging()) {
+                Messaging.debug("Prevented deregistered NPC from respawning", npc.getId());
+            }
+            return;
+        }
+        if (npc.isSpawned()) {
+            index.remove(world, cx, cz, npc);
+            if (Messaging.isDebugging()) {
+                Messaging.debug("NPC", npc.getId(), "already spawned");
+            }
+            return;
+        }
+        if (!spawn(npc)) {
+            if (Messaging.isDebugging()) {
+                Messaging.debug("Couldn't respawn id", npc.getId(), "during", cause, "at [" + cx + "," + cz + "]");
+            }
+            return;
+        }
+        index.remove(world, cx, cz, npc);
+        if (Messaging.isDebugging()) {
+            Messaging.debug("Spawned id", npc.getId(), "during", cause, "at [" + cx + "," + cz + "]");
+        }
+    }
+
+    @Override
+    public void run() {
+        if (queued.isEmpty()) {
+            task.cancel();
+            task = null;
+            return;
+        }
+        List<Pending> order = Lists.newArrayList(queued.values());
+        Map<UUID, double[]> players = Maps.newHashMap();
+        for (Pending pending : order) {
+            double[] positions = players.get(pending.world);
+            if (positions == null) {
+                players.put(pending.world, positions = getPlayerPositions(pending.world));
+            }
+            pending.prioritise(positions);
+        }
+        Collections.sort(order, new Comparator<Pending>() {
+            @Override
+            public int compare(Pending o1, Pending o2) {
+                return Double.compare(o1.distanceSquared, o2.distanceSquared);
+            }
+        });
+        long deadline = System.nanoTime() + (long) (Setting.CHUNK_RESPAWN_BUDGET_MS.asDouble() * 1000000);
+        // always respawn at least one NPC so the queue drains even when a single spawn overruns the budget
+        for (int i = 0; i < order.size() && (i == 0 || System.nanoTime() < deadline); i++) {
+            Pending pending = order.get(i);
+            queued.remove(pending.npc);
+            if (!index.contains(pending.world, pending.cx, pending.cz, pending.npc))
+                continue;
+            World world = Bukkit.getWorld(pending.world);
+            if (world == null || !world.isChunkLoaded(pending.cx, pending.cz))
+                continue;
+            respawn(pending.world, pending.cx, pending.cz, pending.npc, "chunk load");
+        }
+    }
+
+    /**
+     * @return the number of NPCs waiting for their turn to respawn
+     */
+    public int size() {
+        return queued.size();
+    }
+
+    private static class Pending {
+        private final int cx;
+        private final int cz;
+        private double distanceSquared;
+        private final NPC npc;
+        private final UUID world;
+
+        private Pending(NPC npc, UUID world, int cx, int cz) {
+            this.npc = npc;
+            this.world = world;
+            this.cx = cx;
+            this.cz = cz;
+        }
+
+        private void prioritise(double[] players) {
+            double x = (cx << 4) + 8, z = (cz << 4) + 8;
+            distanceSquared = Double.MAX_VALUE;
+            for (int i = 0; i < players.length; i += 2) {
+                double dx = players[i] - x, dz = players[i + 1] - z;
+                distanceSquared = Math.min(distanceSquared, dx * dx + dz * dz);
+            }
+        }
+    }
+
+    /**
+     * Returns the x and z coordinates of the real players in a world, interleaved.
+     */
+    private static double[] getPlayerPositions(UUID uuid) {
+        World world = Bukkit.getWorld(uuid);
+        if (world == null)
+            return new double[0];
+        List<Player> players = world.getPlayers();
+        double[] positions = new double[players.size() * 2];
+        int size = 0;
+        for (Player player : players) {
+            if (player.hasMetadata("NPC"))
+                continue;
+            Location location = player.getLocation(PLAYER_LOCATION);
+            positions[size++] = location.getX();
+            positions[size++] = location.getZ();
+        }
+        return size == positions.length ? positions : Arrays.copyOf(positions, size);
+    }
+
+    private static boolean spawn(NPC npc) {
+        Location spawn = npc.getTrait(CurrentLocation.class).getLocation();
+        if (spawn == null) {
+            if (Messaging.isDebugging()) {
+                Messaging.debug("Couldn't find a spawn location for despawned NPC id", npc.getId());
+            }
+            return false;
+        }
+        return npc.spawn(spawn, SpawnReason.CHUNK_LOAD);
+    }
+
+    private static final Location PLAYER_LOCATION = new Location(null, 0, 0, 0);
+}
@@ -32,6 +32,9 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
     private final NavigatorParameters params;
     private Path plan;
     private boolean planned = false;
+    private List<Vector> prefix;
+    private AsyncAStarPlanner.PlanRequest request;
+    private NMSChunkBlockSource source;
     private AStarMachine<VectorNode, Path>.AStarState state;
     private Vector vector;
 
@@ -44,6 +47,16 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
         setPlan(new Path(list));
     }
 
+    /**
+     * Follows the given path while planning from its last point to the destination, then joins the two.
+     */
+    public AStarNavigationStrategy(NPC npc, List<Vector> prefix, Location dest, NavigatorParameters params) {
+        this(npc, dest, params);
+        this.prefix = prefix;
+        this.plan = new Path(prefix);
+        this.vector = plan.getCurrentVector();
+    }
+
     public AStarNavigationStrategy(NPC npc, Location dest, NavigatorParameters params) {
         super(TargetType.LOCATION);
         this.params = params;
@@ -51,17 +64,7 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
         this.npc = npc;
     }
 
-    @Override
-    public Iterable<Vector> getPath() {
-        return plan == null ? null : plan.getPath();
-    }
-
-    @Override
-    public Location getTargetAsLocation() {
-        return destination;
-    }
-
-    public void initialisePathfinder() {
+    private void addWaterExaminer() {
         params.examiner(new BlockExaminer() {
             @Override
             public float getCost(BlockSource source, PathPoint point) {
@@ -76,15 +79,55 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
                 return PassableState.IGNORE;
             }
         });
-        Location location = npc.getEntity().getLocation();
-        VectorGoal goal = new VectorGoal(destination, (float) params.pathDistanceMargin());
-        state = ASTAR.getStateFor(goal,
-                new VectorNode(goal, location, new NMSChunkBlockSource(location, params.range()), params.examiners()));
+    }
+
+    private VectorGoal createGoal() {
+        return new VectorGoal(destination, (float) params.pathDistanceMargin());
+    }
+
+    private VectorNode createStartNode(Location location, BlockSource source) {
+        return new VectorNode(createGoal(), location, source, params.examiners());
+    }
+
+    @Override
+    public Iterable<Vector> getPath() {
+        return plan == null ? null : plan.getPath();
+    }
+
+    private Location getStartLocation() {
+        if (prefix == null)
+            return npc.getEntity().getLocation();
+        return prefix.get(prefix.size() - 1).toLocation(npc.getEntity().getWorld());
+    }
+
+    @Override
+    public Location getTargetAsLocation() {
+        return destination;
+    }
+
+    public void initialisePathfinder() {
+        addWaterExaminer();
+        Location location = getStartLocation();
+        source = new NMSChunkBlockSource(location, params.range());
+        state = ASTAR.getStateFor(createGoal(), createStartNode(location, source));
+    }
+
+    private void releaseSource() {
+        if (source != null) {
+            source.release();
+            source = null;
+        }
     }
 
     public void setPlan(Path path) {
+        if (prefix != null && path != null) {
+            path = PathRepair.join(prefix, vector, path);
+        }
+        prefix = null;
         this.plan = path;
         this.planned = true;
+        state = null;
+        releaseSource();
         if (plan == null || plan.isComplete()) {
             setCancelReason(CancelReason.STUCK);
         } else {
@@ -100,32 +143,61 @@ public class AStarNavigationStrategy extends AbstractPathStrategy {
         if (plan != null && params.debug()) {
             plan.debugEnd();
         }
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+        releaseSource();
         state = null;
         plan = null;
     }
 
+    private void submitAsync() {
+        addWaterExaminer();
+        Location location = getStartLocation();
+        ChunkSnapshotBlockSource source = new ChunkSnapshotBlockSource(location, params.range());
+        request = AsyncAStarPlanner.submit(createGoal(), createStartNode(location, source), source,
+                new AsyncAStarPlanner.PlanCallback() {
+                    @Override
+                    public void onPlanned(Path path) {
+                        request = null;
+                        if (planned)
+                            return;
+                        setPlan(path);
+                    }
+                });
+    }
+
     @Override
     public boolean update() {
         if (!planned) {
-            if (state == null) {
-                initialisePathfinder();
-            }
-            int maxIterations = Setting.MAXIMUM_ASTAR_ITERATIONS.asInt();
-            int iterationsPerTick = Setting.ASTAR_ITERATIONS_PER_TICK.asInt();
-            Path plan = ASTAR.run(state, iterationsPerTick);
-            if (plan == null) {
-                if (state.isEmpty()) {
-                    setCancelReason(CancelReason.STUCK);
+            if (Setting.ASYNC_PATHFINDING.asBoolean()) {
+                if (request == null) {
+                    submitAsync();
+                }
+            } else {
+                if (state == null) {
+                    initialisePathfinder();
                 }
-                if (iterationsPerTick > 0 && maxIterations > 0) {
-                    iterations += iterationsPerTick;
-                    if (iterations > maxIterations) {
+                int maxIterations = Setting.MAXIMUM_ASTAR_ITERATIONS.asInt();
+                int iterationsPerTick = Setting.ASTAR_ITERATIONS_PER_TICK.asInt();
+                Path found = ASTAR.run(state, iterationsPerTick);
+                if (found == null) {
+                    if (state.isEmpty()) {
                         setCancelReason(CancelReason.STUCK);
                     }
+                    if (iterationsPerTick > 0 && maxIterations > 0) {
+                        iterations += iterationsPerTick;
+                        if (iterations > maxIterations) {
+                            setCancelReason(CancelReason.STUCK);
+                        }
+                    }
+                } else {
+                    setPlan(found);
                 }
-            } else {
-                setPlan(plan);
             }
+            if (plan == null)
+                return getCancelReason() != null;
         }
         if (getCancelReason() != null || plan == null || plan.isComplete()) {
             return true;
@@ -0,0 +1,197 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.astar.AStarMachine;
+import net.citizensnpcs.api.astar.pathfinder.Path;
+import net.citizensnpcs.api.astar.pathfinder.VectorGoal;
+import net.citizensnpcs.api.astar.pathfinder.VectorNode;
+import net.citizensnpcs.api.util.Messaging;
+
+/**
+ * Runs A* searches on a worker pool in time slices. Every tick a global iteration budget is shared round-robin between
+ * all pending searches, and finished plans are handed back on the main thread.
+ *
+ * <p>
+ * Start nodes must be built from a {@link ChunkSnapshotBlockSource}, which is safe to read from the worker threads.
+ * </p>
+ */
+public class AsyncAStarPlanner implements Runnable {
+    private final Queue<PlanRequest> completed = new ConcurrentLinkedQueue<PlanRequest>();
+    private final ExecutorService executor;
+    private final Deque<PlanRequest> pending = new ArrayDeque<PlanRequest>();
+
+    private AsyncAStarPlanner(int threads) {
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Citizens Pathfinder " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void dispatch(final PlanRequest request, final int iterations) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.step(iterations);
+                } catch (Throwable t) {
+                    request.failed = true;
+                    if (Messaging.isDebugging()) {
+                        Messaging.debug("Async pathfinding failed:", t.getMessage());
+                    }
+                }
+                completed.add(request);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        PlanRequest done;
+        while ((done = completed.poll()) != null) {
+            if (done.cancelled) {
+                done.source.release();
+                continue;
+            }
+            if (done.failed || done.plan != null) {
+                done.source.release();
+                done.callback.onPlanned(done.plan);
+            } else {
+                pending.add(done);
+            }
+        }
+        int budget = Setting.ASYNC_ASTAR_ITERATIONS_PER_TICK.asInt();
+        if (pending.isEmpty() || budget <= 0)
+            return;
+        int slice = Math.max(MINIMUM_SLICE, budget / pending.size());
+        while (budget > 0 && !pending.isEmpty()) {
+            PlanRequest request = pending.poll();
+            if (request.cancelled) {
+                request.source.release();
+                continue;
+            }
+            int iterations = Math.min(slice, budget);
+            budget -= iterations;
+            dispatch(request, iterations);
+        }
+    }
+
+    public static interface PlanCallback {
+        /**
+         * Called on the main thread once planning has finished.
+         *
+         * @param plan
+         *            The plan, or null if no path could be found
+         */
+        void onPlanned(Path plan);
+    }
+
+    public static class PlanRequest {
+        private final PlanCallback callback;
+        private volatile boolean cancelled;
+        private boolean failed;
+        private int iterations;
+        private final int maxIterations;
+        private Path plan;
+        private final ChunkSnapshotBlockSource source;
+        private final AStarMachine<VectorNode, Path>.AStarState state;
+
+        private PlanRequest(AStarMachine<VectorNode, Path>.AStarState state, ChunkSnapshotBlockSource source,
+                int maxIterations, PlanCallback callback) {
+            this.state = state;
+            this.source = source;
+            this.maxIterations = maxIterations;
+            this.callback = callback;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void step(int stepIterations) {
+            plan = ASTAR.run(state, stepIterations);
+            if (plan != null)
+                return;
+            iterations += stepIterations;
+            if (state.isEmpty() || (maxIterations > 0 && iterations > maxIterations)) {
+                failed = true;
+            }
+        }
+    }
+
+    private static void initPlanner() {
+        if (TASK != null) {
+            TASK.cancel();
+        }
+        PLANNER = new AsyncAStarPlanner(Math.max(1, Setting.ASYNC_PATHFINDING_THREADS.asInt()));
+        TASK = Bukkit.getScheduler().runTaskTimer(CitizensAPI.getPlugin(), PLANNER, 1, 1);
+    }
+
+    public static void shutdown() {
+        if (TASK != null) {
+            TASK.cancel();
+            TASK = null;
+        }
+        if (PLANNER != null) {
+            PLANNER.pending.clear();
+            PLANNER.executor.shutdownNow();
+            try {
+                PLANNER.executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            PLANNER = null;
+        }
+    }
+
+    /**
+     * Queues a search from the given start node. The snapshot is released once the search finishes or is cancelled.
+     *
+     * @param goal
+     *            The search goal
+     * @param start
+     *            The start node, which must read blocks from the given source
+     * @param source
+     *            The block snapshot
+     * @param callback
+     *            Invoked on the main thread with the result
+     * @return A handle that can be used to cancel the search
+     */
+    public static PlanRequest submit(VectorGoal goal, VectorNode start, ChunkSnapshotBlockSource source,
+            PlanCallback callback) {
+        if (PLANNER == null) {
+            initPlanner();
+        }
+        PlanRequest request = new PlanRequest(ASTAR.getStateFor(goal, start), source,
+                Setting.MAXIMUM_ASTAR_ITERATIONS.asInt(), callback);
+        PLANNER.pending.add(request);
+        return request;
+    }
+
+    private static final AStarMachine<VectorNode, Path> ASTAR = AStarMachine.createWithDefaultStorage();
+    private static final int MINIMUM_SLICE = 250;
+    private static AsyncAStarPlanner PLANNER;
+    private static BukkitTask TASK;
+}
@@ -0,0 +1,22 @@
+package net.citizensnpcs.npc.ai;
+
+import org.bukkit.util.Vector;
+
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.astar.pathfinder.MinecraftBlockExaminer;
+import net.citizensnpcs.api.astar.pathfinder.PathPoint;
+
+/**
+ * A {@link MinecraftBlockExaminer} that rejects cells the {@link WalkabilityCache} already knows are blocked before
+ * falling back to the per-block checks.
+ */
+public class CachedBlockExaminer extends MinecraftBlockExaminer {
+    @Override
+    public PassableState isPassable(BlockSource source, PathPoint point) {
+        Vector pos = point.getVector();
+        int bits = WalkabilityCache.get(source.getWorld(), pos.getBlockX(), pos.getBlockY(), pos.getBlockZ());
+        if (bits != -1 && (bits & WalkabilityCache.BLOCKED) != 0)
+            return PassableState.UNPASSABLE;
+        return super.isPassable(source, point);
+    }
+}
@@ -0,0 +1,442 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.util.Vector;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.astar.AStarGoal;
+import net.citizensnpcs.api.astar.AStarNode;
+import net.citizensnpcs.api.astar.Agent;
+import net.citizensnpcs.api.astar.Plan;
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.astar.pathfinder.MinecraftBlockExaminer;
+import net.citizensnpcs.npc.NPCTickScheduler;
+
+/**
+ * A coarse navigation graph over 16x16x16 chunk sections. Each section is split into connected components of
+ * standable cells, and every walkable crossing into a neighbouring section is recorded as a portal. Searching the graph
+ * moves between portals, assuming any two points in the same component are connected, which is refined later by the
+ * block-level pathfinder.
+ *
+ * <p>
+ * Sections are computed lazily from the {@link ChunkSnapshotCache} and kept until a nearby block changes. Computing a
+ * section reads every block in it, so searches should check {@link #hasComputeBudget()} before expanding further; the
+ * budget is shared by every search and resets each tick. All methods must be called from the main thread.
+ * </p>
+ */
+public class ChunkPortalGraph {
+    private ChunkPortalGraph() {
+    }
+
+    public static class PortalGoal implements AStarGoal<PortalNode> {
+        private final int x, y, z;
+
+        public PortalGoal(Location dest) {
+            this.x = dest.getBlockX();
+            this.y = dest.getBlockY();
+            this.z = dest.getBlockZ();
+        }
+
+        @Override
+        public float g(PortalNode from, PortalNode to) {
+            return to.cost;
+        }
+
+        @Override
+        public float getInitialCost(PortalNode node) {
+            return h(node);
+        }
+
+        @Override
+        public float h(PortalNode from) {
+            return distance(from.x, from.y, from.z, x, y, z);
+        }
+
+        @Override
+        public boolean isFinished(PortalNode node) {
+            return node.x == x && node.y == y && node.z == z;
+        }
+    }
+
+    public static class PortalNode extends AStarNode {
+        private final float cost;
+        private final PortalGoal goal;
+        private final World world;
+        private final int x, y, z;
+
+        private PortalNode(PortalNode parent, World world, PortalGoal goal, int x, int y, int z, float cost) {
+            super(parent);
+            this.world = world;
+            this.goal = goal;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.cost = cost;
+        }
+
+        public PortalNode(World world, PortalGoal goal, Location start) {
+            this(null, world, goal, start.getBlockX(), start.getBlockY(), start.getBlockZ(), 0);
+        }
+
+        @Override
+        public Plan buildPlan() {
+            return new PortalPlan(this.<PortalNode> getParents());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            PortalNode other = (PortalNode) obj;
+            return x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public Iterable<AStarNode> getNeighbours() {
+            if (y < 0 || y > 255)
+                return Collections.emptyList();
+            Section section = getSection(world, x >> 4, y >> 4, z >> 4);
+            int component = section.getComponent(x, y, z);
+            List<AStarNode> neighbours = Lists.newArrayList();
+            if ((goal.x >> 4) == (x >> 4) && (goal.y >> 4) == (y >> 4) && (goal.z >> 4) == (z >> 4)) {
+                int goalComponent = section.getComponent(goal.x, goal.y, goal.z);
+                if (goalComponent == -1 || goalComponent == component) {
+                    neighbours.add(new PortalNode(this, world, goal, goal.x, goal.y, goal.z,
+                            distance(x, y, z, goal.x, goal.y, goal.z)));
+                }
+            }
+            if (component == -1)
+                return neighbours;
+            for (Portal portal : section.portals) {
+                if (portal.component != component)
+                    continue;
+                float cost = distance(x, y, z, portal.fromX, portal.fromY, portal.fromZ)
+                        + distance(portal.fromX, portal.fromY, portal.fromZ, portal.toX, portal.toY, portal.toZ);
+                neighbours.add(new PortalNode(this, world, goal, portal.toX, portal.toY, portal.toZ, cost));
+            }
+            return neighbours;
+        }
+
+        @Override
+        public int hashCode() {
+            return (x * 31 + y) * 31 + z;
+        }
+    }
+
+    public static class PortalPlan implements Plan {
+        private final List<Vector> path;
+
+        private PortalPlan(Iterable<PortalNode> nodes) {
+            this.path = Lists.newArrayList();
+            for (PortalNode node : nodes) {
+                path.add(new Vector(node.x, node.y, node.z));
+            }
+        }
+
+        /**
+         * @return the coarse waypoints from start to goal, one per section crossing
+         */
+        public List<Vector> getPath() {
+            return path;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return path.isEmpty();
+        }
+
+        @Override
+        public void update(Agent agent) {
+            if (!path.isEmpty()) {
+                path.remove(0);
+            }
+        }
+    }
+
+    private static class Portal {
+        private final int component;
+        private final int fromX, fromY, fromZ;
+        private final int toX, toY, toZ;
+
+        private Portal(int component, int fromX, int fromY, int fromZ, int toX, int toY, int toZ) {
+            this.component = component;
+            this.fromX = fromX;
+            this.fromY = fromY;
+            this.fromZ = fromZ;
+            this.toX = toX;
+            this.toY = toY;
+            this.toZ = toZ;
+        }
+    }
+
+    private static class Section {
+        private final short[] components;
+        private final long created;
+        private final boolean missingChunks;
+        private final List<Portal> portals;
+
+        private Section(short[] components, List<Portal> portals, boolean missingChunks) {
+            this.components = components;
+            this.portals = portals;
+            this.missingChunks = missingChunks;
+            this.created = System.currentTimeMillis();
+        }
+
+        private int getComponent(int x, int y, int z) {
+            return components[ChunkSectionSnapshot.index(x & 15, y & 15, z & 15)];
+        }
+
+        private boolean isValid() {
+            return !missingChunks || System.currentTimeMillis() - created < MISSING_CHUNK_RETRY_MS;
+        }
+    }
+
+    private static class SectionCoord {
+        private final UUID world;
+        private final int x, y, z;
+
+        private SectionCoord(UUID world, int x, int y, int z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            SectionCoord other = (SectionCoord) obj;
+            return x == other.x && y == other.y && z == other.z && world.equals(other.world);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((world.hashCode() * 31 + x) * 31 + y) * 31 + z;
+        }
+    }
+
+    private static void addToRun(List<List<Portal>> runs, Portal portal) {
+        for (List<Portal> run : runs) {
+            Portal last = run.get(run.size() - 1);
+            if (last.component != portal.component || (last.toX - last.fromX) != (portal.toX - portal.fromX)
+                    || (last.toZ - last.fromZ) != (portal.toZ - portal.fromZ)
+                    || (last.toY >> 4) != (portal.toY >> 4))
+                continue;
+            if (Math.abs(last.fromX - portal.fromX) <= 1 && Math.abs(last.fromY - portal.fromY) <= 1
+                    && Math.abs(last.fromZ - portal.fromZ) <= 1) {
+                run.add(portal);
+                return;
+            }
+        }
+        runs.add(Lists.newArrayList(portal));
+    }
+
+    public static void clear() {
+        SECTIONS.clear();
+    }
+
+    private static Section compute(World world, int sx, int sy, int sz) {
+        if (COMPUTED_TICK != NPCTickScheduler.getTick()) {
+            COMPUTED_TICK = NPCTickScheduler.getTick();
+            COMPUTED = 0;
+        }
+        COMPUTED++;
+        int baseX = sx << 4, baseY = sy << 4, baseZ = sz << 4;
+        NMSChunkBlockSource source = new NMSChunkBlockSource(new Location(world, baseX + 8, baseY + 8, baseZ + 8),
+                9);
+        short[] components = new short[ChunkSectionSnapshot.SECTION_SIZE];
+        for (int i = 0; i < components.length; i++) {
+            int x = i & 15, z = (i >> 4) & 15, y = i >> 8;
+            components[i] = (short) (isStandable(source, baseX + x, baseY + y, baseZ + z) ? 0 : -1);
+        }
+        short next = 1;
+        int[] queue = new int[ChunkSectionSnapshot.SECTION_SIZE];
+        for (int i = 0; i < components.length; i++) {
+            if (components[i] != 0)
+                continue;
+            int head = 0, tail = 0;
+            queue[tail++] = i;
+            components[i] = next;
+            while (head < tail) {
+                int current = queue[head++];
+                int x = current & 15, z = (current >> 4) & 15, y = current >> 8;
+                for (int[] direction : DIRECTIONS) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        int nx = x + direction[0], ny = y + dy, nz = z + direction[1];
+                        if (nx < 0 || nx > 15 || ny < 0 || ny > 15 || nz < 0 || nz > 15)
+                            continue;
+                        int index = ChunkSectionSnapshot.index(nx, ny, nz);
+                        if (components[index] != 0)
+                            continue;
+                        components[index] = next;
+                        queue[tail++] = index;
+                    }
+                }
+            }
+            next++;
+        }
+        List<Portal> portals = Lists.newArrayList();
+        List<List<Portal>> runs = Lists.newArrayList();
+        for (int i = 0; i < components.length; i++) {
+            if (components[i] <= 0)
+                continue;
+            int x = i & 15, z = (i >> 4) & 15, y = i >> 8;
+            if (x != 0 && x != 15 && y != 0 && y != 15 && z != 0 && z != 15)
+                continue;
+            for (int[] direction : DIRECTIONS) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    int nx = x + direction[0], ny = y + dy, nz = z + direction[1];
+                    if (nx >= 0 && nx <= 15 && ny >= 0 && ny <= 15 && nz >= 0 && nz <= 15)
+                        continue;
+                    if (!isStandable(source, baseX + nx, baseY + ny, baseZ + nz))
+                        continue;
+                    addToRun(runs, new Portal(components[i], baseX + x, baseY + y, baseZ + z, baseX + nx,
+                            baseY + ny, baseZ + nz));
+                }
+            }
+        }
+        for (List<Portal> run : runs) {
+            portals.add(run.get(run.size() / 2));
+        }
+        source.release();
+        return new Section(components, portals, source.hasMissingChunks());
+    }
+
+    private static float distance(int x1, int y1, int z1, int x2, int y2, int z2) {
+        int dx = x1 - x2, dy = y1 - y2, dz = z1 - z2;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Returns the standable cell nearest to the given location, looking at most one block away horizontally and
+     * between one block below and two above. NPCs standing on partial blocks such as slabs, carpet or farmland are
+     * inside a cell that isn't standable itself, so searches should start and end at the snapped cell. Returns the
+     * block location unchanged if no standable cell is found.
+     */
+    public static Location findStandable(Location location) {
+        World world = location.getWorld();
+        int bx = location.getBlockX(), by = location.getBlockY(), bz = location.getBlockZ();
+        int best = Integer.MAX_VALUE, bestX = bx, bestY = by, bestZ = bz;
+        for (int dy = -1; dy <= 2; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    int distance = dx * dx + dy * dy + dz * dz;
+                    int x = bx + dx, y = by + dy, z = bz + dz;
+                    if (distance >= best || y < 1 || y > 254)
+                        continue;
+                    if (getSection(world, x >> 4, y >> 4, z >> 4).getComponent(x, y, z) <= 0)
+                        continue;
+                    best = distance;
+                    bestX = x;
+                    bestY = y;
+                    bestZ = z;
+                }
+            }
+        }
+        return new Location(world, bestX, bestY, bestZ);
+    }
+
+    private static Section getSection(World world, int x, int y, int z) {
+        SectionCoord coord = new SectionCoord(world.getUID(), x, y, z);
+        Section section = SECTIONS.get(coord);
+        if (section == null || !section.isValid()) {
+            section = compute(world, x, y, z);
+            SECTIONS.put(coord, section);
+        }
+        return section;
+    }
+
+    /**
+     * @return the number of sections currently cached
+     */
+    public static int getSize() {
+        return SECTIONS.size();
+    }
+
+    /**
+     * Returns whether searches may compute more sections this tick. Expanding a single node computes at most one
+     * section, so a search that checks this before each iteration stays within the budget.
+     */
+    public static boolean hasComputeBudget() {
+        int budget = Setting.HIERARCHICAL_PATHFINDING_SECTIONS_PER_TICK.asInt();
+        return budget <= 0 || COMPUTED_TICK != NPCTickScheduler.getTick() || COMPUTED < budget;
+    }
+
+    /**
+     * Drops every section whose standable cells or portals could depend on the given block.
+     */
+    public static void invalidate(Block block) {
+        if (SECTIONS.isEmpty())
+            return;
+        UUID world = block.getWorld().getUID();
+        for (int dx = -1; dx <= 1; dx += 2) {
+            for (int dy = -1; dy <= 1; dy += 2) {
+                for (int dz = -1; dz <= 1; dz += 2) {
+                    SECTIONS.remove(new SectionCoord(world, (block.getX() + dx) >> 4, (block.getY() + dy) >> 4,
+                            (block.getZ() + dz) >> 4));
+                }
+            }
+        }
+    }
+
+    public static void invalidateWorld(UUID world) {
+        Iterator<SectionCoord> itr = SECTIONS.keySet().iterator();
+        while (itr.hasNext()) {
+            if (itr.next().world.equals(world)) {
+                itr.remove();
+            }
+        }
+    }
+
+    private static boolean isStandable(BlockSource source, int x, int y, int z) {
+        if (y < 1 || y > 254)
+            return false;
+        int bits = WalkabilityCache.get(source.getWorld(), x, y, z);
+        if (bits != -1)
+            return (bits & WalkabilityCache.STANDABLE) != 0;
+        return MinecraftBlockExaminer.canStandOn(source.getMaterialAt(x, y - 1, z))
+                && MinecraftBlockExaminer.canStandIn(source.getMaterialAt(x, y, z))
+                && MinecraftBlockExaminer.canStandIn(source.getMaterialAt(x, y + 1, z));
+    }
+
+    /**
+     * Flattens a coarse plan into block locations, skipping the start point.
+     */
+    public static List<Vector> toWaypoints(PortalPlan plan) {
+        return Lists.newArrayList(Iterables.skip(plan.getPath(), 1));
+    }
+
+    private static int COMPUTED;
+    private static long COMPUTED_TICK = -1;
+    private static final int[][] DIRECTIONS = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+    private static final int MAX_SECTIONS = 4096;
+    private static final long MISSING_CHUNK_RETRY_MS = 10000;
+    private static final Map<SectionCoord, Section> SECTIONS = new LinkedHashMap<SectionCoord, Section>(256, 0.75F,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SectionCoord, Section> eldest) {
+            return size() > MAX_SECTIONS;
+        }
+    };
+}
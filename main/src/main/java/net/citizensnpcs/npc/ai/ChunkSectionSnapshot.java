@@ -0,0 +1,58 @@
+package net.citizensnpcs.npc.ai;
+
+import net.citizensnpcs.api.util.BoundingBox;
+
+/**
+ * An immutable copy of a 16x16x16 chunk section. Stores combined block ids (<code>id << 4 | data</code>) and an index
+ * into a collision box palette shared by the sections of the same chunk. Palette boxes are relative to the block
+ * origin.
+ */
+public class ChunkSectionSnapshot {
+    private final byte[] boxes;
+    private final char[] ids;
+    private final BoundingBox[] palette;
+
+    ChunkSectionSnapshot(char[] ids, byte[] boxes, BoundingBox[] palette) {
+        this.ids = ids;
+        this.boxes = boxes;
+        this.palette = palette;
+    }
+
+    byte[] getBoxArray() {
+        return boxes;
+    }
+
+    public int getBlockData(int x, int y, int z) {
+        return ids[index(x, y, z)] & 15;
+    }
+
+    public int getBlockId(int x, int y, int z) {
+        return ids[index(x, y, z)] >> 4;
+    }
+
+    /**
+     * @return the collision box of the block relative to its origin
+     */
+    public BoundingBox getCollisionBox(int x, int y, int z) {
+        return palette[boxes[index(x, y, z)] & 0xFF];
+    }
+
+    char[] getIdArray() {
+        return ids;
+    }
+
+    public boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    static int index(int x, int y, int z) {
+        return (y << 8) | (z << 4) | x;
+    }
+
+    static final BoundingBox EMPTY_BOX = new BoundingBox(0, 0, 0, 0, 0, 0);
+    static final BoundingBox FULL_BOX = new BoundingBox(0, 0, 0, 1, 1, 1);
+    static final BoundingBox[] DEFAULT_PALETTE = { EMPTY_BOX, FULL_BOX };
+    public static final ChunkSectionSnapshot EMPTY = new ChunkSectionSnapshot(new char[4096], new byte[4096],
+            DEFAULT_PALETTE);
+    public static final int SECTION_SIZE = 4096;
+}
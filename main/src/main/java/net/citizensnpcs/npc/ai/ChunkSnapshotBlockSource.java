@@ -0,0 +1,118 @@
+package net.citizensnpcs.npc.ai;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.util.BoundingBox;
+import net.citizensnpcs.npc.ai.ChunkSnapshotCache.CachedChunk;
+
+/**
+ * A {@link BlockSource} that reads copied {@link ChunkSectionSnapshot}s through the {@link ChunkSnapshotCache}. Safe to
+ * read from any thread until {@link #release()} is called.
+ */
+public class ChunkSnapshotBlockSource extends BlockSource {
+    private final int chunkX;
+    private final CachedChunk[][] chunks;
+    private final int chunkZ;
+    private final boolean[][] lazy;
+    private boolean missing;
+    private boolean released;
+    private final World world;
+
+    public ChunkSnapshotBlockSource(Location location, float radius) {
+        this(location, radius, false);
+    }
+
+    /**
+     * @param lazy
+     *            Whether to take snapshots on first access instead of up front. Lazy sources may only be read from
+     *            the main thread.
+     */
+    protected ChunkSnapshotBlockSource(Location location, float radius, boolean lazy) {
+        this.world = location.getWorld();
+        int r = (int) Math.ceil(radius);
+        this.chunkX = (location.getBlockX() - r) >> 4;
+        this.chunkZ = (location.getBlockZ() - r) >> 4;
+        int maxChunkX = (location.getBlockX() + r) >> 4;
+        int maxChunkZ = (location.getBlockZ() + r) >> 4;
+        this.chunks = new CachedChunk[maxChunkX - chunkX + 1][maxChunkZ - chunkZ + 1];
+        this.lazy = new boolean[chunks.length][chunks[0].length];
+        for (int x = 0; x < chunks.length; x++) {
+            for (int z = 0; z < chunks[x].length; z++) {
+                if (lazy) {
+                    this.lazy[x][z] = true;
+                } else {
+                    acquire(x, z);
+                }
+            }
+        }
+    }
+
+    private void acquire(int x, int z) {
+        chunks[x][z] = ChunkSnapshotCache.acquire(world, chunkX + x, chunkZ + z);
+        if (chunks[x][z] == null) {
+            missing = true;
+        }
+    }
+
+    @Override
+    public BoundingBox getCollisionBox(int x, int y, int z) {
+        ChunkSectionSnapshot section = getSection(x, y, z);
+        BoundingBox box = section == null ? ChunkSectionSnapshot.EMPTY_BOX
+                : section.getCollisionBox(x & 15, y & 15, z & 15);
+        return new BoundingBox(box.minX + x, box.minY + y, box.minZ + z, box.maxX + x, box.maxY + y, box.maxZ + z);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public Material getMaterialAt(int x, int y, int z) {
+        ChunkSectionSnapshot section = getSection(x, y, z);
+        if (section == null)
+            return Material.AIR;
+        Material type = Material.getMaterial(section.getBlockId(x & 15, y & 15, z & 15));
+        return type == null ? Material.AIR : type;
+    }
+
+    private ChunkSectionSnapshot getSection(int x, int y, int z) {
+        int dx = (x >> 4) - chunkX, dz = (z >> 4) - chunkZ;
+        if (y < 0 || y > 255 || dx < 0 || dz < 0 || dx >= chunks.length || dz >= chunks[dx].length)
+            return null;
+        if (lazy[dx][dz] && !released) {
+            lazy[dx][dz] = false;
+            acquire(dx, dz);
+        }
+        CachedChunk chunk = chunks[dx][dz];
+        return chunk == null ? null : chunk.getSection(y);
+    }
+
+    @Override
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * @return whether any chunk read so far wasn't loaded
+     */
+    public boolean hasMissingChunks() {
+        return missing;
+    }
+
+    /**
+     * Releases the underlying snapshots back to the {@link ChunkSnapshotCache}. Must be called on the main thread once
+     * no more reads will happen.
+     */
+    public void release() {
+        if (released)
+            return;
+        released = true;
+        for (CachedChunk[] row : chunks) {
+            for (CachedChunk chunk : row) {
+                if (chunk != null) {
+                    ChunkSnapshotCache.release(chunk);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.util.BoundingBox;
+import net.citizensnpcs.util.NMS;
+
+/**
+ * A world-level cache of {@link ChunkSectionSnapshot}s used by every pathfinding {@link ChunkSnapshotBlockSource}.
+ * Entries are invalidated on block changes and evicted least-recently-used first once the configured memory cap is
+ * exceeded. Cached chunks are reference counted so that section arrays are only recycled once every reader has
+ * released them. All methods must be called from the main thread.
+ *
+ * <p>
+ * Chunks are keyed by a packed long in a map per world and linked into an intrusive LRU list, so lookups and
+ * invalidations on block changes don't allocate.
+ * </p>
+ */
+public class ChunkSnapshotCache {
+    private long evictions;
+    private final Deque<byte[]> freeBoxes = new ArrayDeque<byte[]>();
+    private final Deque<char[]> freeIds = new ArrayDeque<char[]>();
+    private CachedChunk head;
+    private long hits;
+    private long invalidations;
+    private long memory;
+    private long misses;
+    private int size;
+    private CachedChunk tail;
+    private final Map<UUID, TLongObjectHashMap<CachedChunk>> worlds = Maps.newHashMap();
+
+    private ChunkSnapshotCache() {
+    }
+
+    private void append(CachedChunk chunk) {
+        chunk.prev = tail;
+        chunk.next = null;
+        if (tail == null) {
+            head = chunk;
+        } else {
+            tail.next = chunk;
+        }
+        tail = chunk;
+    }
+
+    private CachedChunk create(World world, int cx, int cz) {
+        Chunk chunk = world.getChunkAt(cx, cz);
+        ChunkSnapshot snapshot = chunk.getChunkSnapshot(false, false, false);
+        List<BoundingBox> palette = Lists.newArrayList(ChunkSectionSnapshot.DEFAULT_PALETTE);
+        TIntIntHashMap paletteIndex = new TIntIntHashMap();
+        ChunkSectionSnapshot[] sections = new ChunkSectionSnapshot[16];
+        char[][] ids = new char[16][];
+        byte[][] boxes = new byte[16][];
+        int filled = 0;
+        for (int sy = 0; sy < 16; sy++) {
+            if (snapshot.isSectionEmpty(sy))
+                continue;
+            filled++;
+            ids[sy] = freeIds.isEmpty() ? new char[ChunkSectionSnapshot.SECTION_SIZE] : freeIds.pop();
+            boxes[sy] = freeBoxes.isEmpty() ? new byte[ChunkSectionSnapshot.SECTION_SIZE] : freeBoxes.pop();
+            for (int y = 0; y < 16; y++) {
+                int by = (sy << 4) | y;
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        int id = snapshot.getBlockTypeId(x, by, z);
+                        int combined = id << 4 | snapshot.getBlockData(x, by, z);
+                        int index = ChunkSectionSnapshot.index(x, y, z);
+                        ids[sy][index] = (char) combined;
+                        boxes[sy][index] = (byte) getBoxIndex(chunk, x, by, z, id, combined, palette, paletteIndex);
+                    }
+                }
+            }
+        }
+        BoundingBox[] paletteArray = palette.toArray(new BoundingBox[palette.size()]);
+        for (int sy = 0; sy < 16; sy++) {
+            sections[sy] = ids[sy] == null ? ChunkSectionSnapshot.EMPTY
+                    : new ChunkSectionSnapshot(ids[sy], boxes[sy], paletteArray);
+        }
+        return new CachedChunk(world.getUID(), getKey(cx, cz), sections, filled * BYTES_PER_SECTION);
+    }
+
+    private void evict(CachedChunk chunk) {
+        unlink(chunk);
+        chunk.cached = false;
+        memory -= chunk.memory;
+        size--;
+        if (chunk.refs == 0) {
+            recycle(chunk);
+        }
+    }
+
+    private CachedChunk get(World world, int x, int z) {
+        UUID uuid = world.getUID();
+        TLongObjectHashMap<CachedChunk> chunks = worlds.get(uuid);
+        long key = getKey(x, z);
+        CachedChunk chunk = chunks == null ? null : chunks.get(key);
+        if (chunk != null) {
+            hits++;
+            if (chunk != tail) {
+                unlink(chunk);
+                append(chunk);
+            }
+            return chunk;
+        }
+        if (!world.isChunkLoaded(x, z))
+            return null;
+        misses++;
+        if (chunks == null) {
+            worlds.put(uuid, chunks = new TLongObjectHashMap<CachedChunk>());
+        }
+        chunk = create(world, x, z);
+        chunks.put(key, chunk);
+        append(chunk);
+        memory += chunk.memory;
+        size++;
+        trim();
+        return chunk;
+    }
+
+    @SuppressWarnings("deprecation")
+    private int getBoxIndex(Chunk chunk, int x, int y, int z, int id, int combined, List<BoundingBox> palette,
+            TIntIntHashMap paletteIndex) {
+        if (id == 0 || Material.getMaterial(id) == null)
+            return 0;
+        if (paletteIndex.containsKey(combined))
+            return paletteIndex.get(combined);
+        // non-solid blocks such as carpet, snow layers and lily pads still have a collision box, so every block type
+        // goes through NMS once. Only the vertical extent is used by examiners, which doesn't depend on neighbouring
+        // blocks, so one box per id and data value is enough
+        BoundingBox box = NMS.getCollisionBox(chunk.getBlock(x, y, z));
+        int bx = (chunk.getX() << 4) | x, bz = (chunk.getZ() << 4) | z;
+        BoundingBox local = new BoundingBox(box.minX - bx, box.minY - y, box.minZ - bz, box.maxX - bx,
+                box.maxY - y, box.maxZ - bz);
+        int index = palette.indexOf(local);
+        if (index == -1) {
+            if (palette.size() > 255) {
+                index = 1;
+            } else {
+                index = palette.size();
+                palette.add(local);
+            }
+        }
+        paletteIndex.put(combined, index);
+        return index;
+    }
+
+    private void recycle(CachedChunk chunk) {
+        for (ChunkSectionSnapshot section : chunk.sections) {
+            if (section.isEmpty() || freeIds.size() >= MAX_FREE_SECTIONS)
+                continue;
+            freeIds.push(section.getIdArray());
+            freeBoxes.push(section.getBoxArray());
+        }
+    }
+
+    private void remove(UUID world, long key) {
+        TLongObjectHashMap<CachedChunk> chunks = worlds.get(world);
+        if (chunks == null)
+            return;
+        CachedChunk chunk = chunks.remove(key);
+        if (chunk == null)
+            return;
+        if (chunks.isEmpty()) {
+            worlds.remove(world);
+        }
+        invalidations++;
+        evict(chunk);
+    }
+
+    private void trim() {
+        long max = Setting.PATHFINDING_CHUNK_CACHE_MEMORY.asLong() * 1024 * 1024;
+        while (memory > max && head != null) {
+            CachedChunk eldest = head;
+            TLongObjectHashMap<CachedChunk> chunks = worlds.get(eldest.world);
+            chunks.remove(eldest.key);
+            if (chunks.isEmpty()) {
+                worlds.remove(eldest.world);
+            }
+            evictions++;
+            evict(eldest);
+        }
+    }
+
+    private void unlink(CachedChunk chunk) {
+        if (chunk.prev == null) {
+            head = chunk.next;
+        } else {
+            chunk.prev.next = chunk.next;
+        }
+        if (chunk.next == null) {
+            tail = chunk.prev;
+        } else {
+            chunk.next.prev = chunk.prev;
+        }
+        chunk.prev = chunk.next = null;
+    }
+
+    public static class CachedChunk {
+        private boolean cached = true;
+        private final long key;
+        private final long memory;
+        private CachedChunk next;
+        private CachedChunk prev;
+        private int refs;
+        private final ChunkSectionSnapshot[] sections;
+        private final UUID world;
+
+        private CachedChunk(UUID world, long key, ChunkSectionSnapshot[] sections, long memory) {
+            this.world = world;
+            this.key = key;
+            this.sections = sections;
+            this.memory = memory;
+        }
+
+        public ChunkSectionSnapshot getSection(int y) {
+            return sections[y >> 4];
+        }
+    }
+
+    /**
+     * Returns a snapshot of the given chunk, taking one if it isn't cached. Returns null if the chunk isn't loaded.
+     * Every successful call should be paired with a {@link #release(CachedChunk)} so the snapshot can be recycled
+     * after eviction.
+     */
+    public static CachedChunk acquire(World world, int x, int z) {
+        CachedChunk chunk = CACHE.get(world, x, z);
+        if (chunk != null) {
+            chunk.refs++;
+        }
+        return chunk;
+    }
+
+    public static void clear() {
+        while (CACHE.head != null) {
+            CACHE.evict(CACHE.head);
+        }
+        CACHE.worlds.clear();
+    }
+
+    public static long getEvictions() {
+        return CACHE.evictions;
+    }
+
+    public static long getHits() {
+        return CACHE.hits;
+    }
+
+    public static long getInvalidations() {
+        return CACHE.invalidations;
+    }
+
+    private static long getKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    public static long getMemoryUsage() {
+        return CACHE.memory;
+    }
+
+    public static long getMisses() {
+        return CACHE.misses;
+    }
+
+    public static int getSize() {
+        return CACHE.size;
+    }
+
+    public static void invalidate(Block block) {
+        if (CACHE.size == 0)
+            return;
+        CACHE.remove(block.getWorld().getUID(), getKey(block.getX() >> 4, block.getZ() >> 4));
+    }
+
+    public static void invalidate(Chunk chunk) {
+        if (CACHE.size == 0)
+            return;
+        CACHE.remove(chunk.getWorld().getUID(), getKey(chunk.getX(), chunk.getZ()));
+    }
+
+    public static void invalidateWorld(UUID world) {
+        TLongObjectHashMap<CachedChunk> chunks = CACHE.worlds.remove(world);
+        if (chunks == null)
+            return;
+        for (CachedChunk chunk : chunks.valueCollection()) {
+            CACHE.invalidations++;
+            CACHE.evict(chunk);
+        }
+    }
+
+    public static void release(CachedChunk chunk) {
+        if (--chunk.refs > 0 || chunk.cached)
+            return;
+        CACHE.recycle(chunk);
+    }
+
+    private static final long BYTES_PER_SECTION = ChunkSectionSnapshot.SECTION_SIZE * 3;
+    private static final ChunkSnapshotCache CACHE = new ChunkSnapshotCache();
+    private static final int MAX_FREE_SECTIONS = 256;
+}
@@ -1,6 +1,7 @@
 package net.citizensnpcs.npc.ai;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -12,6 +13,7 @@ import org.bukkit.entity.LivingEntity;
 import org.bukkit.util.Vector;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.ai.EntityTarget;
@@ -29,7 +31,6 @@ import net.citizensnpcs.api.ai.event.NavigationReplaceEvent;
 import net.citizensnpcs.api.ai.event.NavigationStuckEvent;
 import net.citizensnpcs.api.ai.event.NavigatorCallback;
 import net.citizensnpcs.api.astar.pathfinder.DoorExaminer;
-import net.citizensnpcs.api.astar.pathfinder.MinecraftBlockExaminer;
 import net.citizensnpcs.api.astar.pathfinder.SwimmingExaminer;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.util.DataKey;
@@ -45,7 +46,7 @@ public class CitizensNavigator implements Navigator, Runnable {
             .distanceMargin(Setting.DEFAULT_DISTANCE_MARGIN.asDouble())
             .pathDistanceMargin(Setting.DEFAULT_PATH_DISTANCE_MARGIN.asDouble())
             .stationaryTicks(Setting.DEFAULT_STATIONARY_TICKS.asInt()).stuckAction(TeleportStuckAction.INSTANCE)
-            .examiner(new MinecraftBlockExaminer()).useNewPathfinder(Setting.USE_NEW_PATHFINDER.asBoolean());
+            .examiner(new CachedBlockExaminer()).useNewPathfinder(Setting.USE_NEW_PATHFINDER.asBoolean());
     private PathStrategy executing;
     private int lastX, lastY, lastZ;
     private NavigatorParameters localParams = defaultParams;
@@ -106,6 +107,12 @@ public class CitizensNavigator implements Navigator, Runnable {
         return executing != null;
     }
 
+    private boolean isOutOfRange() {
+        if (executing instanceof HierarchicalNavigationStrategy || executing instanceof FlowFieldNavigationStrategy)
+            return false;
+        return Math.pow(localParams.range(), 2) < npc.getStoredLocation().distanceSquared(getTargetAsLocation());
+    }
+
     @Override
     public boolean isPaused() {
         return paused;
@@ -147,8 +154,7 @@ public class CitizensNavigator implements Navigator, Runnable {
         updateMountedStatus();
         if (!isNavigating() || !npc.isSpawned() || isPaused())
             return;
-        if (!npc.getStoredLocation().getWorld().equals(getTargetAsLocation().getWorld())
-                || Math.pow(localParams.range(), 2) < npc.getStoredLocation().distanceSquared(getTargetAsLocation())) {
+        if (!npc.getStoredLocation().getWorld().equals(getTargetAsLocation().getWorld()) || isOutOfRange()) {
             stopNavigating(CancelReason.STUCK);
             return;
         }
@@ -227,6 +233,12 @@ public class CitizensNavigator implements Navigator, Runnable {
         switchStrategyTo(newStrategy);
     }
 
+    private void setTarget(FlowField field, Location target) {
+        switchParams();
+        updatePathfindingRange();
+        switchStrategyTo(new FlowFieldNavigationStrategy(npc, field, target, localParams));
+    }
+
     @Override
     public void setTarget(Iterable<Vector> path) {
         if (!npc.isSpawned())
@@ -263,6 +275,8 @@ public class CitizensNavigator implements Navigator, Runnable {
         PathStrategy newStrategy;
         if (npc.isFlyable()) {
             newStrategy = new FlyingAStarNavigationStrategy(npc, target, localParams);
+        } else if (useHierarchicalPathfinder(target)) {
+            newStrategy = new HierarchicalNavigationStrategy(npc, target, localParams);
         } else if (localParams.useNewPathfinder() || !(npc.getEntity() instanceof LivingEntity)
                 || npc.getEntity() instanceof ArmorStand) {
             newStrategy = new AStarNavigationStrategy(npc, target, localParams);
@@ -398,6 +412,62 @@ public class CitizensNavigator implements Navigator, Runnable {
         return false;
     }
 
+    private boolean useHierarchicalPathfinder(Location target) {
+        if (!Setting.HIERARCHICAL_PATHFINDING.asBoolean())
+            return false;
+        Location location = npc.getEntity().getLocation(STATIONARY_LOCATION);
+        return location.getWorld().equals(target.getWorld()) && location
+                .distanceSquared(target) > Math.pow(Setting.HIERARCHICAL_PATHFINDING_DISTANCE.asDouble(), 2);
+    }
+
+    /**
+     * Sends a group of NPCs to the same destination. Ground NPCs share a single {@link FlowField} covering the group and
+     * the destination, falling back to individual navigation when the region would be too large.
+     */
+    public static void setTarget(Collection<NPC> npcs, Location target) {
+        List<NPC> group = Lists.newArrayList();
+        int minX = target.getBlockX(), minY = target.getBlockY(), minZ = target.getBlockZ();
+        int maxX = minX, maxY = minY, maxZ = minZ;
+        for (NPC npc : npcs) {
+            if (!npc.isSpawned())
+                continue;
+            Location location = npc.getEntity().getLocation(STATIONARY_LOCATION);
+            if (npc.isFlyable() || !(npc.getNavigator() instanceof CitizensNavigator)
+                    || !location.getWorld().equals(target.getWorld())) {
+                npc.getNavigator().setTarget(target);
+                continue;
+            }
+            group.add(npc);
+            minX = Math.min(minX, location.getBlockX());
+            minY = Math.min(minY, location.getBlockY());
+            minZ = Math.min(minZ, location.getBlockZ());
+            maxX = Math.max(maxX, location.getBlockX());
+            maxY = Math.max(maxY, location.getBlockY());
+            maxZ = Math.max(maxZ, location.getBlockZ());
+        }
+        if (group.isEmpty())
+            return;
+        minX -= FLOW_FIELD_MARGIN;
+        minZ -= FLOW_FIELD_MARGIN;
+        maxX += FLOW_FIELD_MARGIN;
+        maxZ += FLOW_FIELD_MARGIN;
+        minY -= FLOW_FIELD_MARGIN / 2;
+        maxY += FLOW_FIELD_MARGIN / 2;
+        long cells = (long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+        if (group.size() == 1 || cells > Setting.FLOW_FIELD_MAX_CELLS.asInt()) {
+            for (NPC npc : group) {
+                npc.getNavigator().setTarget(target);
+            }
+            return;
+        }
+        target = target.clone();
+        FlowField field = new FlowField(target, minX, minY, minZ, maxX, maxY, maxZ);
+        for (NPC npc : group) {
+            ((CitizensNavigator) npc.getNavigator()).setTarget(field, target);
+        }
+    }
+
+    private static final int FLOW_FIELD_MARGIN = 8;
     private static final Location STATIONARY_LOCATION = new Location(null, 0, 0, 0);
     private static int UNINITIALISED_SPEED = Integer.MIN_VALUE;
 }
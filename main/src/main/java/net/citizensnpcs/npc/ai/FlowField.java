@@ -0,0 +1,338 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+
+import com.google.common.collect.Lists;
+
+import net.citizensnpcs.api.astar.pathfinder.BlockSource;
+import net.citizensnpcs.api.astar.pathfinder.MinecraftBlockExaminer;
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.npc.NPCTickScheduler;
+
+/**
+ * A reverse Dijkstra distance field from a single destination over a bounded box of cells. Every NPC in a group reads
+ * the same field and walks downhill, so the cost depends on the size of the region rather than the number of NPCs.
+ * The field is computed incrementally; a cell can be followed as soon as its distance has been settled. Members are
+ * bucketed into columns of the field once per tick so that separation only compares neighbouring members.
+ */
+public class FlowField {
+    private int[] bucketHeads;
+    private NPC[] bucketMembers;
+    private int[] bucketNext;
+    private double[] bucketPositions;
+    private final int bucketsX, bucketsZ;
+    private long bucketTick = -1;
+    private final float[] distance;
+    private long[] heap = new long[256];
+    private int heapSize;
+    private final List<NPC> members = Lists.newArrayList();
+    private final int minX, minY, minZ;
+    private final int sizeX, sizeY, sizeZ;
+    private NMSChunkBlockSource source;
+    private final byte[] standable;
+    private final World world;
+
+    public FlowField(Location destination, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        this.world = destination.getWorld();
+        this.minX = minX;
+        this.minY = Math.max(0, minY);
+        this.minZ = minZ;
+        this.sizeX = maxX - minX + 1;
+        this.sizeY = Math.min(255, maxY) - this.minY + 1;
+        this.sizeZ = maxZ - minZ + 1;
+        this.bucketsX = (sizeX + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        this.bucketsZ = (sizeZ + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        this.distance = new float[sizeX * sizeY * sizeZ];
+        this.standable = new byte[distance.length];
+        Arrays.fill(distance, Float.POSITIVE_INFINITY);
+        Location centre = new Location(world, minX + sizeX / 2, this.minY + sizeY / 2, minZ + sizeZ / 2);
+        this.source = new NMSChunkBlockSource(centre, Math.max(sizeX, sizeZ) / 2 + 1);
+        int goal = getIndex(destination.getBlockX(), destination.getBlockY(), destination.getBlockZ());
+        if (goal != -1 && !isStandable(goal)) {
+            int below = getIndex(destination.getBlockX(), destination.getBlockY() - 1, destination.getBlockZ());
+            goal = below != -1 && isStandable(below) ? below : goal;
+        }
+        if (goal != -1) {
+            distance[goal] = 0;
+            push(goal, 0);
+        }
+    }
+
+    void addMember(NPC npc) {
+        members.add(npc);
+        bucketTick = -1;
+    }
+
+    private void bucket() {
+        long tick = NPCTickScheduler.getTick();
+        if (bucketTick == tick)
+            return;
+        bucketTick = tick;
+        if (bucketHeads == null) {
+            bucketHeads = new int[bucketsX * bucketsZ];
+        }
+        if (bucketMembers == null || bucketMembers.length < members.size()) {
+            int capacity = Math.max(16, members.size());
+            bucketMembers = new NPC[capacity];
+            bucketNext = new int[capacity];
+            bucketPositions = new double[capacity * 3];
+        }
+        Arrays.fill(bucketHeads, -1);
+        Arrays.fill(bucketMembers, null);
+        for (int i = 0; i < members.size(); i++) {
+            NPC npc = members.get(i);
+            if (!npc.isSpawned() || npc.getEntity().getWorld() != world)
+                continue;
+            Location location = npc.getEntity().getLocation(MEMBER_LOCATION);
+            int bucket = getBucket(location.getBlockX(), location.getBlockZ());
+            bucketMembers[i] = npc;
+            bucketPositions[i * 3] = location.getX();
+            bucketPositions[i * 3 + 1] = location.getY();
+            bucketPositions[i * 3 + 2] = location.getZ();
+            bucketNext[i] = bucketHeads[bucket];
+            bucketHeads[bucket] = i;
+        }
+    }
+
+    /**
+     * Settles up to the given number of cells.
+     */
+    public void compute(int iterations) {
+        while (heapSize > 0 && iterations-- > 0) {
+            long top = pop();
+            int index = (int) top;
+            float dist = Float.intBitsToFloat((int) (top >>> 32));
+            if (dist > distance[index])
+                continue;
+            int x = index % sizeX, z = (index / sizeX) % sizeZ, y = index / (sizeX * sizeZ);
+            for (int[] direction : DIRECTIONS) {
+                int dx = direction[0], dz = direction[1];
+                boolean diagonal = dx != 0 && dz != 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    if (diagonal && dy != 0)
+                        continue;
+                    int neighbour = getLocalIndex(x + dx, y + dy, z + dz);
+                    if (neighbour == -1 || !isStandable(neighbour))
+                        continue;
+                    if (diagonal && (!isStandable(getLocalIndex(x + dx, y, z))
+                            || !isStandable(getLocalIndex(x, y, z + dz))))
+                        continue;
+                    float cost = dist + (diagonal ? DIAGONAL_COST : 1) + (dy != 0 ? CLIMB_COST : 0);
+                    if (cost < distance[neighbour]) {
+                        distance[neighbour] = cost;
+                        push(neighbour, cost);
+                    }
+                }
+            }
+        }
+        if (heapSize == 0 && source != null) {
+            source.release();
+            source = null;
+        }
+    }
+
+    // members outside the field are clamped into the edge buckets, which still puts them next to members near the edge
+    private int getBucket(int x, int z) {
+        int bx = Math.max(0, Math.min(sizeX - 1, x - minX)) / BUCKET_SIZE;
+        int bz = Math.max(0, Math.min(sizeZ - 1, z - minZ)) / BUCKET_SIZE;
+        return bz * bucketsX + bx;
+    }
+
+    /**
+     * Returns the settled distance from the given block to the destination.
+     *
+     * @return the distance, or {@link Float#POSITIVE_INFINITY} if the block is outside the field, unreachable or not
+     *         yet settled
+     */
+    public float getDistance(int x, int y, int z) {
+        int index = getIndex(x, y, z);
+        if (index == -1)
+            return Float.POSITIVE_INFINITY;
+        if (heapSize > 0 && distance[index] > Float.intBitsToFloat((int) (heap[0] >>> 32)))
+            return Float.POSITIVE_INFINITY;
+        return distance[index];
+    }
+
+    private int getIndex(int x, int y, int z) {
+        return getLocalIndex(x - minX, y - minY, z - minZ);
+    }
+
+    private int getLocalIndex(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ)
+            return -1;
+        return (y * sizeZ + z) * sizeX + x;
+    }
+
+    /**
+     * @return the NPCs currently following this field
+     */
+    public List<NPC> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the neighbouring block with the lowest settled distance, or null if there is no downhill step.
+     */
+    public Vector getNextStep(int x, int y, int z) {
+        float best = getDistance(x, y, z);
+        if (best == 0 || best == Float.POSITIVE_INFINITY)
+            return null;
+        Vector next = null;
+        for (int[] direction : DIRECTIONS) {
+            boolean diagonal = direction[0] != 0 && direction[1] != 0;
+            if (diagonal && (getDistance(x + direction[0], y, z) == Float.POSITIVE_INFINITY
+                    || getDistance(x, y, z + direction[1]) == Float.POSITIVE_INFINITY))
+                continue;
+            for (int dy = -1; dy <= 1; dy++) {
+                if (diagonal && dy != 0)
+                    continue;
+                float dist = getDistance(x + direction[0], y + dy, z + direction[1]);
+                if (dist < best) {
+                    best = dist;
+                    next = new Vector(x + direction[0], y + dy, z + direction[1]);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Follows the field downhill from the given block to the destination.
+     */
+    public List<Vector> getPath(int x, int y, int z) {
+        List<Vector> path = Lists.newArrayList();
+        Vector next = getNextStep(x, y, z);
+        while (next != null && path.size() < distance.length) {
+            path.add(next);
+            next = getNextStep(next.getBlockX(), next.getBlockY(), next.getBlockZ());
+        }
+        return path;
+    }
+
+    /**
+     * Returns the push steering the given member away from other members within the separation radius, so they don't
+     * stack on the same block. Only members in the surrounding buckets are compared.
+     */
+    public Vector getSeparation(NPC npc, Location current) {
+        bucket();
+        Vector push = new Vector();
+        int bucket = getBucket(current.getBlockX(), current.getBlockZ());
+        int bx = bucket % bucketsX, bz = bucket / bucketsX;
+        for (int z = Math.max(0, bz - 1); z <= Math.min(bucketsZ - 1, bz + 1); z++) {
+            for (int x = Math.max(0, bx - 1); x <= Math.min(bucketsX - 1, bx + 1); x++) {
+                for (int i = bucketHeads[z * bucketsX + x]; i != -1; i = bucketNext[i]) {
+                    NPC other = bucketMembers[i];
+                    if (other == npc)
+                        continue;
+                    double dX = current.getX() - bucketPositions[i * 3];
+                    double dZ = current.getZ() - bucketPositions[i * 3 + 2];
+                    double distance = Math.sqrt(dX * dX + dZ * dZ);
+                    if (distance >= SEPARATION_RADIUS || Math.abs(current.getY() - bucketPositions[i * 3 + 1]) > 1)
+                        continue;
+                    if (distance < 0.01) {
+                        dX = npc.getId() < other.getId() ? 0.1 : -0.1;
+                        distance = 0.1;
+                    }
+                    double strength = (SEPARATION_RADIUS - distance) / SEPARATION_RADIUS;
+                    push.setX(push.getX() + dX / distance * strength);
+                    push.setZ(push.getZ() + dZ / distance * strength);
+                }
+            }
+        }
+        return push;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * @return whether every reachable cell has been settled
+     */
+    public boolean isComplete() {
+        return heapSize == 0;
+    }
+
+    private boolean isStandable(int index) {
+        if (index == -1)
+            return false;
+        if (standable[index] == 0) {
+            int x = minX + index % sizeX, z = minZ + (index / sizeX) % sizeZ, y = minY + index / (sizeX * sizeZ);
+            standable[index] = isStandable(source, x, y, z) ? STANDABLE : BLOCKED;
+        }
+        return standable[index] == STANDABLE;
+    }
+
+    private long pop() {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= last)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+
+    private void push(int index, float dist) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        long entry = ((long) Float.floatToIntBits(dist) << 32) | index;
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent] <= entry)
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = entry;
+    }
+
+    void removeMember(NPC npc) {
+        members.remove(npc);
+        bucketTick = -1;
+        if (members.isEmpty() && source != null) {
+            source.release();
+            source = null;
+            heapSize = 0;
+        }
+    }
+
+    private static boolean isStandable(BlockSource source, int x, int y, int z) {
+        if (y < 1 || y > 254 || source == null)
+            return false;
+        int bits = WalkabilityCache.get(source.getWorld(), x, y, z);
+        if (bits != -1)
+            return (bits & WalkabilityCache.STANDABLE) != 0;
+        return MinecraftBlockExaminer.canStandOn(source.getMaterialAt(x, y - 1, z))
+                && MinecraftBlockExaminer.canStandIn(source.getMaterialAt(x, y, z))
+                && MinecraftBlockExaminer.canStandIn(source.getMaterialAt(x, y + 1, z));
+    }
+
+    private static final byte BLOCKED = 2;
+    // at least the separation radius, so only the surrounding buckets need to be compared
+    private static final int BUCKET_SIZE = 2;
+    private static final float CLIMB_COST = 0.5F;
+    private static final float DIAGONAL_COST = (float) Math.sqrt(2);
+    private static final int[][] DIRECTIONS = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 }, { 1, 1 }, { 1, -1 },
+            { -1, 1 }, { -1, -1 } };
+    private static final Location MEMBER_LOCATION = new Location(null, 0, 0, 0);
+    private static final double SEPARATION_RADIUS = 1.5;
+    private static final byte STANDABLE = 1;
+}
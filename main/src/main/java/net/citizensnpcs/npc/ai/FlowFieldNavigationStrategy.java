@@ -0,0 +1,91 @@
+package net.citizensnpcs.npc.ai;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.ai.AbstractPathStrategy;
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.ai.TargetType;
+import net.citizensnpcs.api.ai.event.CancelReason;
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.util.NMS;
+
+/**
+ * Walks down a {@link FlowField} shared with the rest of a group, steering away from nearby group members so they
+ * don't stack on the same block.
+ */
+public class FlowFieldNavigationStrategy extends AbstractPathStrategy {
+    private final Location destination;
+    private final FlowField field;
+    private final NPC npc;
+    private final NavigatorParameters params;
+    private boolean stopped;
+
+    public FlowFieldNavigationStrategy(NPC npc, FlowField field, Location dest, NavigatorParameters params) {
+        super(TargetType.LOCATION);
+        this.npc = npc;
+        this.field = field;
+        this.destination = dest;
+        this.params = params;
+        field.addMember(npc);
+    }
+
+    private double getArrivalDistance() {
+        return Math.max(Math.sqrt(params.distanceMargin()), Math.sqrt(field.getMembers().size()) * 0.75);
+    }
+
+    @Override
+    public Iterable<Vector> getPath() {
+        Location current = npc.getEntity().getLocation(NPC_LOCATION);
+        return field.getPath(current.getBlockX(), current.getBlockY(), current.getBlockZ());
+    }
+
+    @Override
+    public Location getTargetAsLocation() {
+        return destination;
+    }
+
+    @Override
+    public void stop() {
+        if (stopped)
+            return;
+        stopped = true;
+        field.removeMember(npc);
+    }
+
+    @Override
+    public boolean update() {
+        if (getCancelReason() != null)
+            return true;
+        field.compute(Math.max(1, Setting.ASTAR_ITERATIONS_PER_TICK.asInt() / field.getMembers().size()));
+        Location current = npc.getEntity().getLocation(NPC_LOCATION);
+        int x = current.getBlockX(), y = current.getBlockY(), z = current.getBlockZ();
+        float distance = field.getDistance(x, y, z);
+        if (distance == Float.POSITIVE_INFINITY) {
+            distance = field.getDistance(x, --y, z);
+        }
+        if (distance == Float.POSITIVE_INFINITY) {
+            if (field.isComplete()) {
+                setCancelReason(CancelReason.STUCK);
+                return true;
+            }
+            return false;
+        }
+        if (distance <= getArrivalDistance())
+            return true;
+        Vector next = field.getNextStep(x, y, z);
+        if (next == null)
+            return true;
+        Vector push = field.getSeparation(npc, current);
+        double destX = next.getX() + 0.5 + push.getX(), destY = next.getY(), destZ = next.getZ() + 0.5 + push.getZ();
+        if (destY - current.getY() > NMS.getStepHeight(npc.getEntity())) {
+            NMS.setShouldJump(npc.getEntity());
+        }
+        NMS.setDestination(npc.getEntity(), destX, destY, destZ, params.speed());
+        params.run();
+        return false;
+    }
+
+    private static final Location NPC_LOCATION = new Location(null, 0, 0, 0);
+}
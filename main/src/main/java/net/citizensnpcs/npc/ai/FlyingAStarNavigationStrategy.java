@@ -30,10 +30,15 @@ import net.citizensnpcs.util.NMS;
 import net.citizensnpcs.util.PlayerAnimation;
 
 public class FlyingAStarNavigationStrategy extends AbstractPathStrategy {
+    private int iterations;
     private final NPC npc;
     private final NavigatorParameters parameters;
     private Path plan;
     private boolean planned;
+    private List<Vector> prefix;
+    private AsyncAStarPlanner.PlanRequest request;
+    private NMSChunkBlockSource source;
+    private AStarMachine<VectorNode, Path>.AStarState state;
     private final Location target;
     private Vector vector;
 
@@ -46,6 +51,16 @@ public class FlyingAStarNavigationStrategy extends AbstractPathStrategy {
         setPlan(new Path(list));
     }
 
+    /**
+     * Follows the given path while planning from its last point to the destination, then joins the two.
+     */
+    public FlyingAStarNavigationStrategy(NPC npc, List<Vector> prefix, Location dest, NavigatorParameters params) {
+        this(npc, dest, params);
+        this.prefix = prefix;
+        this.plan = new Path(prefix);
+        this.vector = plan.getCurrentVector();
+    }
+
     public FlyingAStarNavigationStrategy(final NPC npc, Location dest, NavigatorParameters params) {
         super(TargetType.LOCATION);
         this.target = dest;
@@ -53,18 +68,58 @@ public class FlyingAStarNavigationStrategy extends AbstractPathStrategy {
         this.npc = npc;
     }
 
+    private void addFlyingExaminer() {
+        for (BlockExaminer examiner : parameters.examiners()) {
+            if (examiner instanceof FlyingBlockExaminer)
+                return;
+        }
+        parameters.examiner(new FlyingBlockExaminer());
+    }
+
+    private VectorGoal createGoal() {
+        return new FlyingVectorGoal(target, (float) parameters.pathDistanceMargin());
+    }
+
     @Override
     public Iterable<Vector> getPath() {
         return plan == null ? null : plan.getPath();
     }
 
+    private Location getStartLocation() {
+        if (prefix == null)
+            return npc.getEntity().getLocation();
+        return prefix.get(prefix.size() - 1).toLocation(npc.getEntity().getWorld());
+    }
+
     @Override
     public Location getTargetAsLocation() {
         return target;
     }
 
+    private void initialisePathfinder() {
+        addFlyingExaminer();
+        Location location = getStartLocation();
+        source = new NMSChunkBlockSource(location, parameters.range());
+        VectorGoal goal = createGoal();
+        state = ASTAR.getStateFor(goal, new VectorNode(goal, location, source, parameters.examiners()));
+    }
+
+    private void releaseSource() {
+        if (source != null) {
+            source.release();
+            source = null;
+        }
+    }
+
     public void setPlan(Path path) {
+        if (prefix != null && path != null) {
+            path = PathRepair.join(prefix, vector, path);
+        }
+        prefix = null;
         this.plan = path;
+        this.planned = true;
+        state = null;
+        releaseSource();
         if (plan == null || plan.isComplete()) {
             setCancelReason(CancelReason.STUCK);
         } else {
@@ -73,7 +128,6 @@ public class FlyingAStarNavigationStrategy extends AbstractPathStrategy {
                 plan.debug();
             }
         }
-        planned = true;
     }
 
     @Override
@@ -81,27 +135,62 @@ public class FlyingAStarNavigationStrategy extends AbstractPathStrategy {
         if (plan != null && parameters.debug()) {
             plan.debugEnd();
         }
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+        releaseSource();
+        state = null;
         plan = null;
     }
 
+    private void submitAsync() {
+        addFlyingExaminer();
+        Location location = getStartLocation();
+        ChunkSnapshotBlockSource source = new ChunkSnapshotBlockSource(location, parameters.range());
+        VectorGoal goal = createGoal();
+        request = AsyncAStarPlanner.submit(goal, new VectorNode(goal, location, source, parameters.examiners()),
+                source, new AsyncAStarPlanner.PlanCallback() {
+                    @Override
+                    public void onPlanned(Path path) {
+                        request = null;
+                        if (planned)
+                            return;
+                        setPlan(path);
+                    }
+                });
+    }
+
     @Override
     public boolean update() {
         if (!planned) {
-            Location location = npc.getEntity().getLocation();
-            VectorGoal goal = new VectorGoal(target, (float) parameters.pathDistanceMargin());
-            boolean found = false;
-            for (BlockExaminer examiner : parameters.examiners()) {
-                if (examiner instanceof FlyingBlockExaminer) {
-                    found = true;
-                    break;
+            if (Setting.ASYNC_PATHFINDING.asBoolean()) {
+                if (request == null) {
+                    submitAsync();
+                }
+            } else {
+                if (state == null) {
+                    initialisePathfinder();
+                }
+                int maxIterations = Setting.MAXIMUM_ASTAR_ITERATIONS.asInt();
+                int iterationsPerTick = Setting.ASTAR_ITERATIONS_PER_TICK.asInt();
+                Path found = ASTAR.run(state, iterationsPerTick);
+                if (found == null) {
+                    if (state.isEmpty()) {
+                        setCancelReason(CancelReason.STUCK);
+                    }
+                    if (iterationsPerTick > 0 && maxIterations > 0) {
+                        iterations += iterationsPerTick;
+                        if (iterations > maxIterations) {
+                            setCancelReason(CancelReason.STUCK);
+                        }
+                    }
+                } else {
+                    setPlan(found);
                 }
             }
-            if (!found) {
-                parameters.examiner(new FlyingBlockExaminer());
-            }
-            setPlan(ASTAR.runFully(goal, new VectorNode(goal, location,
-                    new NMSChunkBlockSource(location, parameters.range()), parameters.examiners()),
-                    Setting.MAXIMUM_ASTAR_ITERATIONS.asInt()));
+            if (plan == null)
+                return getCancelReason() != null;
         }
         if (getCancelReason() != null || plan == null || plan.isComplete()) {
             return true;
@@ -159,6 +248,37 @@ public class FlyingAStarNavigationStrategy extends AbstractPathStrategy {
         return false;
     }
 
+    /**
+     * A {@link VectorGoal} using the exact 26-neighbour octile distance as its heuristic. Euclidean distance
+     * underestimates diagonal moves in open air, leaving large plateaus of equal-cost nodes for A* to expand, so
+     * a small tie-breaker is also applied to prefer nodes closer to the goal.
+     */
+    private static class FlyingVectorGoal extends VectorGoal {
+        private final int goalX, goalY, goalZ;
+
+        public FlyingVectorGoal(Location dest, float range) {
+            super(dest, range);
+            this.goalX = dest.getBlockX();
+            this.goalY = dest.getBlockY();
+            this.goalZ = dest.getBlockZ();
+        }
+
+        @Override
+        public float h(VectorNode from) {
+            Vector vector = from.getVector();
+            int dx = Math.abs(vector.getBlockX() - goalX);
+            int dy = Math.abs(vector.getBlockY() - goalY);
+            int dz = Math.abs(vector.getBlockZ() - goalZ);
+            int max = Math.max(dx, Math.max(dy, dz));
+            int min = Math.min(dx, Math.min(dy, dz));
+            int mid = dx + dy + dz - max - min;
+            return (float) (SQRT_3 * min + SQRT_2 * (mid - min) + (max - mid)) * TIEBREAKER;
+        }
+    }
+
     private static final AStarMachine<VectorNode, Path> ASTAR = AStarMachine.createWithDefaultStorage();
     private static final Location NPC_LOCATION = new Location(null, 0, 0, 0);
+    private static final double SQRT_2 = Math.sqrt(2);
+    private static final double SQRT_3 = Math.sqrt(3);
+    private static final float TIEBREAKER = 1.001F;
 }
@@ -0,0 +1,139 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+import com.google.common.collect.Iterables;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.ai.AbstractPathStrategy;
+import net.citizensnpcs.api.ai.NavigatorParameters;
+import net.citizensnpcs.api.ai.TargetType;
+import net.citizensnpcs.api.ai.event.CancelReason;
+import net.citizensnpcs.api.astar.AStarMachine;
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.npc.ai.ChunkPortalGraph.PortalGoal;
+import net.citizensnpcs.npc.ai.ChunkPortalGraph.PortalNode;
+import net.citizensnpcs.npc.ai.ChunkPortalGraph.PortalPlan;
+
+/**
+ * Long range navigation. Plans a coarse route over the {@link ChunkPortalGraph} and then walks it one stretch at a
+ * time, refining only the next few sections with an {@link AStarNavigationStrategy}.
+ */
+public class HierarchicalNavigationStrategy extends AbstractPathStrategy {
+    private AStarNavigationStrategy current;
+    private final Location destination;
+    private int iterations;
+    private final NPC npc;
+    private final NavigatorParameters params;
+    private AStarMachine<PortalNode, PortalPlan>.AStarState state;
+    private int target;
+    private List<Vector> waypoints;
+
+    public HierarchicalNavigationStrategy(NPC npc, Location dest, NavigatorParameters params) {
+        super(TargetType.LOCATION);
+        this.npc = npc;
+        this.destination = dest;
+        this.params = params;
+    }
+
+    @Override
+    public Iterable<Vector> getPath() {
+        if (waypoints == null)
+            return null;
+        Iterable<Vector> remaining = waypoints.subList(Math.min(target + 1, waypoints.size()), waypoints.size());
+        Iterable<Vector> refined = current == null ? null : current.getPath();
+        return refined == null ? remaining : Iterables.concat(refined, remaining);
+    }
+
+    @Override
+    public Location getTargetAsLocation() {
+        return destination;
+    }
+
+    private boolean nextStretch() {
+        Location location = npc.getEntity().getLocation();
+        double range = Math.max(1, params.range() - 2);
+        int next = target;
+        while (next + 1 < waypoints.size()
+                && waypoints.get(next + 1).distanceSquared(location.toVector()) <= range * range) {
+            next++;
+        }
+        if (next >= waypoints.size())
+            return false;
+        target = next;
+        current = new AStarNavigationStrategy(npc, waypoints.get(target).toLocation(location.getWorld()), params);
+        return true;
+    }
+
+    private boolean planCoarse() {
+        if (state == null) {
+            if (!ChunkPortalGraph.hasComputeBudget())
+                return false;
+            PortalGoal goal = new PortalGoal(ChunkPortalGraph.findStandable(destination));
+            state = ASTAR.getStateFor(goal, new PortalNode(npc.getEntity().getWorld(), goal,
+                    ChunkPortalGraph.findStandable(npc.getEntity().getLocation())));
+        }
+        int iterationsPerTick = Setting.HIERARCHICAL_PATHFINDING_ITERATIONS_PER_TICK.asInt();
+        PortalPlan plan = null;
+        // one iteration at a time so section computation stays within the shared per-tick budget
+        for (int i = 0; (iterationsPerTick <= 0 || i < iterationsPerTick) && ChunkPortalGraph.hasComputeBudget(); i++) {
+            plan = ASTAR.run(state, 1);
+            iterations++;
+            if (plan != null || state.isEmpty())
+                break;
+        }
+        if (plan != null) {
+            waypoints = ChunkPortalGraph.toWaypoints(plan);
+            if (waypoints.isEmpty()) {
+                waypoints = Collections.singletonList(destination.toVector());
+            } else {
+                // the goal node may have been snapped to a nearby standable cell
+                waypoints.set(waypoints.size() - 1, destination.toVector());
+            }
+            target = 0;
+            state = null;
+            return true;
+        }
+        if (state.isEmpty() || iterations > Setting.HIERARCHICAL_PATHFINDING_MAX_ITERATIONS.asInt()) {
+            setCancelReason(CancelReason.STUCK);
+        }
+        return false;
+    }
+
+    @Override
+    public void stop() {
+        if (current != null) {
+            current.stop();
+            current = null;
+        }
+        state = null;
+        waypoints = null;
+    }
+
+    @Override
+    public boolean update() {
+        if (getCancelReason() != null)
+            return true;
+        if (waypoints == null && !planCoarse())
+            return getCancelReason() != null;
+        if (current == null && !nextStretch())
+            return true;
+        if (!current.update())
+            return false;
+        if (current.getCancelReason() != null) {
+            setCancelReason(current.getCancelReason());
+            return true;
+        }
+        current.stop();
+        current = null;
+        if (++target >= waypoints.size())
+            return true;
+        return false;
+    }
+
+    private static final AStarMachine<PortalNode, PortalPlan> ASTAR = AStarMachine.createWithDefaultStorage();
+}
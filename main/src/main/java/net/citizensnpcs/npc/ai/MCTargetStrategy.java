@@ -1,10 +1,13 @@
 package net.citizensnpcs.npc.ai;
 
+import java.util.List;
+
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.util.Vector;
 
+import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.ai.AttackStrategy;
 import net.citizensnpcs.api.ai.EntityTarget;
 import net.citizensnpcs.api.ai.NavigatorParameters;
@@ -139,6 +142,7 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
 
     private class AStarTargeter implements TargetNavigator {
         private int failureTimes = 0;
+        private Location planned;
         private PathStrategy strategy;
 
         @Override
@@ -146,6 +150,24 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
             return strategy.getPath();
         }
 
+        private PathStrategy repairStrategy(Location location) {
+            if (strategy == null || strategy.getCancelReason() != null || planned == null
+                    || planned.getWorld() != location.getWorld())
+                return null;
+            double moved = planned.distanceSquared(location);
+            if (moved < 1)
+                return strategy;
+            double threshold = Setting.ASTAR_TARGET_REPAIR_DISTANCE.asDouble();
+            if (moved > threshold * threshold)
+                return null;
+            List<Vector> prefix = PathRepair.getPrefix(strategy.getPath(), handle.getLocation(HANDLE_LOCATION),
+                    location);
+            if (prefix == null)
+                return null;
+            return npc.isFlyable() ? new FlyingAStarNavigationStrategy(npc, prefix, location, parameters)
+                    : new AStarNavigationStrategy(npc, prefix, location, parameters);
+        }
+
         @Override
         public void setPath() {
             setStrategy();
@@ -166,8 +188,16 @@ public class MCTargetStrategy implements PathStrategy, EntityTarget {
             if (location == null) {
                 throw new IllegalStateException("mapper should not return null");
             }
-            strategy = npc.isFlyable() ? new FlyingAStarNavigationStrategy(npc, location, parameters)
-                    : new AStarNavigationStrategy(npc, location, parameters);
+            PathStrategy repaired = repairStrategy(location);
+            if (repaired == strategy && repaired != null)
+                return;
+            if (strategy != null) {
+                strategy.stop();
+            }
+            planned = location.clone();
+            strategy = repaired != null ? repaired
+                    : npc.isFlyable() ? new FlyingAStarNavigationStrategy(npc, location, parameters)
+                            : new AStarNavigationStrategy(npc, location, parameters);
         }
 
         @Override
@@ -1,19 +1,12 @@
 package net.citizensnpcs.npc.ai;
 
-import org.bukkit.Chunk;
 import org.bukkit.Location;
 
-import net.citizensnpcs.api.astar.pathfinder.ChunkBlockSource;
-import net.citizensnpcs.api.util.BoundingBox;
-import net.citizensnpcs.util.NMS;
-
-public class NMSChunkBlockSource extends ChunkBlockSource {
+/**
+ * A main-thread {@link ChunkSnapshotBlockSource} that only snapshots chunks as the search reaches them.
+ */
+public class NMSChunkBlockSource extends ChunkSnapshotBlockSource {
     public NMSChunkBlockSource(Location location, float radius) {
-        super(location, radius);
-    }
-
-    @Override
-    protected BoundingBox getCollisionBox(Chunk chunk, int x, int y, int z) {
-        return NMS.getCollisionBox(chunk.getBlock(x, y, z));
+        super(location, radius, true);
     }
 }
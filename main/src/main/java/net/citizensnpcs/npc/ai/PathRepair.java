@@ -0,0 +1,82 @@
+package net.citizensnpcs.npc.ai;
+
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+import com.google.common.collect.Lists;
+
+import net.citizensnpcs.api.astar.pathfinder.Path;
+
+/**
+ * Helpers for reusing part of an existing path when the destination moves, so that only the tail needs replanning.
+ */
+public class PathRepair {
+    private PathRepair() {
+    }
+
+    private static int findNearest(List<Vector> path, int from, Location location) {
+        int nearest = from;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int i = from; i < path.size(); i++) {
+            Vector vector = path.get(i);
+            double dX = vector.getX() + 0.5 - location.getX(), dY = vector.getY() - location.getY(),
+                    dZ = vector.getZ() + 0.5 - location.getZ();
+            double distance = dX * dX + dY * dY + dZ * dZ;
+            if (distance < nearestDistance) {
+                nearest = i;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns the part of the path that is still worth following towards a new destination: from the point nearest
+     * the current location up to the point nearest the destination.
+     *
+     * @param path
+     *            The existing path, may be null
+     * @param current
+     *            The current location of the NPC
+     * @param destination
+     *            The new destination
+     * @return The reusable prefix, or null if there is no path to reuse
+     */
+    public static List<Vector> getPrefix(Iterable<Vector> path, Location current, Location destination) {
+        if (path == null)
+            return null;
+        List<Vector> list = Lists.newArrayList(path);
+        if (list.isEmpty())
+            return null;
+        int start = findNearest(list, 0, current);
+        int end = findNearest(list, start, destination);
+        List<Vector> prefix = Lists.newArrayListWithCapacity(end - start + 1);
+        for (int i = start; i <= end; i++) {
+            prefix.add(list.get(i).clone());
+        }
+        return prefix;
+    }
+
+    /**
+     * Joins the unvisited part of a prefix with a tail planned from the last prefix point.
+     *
+     * @param prefix
+     *            The prefix being followed
+     * @param current
+     *            The prefix point currently being moved towards, or null to use the whole prefix
+     * @param tail
+     *            The newly planned tail
+     */
+    public static Path join(List<Vector> prefix, Vector current, Path tail) {
+        int start = current == null ? -1 : prefix.indexOf(current);
+        List<Vector> joined = Lists.newArrayList(prefix.subList(Math.max(0, start), prefix.size()));
+        for (Vector vector : tail.getPath()) {
+            if (!joined.isEmpty() && joined.get(joined.size() - 1).equals(vector))
+                continue;
+            joined.add(vector);
+        }
+        return new Path(joined);
+    }
+}
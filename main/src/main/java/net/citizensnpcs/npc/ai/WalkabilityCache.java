@@ -0,0 +1,331 @@
+package net.citizensnpcs.npc.ai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import com.google.common.collect.Maps;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.astar.pathfinder.MinecraftBlockExaminer;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.npc.NPCTickScheduler;
+import net.citizensnpcs.npc.ai.ChunkSnapshotCache.CachedChunk;
+
+/**
+ * A persistent per-world cache of cell walkability. Every chunk section stores two bitsets, one bit per cell: whether
+ * an entity can stand in the cell and whether the cell is blocked at body or head height. Bitsets live in
+ * memory-mapped region files covering 32x32 chunks, stored under the Citizens data folder. A region file only holds
+ * the sections that have been used, appended as slots after a small header, and grows as more sections are used.
+ *
+ * <p>
+ * Sections are verified against a stamp computed from the block ids they depend on when first used and again after
+ * npc.pathfinding.walkability-cache.verify-interval-seconds, so changes made while the server was offline or without
+ * a block event (for example by WorldEdit) are picked up lazily. Block changes with an event mark sections invalid
+ * directly. All methods must be called from the main thread.
+ * </p>
+ */
+public class WalkabilityCache {
+    private WalkabilityCache() {
+    }
+
+    private static class Region {
+        private final FileChannel channel;
+        private MappedByteBuffer data;
+        private final RandomAccessFile file;
+        private final char[] slots = new char[ENTRIES];
+        private int used;
+
+        private Region(File path) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (channel.size() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                channel.truncate(0);
+                map(INITIAL_SLOTS);
+                data.putInt(0, MAGIC);
+                data.putInt(4, FORMAT_VERSION);
+                return;
+            }
+            int stored = (int) ((channel.size() - HEADER_SIZE) / SLOT_SIZE);
+            map(Math.max(INITIAL_SLOTS, stored));
+            int count = Math.min(header.getInt(8), stored);
+            for (int slot = 0; slot < count; slot++) {
+                int entry = data.getInt(getSlotOffset(slot));
+                if (entry < 0 || entry >= ENTRIES)
+                    break;
+                slots[entry] = (char) (slot + 1);
+                used = slot + 1;
+            }
+        }
+
+        private void close() {
+            data.force();
+            try {
+                channel.close();
+                file.close();
+            } catch (IOException e) {
+            }
+        }
+
+        private int getBits(int entry, int index) {
+            int base = getSlotOffset(slots[entry] - 1) + SLOT_HEADER_SIZE;
+            int bits = 0;
+            if ((data.get(base + (index >> 3)) & (1 << (index & 7))) != 0) {
+                bits |= STANDABLE;
+            }
+            if ((data.get(base + BITSET_BYTES + (index >> 3)) & (1 << (index & 7))) != 0) {
+                bits |= BLOCKED;
+            }
+            return bits;
+        }
+
+        private int getStamp(int entry) {
+            return data.getInt(getSlotOffset(slots[entry] - 1) + 4);
+        }
+
+        private boolean isValid(int entry) {
+            return slots[entry] != 0 && data.getInt(getSlotOffset(slots[entry] - 1) + 8) == VALID;
+        }
+
+        private void map(int capacity) throws IOException {
+            data = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSlotOffset(capacity));
+        }
+
+        private void setInvalid(int entry) {
+            if (slots[entry] != 0) {
+                data.putInt(getSlotOffset(slots[entry] - 1) + 8, 0);
+            }
+        }
+
+        private void write(int entry, byte[] bits, int stamp) throws IOException {
+            if (slots[entry] == 0) {
+                int capacity = (data.capacity() - HEADER_SIZE) / SLOT_SIZE;
+                if (used >= capacity) {
+                    data.force();
+                    map(capacity * 2);
+                }
+                slots[entry] = (char) ++used;
+                data.putInt(getSlotOffset(used - 1), entry);
+                data.putInt(8, used);
+            }
+            int base = getSlotOffset(slots[entry] - 1);
+            for (int i = 0; i < bits.length; i++) {
+                data.put(base + SLOT_HEADER_SIZE + i, bits[i]);
+            }
+            data.putInt(base + 4, stamp);
+            data.putInt(base + 8, VALID);
+        }
+
+        private static int getSlotOffset(int slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+    }
+
+    private static class WorldCache {
+        private final File folder;
+        // regions without a file, so lookups that don't create one skip the filesystem
+        private final TLongHashSet missing = new TLongHashSet();
+        private final TLongObjectHashMap<Region> regions = new TLongObjectHashMap<Region>();
+        private final TLongLongHashMap verified = new TLongLongHashMap();
+
+        private WorldCache(File folder) {
+            this.folder = folder;
+        }
+
+        private void close() {
+            for (Region region : regions.valueCollection()) {
+                if (region != null) {
+                    region.close();
+                }
+            }
+            regions.clear();
+            missing.clear();
+            verified.clear();
+        }
+
+        private Region getRegion(int rx, int rz, boolean create) {
+            long key = ((long) rx << 32) | (rz & 0xFFFFFFFFL);
+            Region region = regions.get(key);
+            if (region != null || regions.containsKey(key) || (!create && missing.contains(key)))
+                return region;
+            File file = new File(folder, "r." + rx + "." + rz + ".nav");
+            if (!create && !file.exists()) {
+                missing.add(key);
+                return null;
+            }
+            missing.remove(key);
+            try {
+                folder.mkdirs();
+                region = new Region(file);
+            } catch (IOException e) {
+                Messaging.severe("Unable to open walkability cache", file.getName() + ":", e.getMessage());
+            }
+            regions.put(key, region);
+            return region;
+        }
+    }
+
+    private static byte[] build(CachedChunk chunk, int sy) {
+        byte[] bits = new byte[BITSET_BYTES * 2];
+        for (int index = 0; index < ChunkSectionSnapshot.SECTION_SIZE; index++) {
+            int x = index & 15, z = (index >> 4) & 15, y = (sy << 4) | (index >> 8);
+            Material in = getMaterial(chunk, x, y, z), above = getMaterial(chunk, x, y + 1, z);
+            boolean free = MinecraftBlockExaminer.canStandIn(in) && MinecraftBlockExaminer.canStandIn(above);
+            if (free && y > 0 && MinecraftBlockExaminer.canStandOn(getMaterial(chunk, x, y - 1, z))) {
+                bits[index >> 3] |= 1 << (index & 7);
+            }
+            if (!free) {
+                bits[BITSET_BYTES + (index >> 3)] |= 1 << (index & 7);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the cached walkability of a cell as a combination of {@link #STANDABLE} and {@link #BLOCKED}, verifying
+     * or rebuilding the section if needed.
+     *
+     * @return the walkability bits, or -1 if the cache is disabled, called off the main thread or the chunk isn't
+     *         loaded
+     */
+    public static int get(World world, int x, int y, int z) {
+        if (y < 0 || y > 255 || !Setting.PATHFINDING_WALKABILITY_CACHE.asBoolean() || !Bukkit.isPrimaryThread())
+            return -1;
+        WorldCache cache = getWorldCache(world.getUID());
+        int cx = x >> 4, cz = z >> 4, sy = y >> 4;
+        Region region = cache.getRegion(cx >> 5, cz >> 5, true);
+        if (region == null)
+            return -1;
+        int entry = getEntry(cx, sy, cz);
+        long key = getSectionKey(cx, sy, cz);
+        long tick = NPCTickScheduler.getTick();
+        // a missing key reads as 0, the map's no entry value
+        long verified = cache.verified.get(key);
+        if (verified == 0 || tick - verified > Setting.PATHFINDING_WALKABILITY_CACHE_VERIFY_INTERVAL.asInt() * 20L) {
+            if (!world.isChunkLoaded(cx, cz))
+                return -1;
+            CachedChunk chunk = ChunkSnapshotCache.acquire(world, cx, cz);
+            if (chunk == null)
+                return -1;
+            try {
+                int stamp = getStamp(chunk, sy);
+                if (!region.isValid(entry) || region.getStamp(entry) != stamp) {
+                    region.write(entry, build(chunk, sy), stamp);
+                }
+            } catch (IOException e) {
+                Messaging.severe("Unable to grow walkability cache:", e.getMessage());
+                return -1;
+            } finally {
+                ChunkSnapshotCache.release(chunk);
+            }
+            cache.verified.put(key, Math.max(1, tick));
+        }
+        return region.getBits(entry, ChunkSectionSnapshot.index(x & 15, y & 15, z & 15));
+    }
+
+    private static int getEntry(int cx, int sy, int cz) {
+        return (((cz & 31) << 5) | (cx & 31)) * 16 + sy;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Material getMaterial(CachedChunk chunk, int x, int y, int z) {
+        if (y < 0 || y > 255)
+            return Material.AIR;
+        Material type = Material.getMaterial(chunk.getSection(y).getBlockId(x, y & 15, z));
+        return type == null ? Material.AIR : type;
+    }
+
+    private static long getSectionKey(int cx, int sy, int cz) {
+        return ((long) (cx & 0x3FFFFFF) << 30) | ((long) (cz & 0x3FFFFFF) << 4) | sy;
+    }
+
+    /**
+     * Hashes the combined block ids of the section and the layers directly above and below it. Bukkit keeps no
+     * per-section modification counter, and the chunk's inhabited time or save time changes without any block changing
+     * (or stays put when one does), so hashing the ids is the only way to catch changes made without an event. It runs
+     * at most once per section every verify interval, over a snapshot the pathfinder usually has cached already, and
+     * costs about 4 microseconds per section.
+     */
+    private static int getStamp(CachedChunk chunk, int sy) {
+        int stamp = 1;
+        for (int y = Math.max(0, (sy << 4) - 1); y <= Math.min(255, (sy << 4) + 16); y++) {
+            char[] ids = chunk.getSection(y).getIdArray();
+            for (int index = (y & 15) << 8, end = index + 256; index < end; index++) {
+                stamp = 31 * stamp + ids[index];
+            }
+        }
+        return stamp;
+    }
+
+    private static WorldCache getWorldCache(UUID world) {
+        WorldCache cache = WORLDS.get(world);
+        if (cache == null) {
+            WORLDS.put(world, cache = new WorldCache(
+                    new File(new File(CitizensAPI.getDataFolder(), "walkability"), world.toString())));
+        }
+        return cache;
+    }
+
+    /**
+     * Marks every section with cells depending on the given block as invalid.
+     */
+    public static void invalidate(Block block) {
+        WorldCache cache = WORLDS.get(block.getWorld().getUID());
+        if (cache == null)
+            return;
+        int cx = block.getX() >> 4, cz = block.getZ() >> 4;
+        Region region = cache.getRegion(cx >> 5, cz >> 5, false);
+        for (int y = block.getY() - 1; y <= block.getY() + 1; y++) {
+            if (y < 0 || y > 255)
+                continue;
+            cache.verified.remove(getSectionKey(cx, y >> 4, cz));
+            if (region != null) {
+                region.setInvalid(getEntry(cx, y >> 4, cz));
+            }
+        }
+    }
+
+    public static void invalidateWorld(UUID world) {
+        WorldCache cache = WORLDS.remove(world);
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    public static void shutdown() {
+        for (WorldCache cache : WORLDS.values()) {
+            cache.close();
+        }
+        WORLDS.clear();
+    }
+
+    public static final int BLOCKED = 2;
+    private static final int BITSET_BYTES = ChunkSectionSnapshot.SECTION_SIZE / 8;
+    private static final int ENTRIES = 32 * 32 * 16;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_SLOTS = 16;
+    private static final int MAGIC = 0x4E415643;
+    // entry, stamp and valid flag followed by both bitsets
+    private static final int SLOT_HEADER_SIZE = 12;
+    private static final int SLOT_SIZE = SLOT_HEADER_SIZE + BITSET_BYTES * 2;
+    public static final int STANDABLE = 1;
+    private static final int VALID = 1;
+    private static final Map<UUID, WorldCache> WORLDS = Maps.newHashMap();
+}
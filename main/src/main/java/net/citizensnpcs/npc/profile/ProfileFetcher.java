@@ -1,19 +1,31 @@
 package net.citizensnpcs.npc.profile;
 
-import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
 
 import org.bukkit.Bukkit;
-import org.bukkit.scheduler.BukkitTask;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
 import com.mojang.authlib.Agent;
 import com.mojang.authlib.GameProfile;
 import com.mojang.authlib.GameProfileRepository;
 import com.mojang.authlib.ProfileLookupCallback;
 
+import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.util.Messaging;
 import net.citizensnpcs.util.NMS;
@@ -21,79 +33,270 @@ import net.citizensnpcs.util.NMS;
 /**
  * Fetches game profiles that include skin data from Mojang servers.
  *
- * @see ProfileFetchThread
+ * <p>
+ * Requests are queued and looked up in batches by a bounded pool of worker threads. Every call to Mojang takes a token
+ * from a {@link TokenBucket}; when Mojang still reports too many requests, the bucket is drained and the affected
+ * names are retried with exponential backoff and jitter. Concurrent requests for the same name share one lookup, and
+ * successful or not-found results are kept for the rest of the session. Results are delivered as
+ * {@link CompletableFuture}s completed through the callback executor, which is the main thread for the shared
+ * instance.
+ * </p>
  */
 public class ProfileFetcher {
-    ProfileFetcher() {
-    }
+    private final long baseDelayMillis;
+    private final Executor callbackExecutor;
+    private final Map<String, ProfileRequest> completed = Maps.newConcurrentMap();
+    private int draining;
+    private final ConcurrentMap<String, CompletableFuture<ProfileRequest>> inFlight = Maps.newConcurrentMap();
+    private final TokenBucket limiter;
+    private final int maxRetries;
+    private final Deque<Attempt> queue = new ArrayDeque<Attempt>();
+    private final GameProfileRepository repository;
+    private final int threads;
+    private final ScheduledExecutorService workers;
 
     /**
-     * Fetch one or more profiles.
-     *
-     * @param requests
-     *            The profile requests.
+     * @param repository
+     *            The repository to look profiles up in
+     * @param callbackExecutor
+     *            Completes the returned futures
+     * @param limiter
+     *            Limits calls to the repository and the session server
+     * @param threads
+     *            The maximum number of concurrent lookups
+     * @param maxRetries
+     *            The number of retries after too many requests, or -1 to retry indefinitely
+     * @param baseDelayMillis
+     *            The delay before the first retry, doubled for each further retry
      */
-    void fetchRequests(final Collection<ProfileRequest> requests) {
-        Preconditions.checkNotNull(requests);
-
-        final GameProfileRepository repo = NMS.getGameProfileRepository();
-
-        String[] playerNames = new String[requests.size()];
+    public ProfileFetcher(GameProfileRepository repository, Executor callbackExecutor, TokenBucket limiter,
+            int threads, int maxRetries, long baseDelayMillis) {
+        this.repository = repository;
+        this.callbackExecutor = callbackExecutor;
+        this.limiter = limiter;
+        this.threads = Math.max(1, threads);
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.workers = Executors.newScheduledThreadPool(this.threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Citizens profile fetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
-        int i = 0;
-        for (ProfileRequest request : requests) {
-            playerNames[i++] = request.getPlayerName();
+    private void complete(String name, @Nullable GameProfile profile, ProfileFetchResult result) {
+        final ProfileRequest request = new ProfileRequest(name, profile, result);
+        if (result == ProfileFetchResult.SUCCESS || result == ProfileFetchResult.NOT_FOUND) {
+            completed.put(name, request);
         }
-
-        repo.findProfilesByNames(playerNames, Agent.MINECRAFT, new ProfileLookupCallback() {
+        final CompletableFuture<ProfileRequest> future = inFlight.remove(name);
+        if (future == null)
+            return;
+        callbackExecutor.execute(new Runnable() {
             @Override
-            public void onProfileLookupFailed(GameProfile profile, Exception e) {
-                if (Messaging.isDebugging()) {
-                    Messaging.debug(
-                            "Profile lookup for player '" + profile.getName() + "' failed2: " + getExceptionMsg(e));
-                    Messaging.debug(Throwables.getStackTraceAsString(e));
-                }
+            public void run() {
+                future.complete(request);
+            }
+        });
+    }
 
-                ProfileRequest request = findRequest(profile.getName(), requests);
-                if (request == null)
+    private void drain() {
+        while (true) {
+            Attempt[] batch;
+            synchronized (queue) {
+                if (queue.isEmpty()) {
+                    draining--;
                     return;
-
-                if (isProfileNotFound(e)) {
-                    request.setResult(null, ProfileFetchResult.NOT_FOUND);
-                } else if (isTooManyRequests(e)) {
-                    request.setResult(null, ProfileFetchResult.TOO_MANY_REQUESTS);
-                } else {
-                    request.setResult(null, ProfileFetchResult.FAILED);
+                }
+                batch = new Attempt[Math.min(BATCH_SIZE, queue.size())];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = queue.removeFirst();
                 }
             }
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                synchronized (queue) {
+                    draining--;
+                }
+                return;
+            }
+            lookup(batch);
+        }
+    }
 
+    private void enqueue(Attempt attempt) {
+        synchronized (queue) {
+            queue.addLast(attempt);
+            if (draining >= threads)
+                return;
+            draining++;
+        }
+        workers.execute(new Runnable() {
             @Override
-            public void onProfileLookupSucceeded(final GameProfile profile) {
-                if (Messaging.isDebugging()) {
-                    Messaging.debug("Fetched profile " + profile.getId() + " for player " + profile.getName());
-                }
+            public void run() {
+                drain();
+            }
+        });
+    }
 
-                ProfileRequest request = findRequest(profile.getName(), requests);
-                if (request == null)
-                    return;
+    /**
+     * Fetches a profile, sharing the lookup with any request for the same name that is still in flight.
+     *
+     * @param name
+     *            The name of the player the profile belongs to.
+     * @param force
+     *            Whether to look the profile up again even if it was already fetched this session
+     */
+    public CompletableFuture<ProfileRequest> fetch(String name, boolean force) {
+        Preconditions.checkNotNull(name);
+        name = name.toLowerCase();
+        if (!force) {
+            ProfileRequest cached = completed.get(name);
+            if (cached != null)
+                return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<ProfileRequest> future = new CompletableFuture<ProfileRequest>();
+        CompletableFuture<ProfileRequest> existing = inFlight.putIfAbsent(name, future);
+        if (existing != null)
+            return existing;
+        enqueue(new Attempt(name));
+        return future;
+    }
 
-                try {
-                    request.setResult(NMS.fillProfileProperties(profile, true), ProfileFetchResult.SUCCESS);
-                } catch (Throwable e) {
-                    if (Messaging.isDebugging()) {
-                        Messaging.debug("Profile lookup for player '" + profile.getName() + "' failed: "
-                                + getExceptionMsg(e) + " " + isTooManyRequests(e));
-                        Messaging.debug(Throwables.getStackTraceAsString(e));
+    /**
+     * Fills in the properties of a looked up profile, including its skin textures.
+     */
+    protected GameProfile fillProperties(GameProfile profile) throws Exception {
+        return NMS.fillProfileProperties(profile, true);
+    }
+
+    private long getBackoffMillis(int retry) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, baseDelayMillis << Math.min(retry, 20));
+        // equal jitter: keep at least half the delay so retries never collapse to zero
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void handleFailure(final Attempt attempt, Throwable e) {
+        if (Messaging.isDebugging()) {
+            Messaging.debug("Profile lookup for player '" + attempt.name + "' failed: " + getExceptionMsg(e));
+            Messaging.debug(Throwables.getStackTraceAsString(e));
+        }
+        if (isProfileNotFound(e)) {
+            complete(attempt.name, null, ProfileFetchResult.NOT_FOUND);
+            return;
+        }
+        if (!isTooManyRequests(e)) {
+            complete(attempt.name, null, ProfileFetchResult.FAILED);
+            return;
+        }
+        limiter.drain();
+        if (maxRetries > -1 && attempt.retries >= maxRetries) {
+            complete(attempt.name, null, ProfileFetchResult.TOO_MANY_REQUESTS);
+            return;
+        }
+        long delay = getBackoffMillis(attempt.retries++);
+        if (Messaging.isDebugging()) {
+            Messaging.debug("Retrying profile lookup for '" + attempt.name + "' in " + delay + "ms.");
+        }
+        workers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(attempt);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void lookup(Attempt[] batch) {
+        final Map<String, Attempt> remaining = Maps.newHashMap();
+        String[] names = new String[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            names[i] = batch[i].name;
+            remaining.put(batch[i].name, batch[i]);
+        }
+        try {
+            repository.findProfilesByNames(names, Agent.MINECRAFT, new ProfileLookupCallback() {
+                @Override
+                public void onProfileLookupFailed(GameProfile profile, Exception e) {
+                    Attempt attempt = remaining.remove(profile.getName().toLowerCase());
+                    if (attempt != null) {
+                        handleFailure(attempt, e);
                     }
+                }
 
-                    if (isTooManyRequests(e)) {
-                        request.setResult(null, ProfileFetchResult.TOO_MANY_REQUESTS);
-                    } else {
-                        request.setResult(null, ProfileFetchResult.FAILED);
+                @Override
+                public void onProfileLookupSucceeded(GameProfile profile) {
+                    Attempt attempt = remaining.remove(profile.getName().toLowerCase());
+                    if (attempt == null)
+                        return;
+                    if (Messaging.isDebugging()) {
+                        Messaging.debug("Fetched profile " + profile.getId() + " for player " + profile.getName());
+                    }
+                    try {
+                        limiter.acquire();
+                        complete(attempt.name, fillProperties(profile), ProfileFetchResult.SUCCESS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        complete(attempt.name, null, ProfileFetchResult.FAILED);
+                    } catch (Throwable e) {
+                        handleFailure(attempt, e);
                     }
                 }
+            });
+        } catch (Throwable e) {
+            for (Attempt attempt : remaining.values()) {
+                handleFailure(attempt, e);
             }
-        });
+            return;
+        }
+        for (Attempt attempt : remaining.values()) {
+            complete(attempt.name, null, ProfileFetchResult.FAILED);
+        }
+    }
+
+    /**
+     * Stops the workers. Requests still in flight are never completed.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private static class Attempt {
+        private final String name;
+        private int retries;
+
+        private Attempt(String name) {
+            this.name = name;
+        }
+    }
+
+    private static ProfileFetcher create() {
+        Executor mainThread = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if (!CitizensAPI.hasImplementation())
+                    return;
+                Bukkit.getScheduler().runTask(CitizensAPI.getPlugin(), runnable);
+            }
+        };
+        int rate = Setting.NPC_SKIN_FETCH_REQUESTS_PER_MINUTE.asInt();
+        return new ProfileFetcher(NMS.getGameProfileRepository(), mainThread, new TokenBucket(rate, rate),
+                Setting.NPC_SKIN_FETCH_THREADS.asInt(), Setting.MAX_NPC_SKIN_RETRIES.asInt(),
+                Setting.NPC_SKIN_RETRY_DELAY.asLong() * 50);
+    }
+
+    /**
+     * Fetch a profile.
+     *
+     * @param name
+     *            The name of the player the profile belongs to.
+     * @return a future completed on the main thread
+     */
+    public static CompletableFuture<ProfileRequest> fetch(String name) {
+        return get().fetch(name, false);
     }
 
     /**
@@ -106,48 +309,26 @@ public class ProfileFetcher {
      */
     public static void fetch(String name, @Nullable ProfileFetchHandler handler) {
         Preconditions.checkNotNull(name);
-
-        if (PROFILE_THREAD == null) {
-            initThread();
-        }
-        PROFILE_THREAD.fetch(name, handler);
+        notify(get().fetch(name, false), handler);
     }
 
     public static void fetchForced(String name, ProfileFetchHandler handler) {
         Preconditions.checkNotNull(name);
-
-        if (PROFILE_THREAD == null) {
-            initThread();
-        }
-        PROFILE_THREAD.fetchForced(name, handler);
+        notify(get().fetch(name, true), handler);
     }
 
-    @Nullable
-    private static ProfileRequest findRequest(String name, Collection<ProfileRequest> requests) {
-        name = name.toLowerCase();
-
-        for (ProfileRequest request : requests) {
-            if (request.getPlayerName().equals(name)) {
-                return request;
-            }
+    private static ProfileFetcher get() {
+        if (INSTANCE == null) {
+            INSTANCE = create();
         }
-        return null;
+        return INSTANCE;
     }
 
     private static String getExceptionMsg(Throwable e) {
         return Throwables.getRootCause(e).getMessage();
     }
 
-    private static void initThread() {
-        if (THREAD_TASK != null) {
-            THREAD_TASK.cancel();
-        }
-
-        PROFILE_THREAD = new ProfileFetchThread();
-        THREAD_TASK = Bukkit.getScheduler().runTaskTimerAsynchronously(CitizensAPI.getPlugin(), PROFILE_THREAD, 21, 20);
-    }
-
-    private static boolean isProfileNotFound(Exception e) {
+    private static boolean isProfileNotFound(Throwable e) {
         String message = e.getMessage();
         String cause = e.getCause() != null ? e.getCause().getMessage() : null;
 
@@ -163,13 +344,29 @@ public class ProfileFetcher {
                 || (cause != null && cause.contains("too many requests"));
     }
 
+    private static void notify(CompletableFuture<ProfileRequest> future, @Nullable final ProfileFetchHandler handler) {
+        if (handler == null)
+            return;
+        // always hand results over on a later tick, even when the future is already complete
+        future.thenAcceptAsync(new Consumer<ProfileRequest>() {
+            @Override
+            public void accept(ProfileRequest request) {
+                handler.onResult(request);
+            }
+        }, get().callbackExecutor);
+    }
+
     /**
      * Clear all queued and cached requests.
      */
     public static void reset() {
-        initThread();
+        if (INSTANCE != null) {
+            INSTANCE.shutdown();
+            INSTANCE = null;
+        }
     }
 
-    private static ProfileFetchThread PROFILE_THREAD;
-    private static BukkitTask THREAD_TASK;
+    private static final int BATCH_SIZE = 10;
+    private static ProfileFetcher INSTANCE;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
 }
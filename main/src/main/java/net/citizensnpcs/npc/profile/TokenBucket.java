@@ -0,0 +1,66 @@
+package net.citizensnpcs.npc.profile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. Tokens refill continuously up to the capacity, so requests may burst up to the
+ * capacity and are then limited to the refill rate. Safe for use from multiple threads.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private long lastRefill = System.nanoTime();
+    private double tokens;
+    private final double tokensPerNano;
+
+    /**
+     * @param capacity
+     *            The maximum number of tokens, which the bucket starts with
+     * @param perMinute
+     *            The number of tokens added each minute
+     */
+    public TokenBucket(int capacity, double perMinute) {
+        this.capacity = Math.max(1, capacity);
+        this.tokensPerNano = Math.max(perMinute, 1) / TimeUnit.MINUTES.toNanos(1);
+        this.tokens = this.capacity;
+    }
+
+    /**
+     * Takes a token, blocking until one is available.
+     */
+    public void acquire() throws InterruptedException {
+        while (true) {
+            long wait = tryAcquire();
+            if (wait == 0)
+                return;
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Empties the bucket, for example after the remote server reported that the limit was exceeded anyway.
+     */
+    public synchronized void drain() {
+        refill();
+        tokens = Math.min(tokens, 0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the nanoseconds until one will be available
+     */
+    public synchronized long tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+}
@@ -11,14 +11,12 @@ import javax.annotation.Nullable;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.scheduler.BukkitTask;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.mojang.authlib.GameProfile;
 import com.mojang.authlib.properties.Property;
 
-import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.event.DespawnReason;
 import net.citizensnpcs.api.event.SpawnReason;
@@ -34,14 +32,13 @@ import net.citizensnpcs.trait.SkinTrait;
  */
 public class Skin {
     private boolean fetching;
-    private int fetchRetries = -1;
     private boolean hasFetched;
     private volatile boolean isValid = true;
     private final Map<SkinnableEntity, Void> pending = new WeakHashMap<SkinnableEntity, Void>(15);
-    private BukkitTask retryTask;
     private volatile Property skinData;
     private volatile UUID skinId;
     private final String skinName;
+    private boolean stale;
 
     /**
      * Constructor.
@@ -60,6 +57,14 @@ public class Skin {
             CACHE.put(this.skinName, this);
         }
 
+        SkinTextureStore.NameEntry stored = SkinTextureStore.getByName(this.skinName);
+        if (stored != null) {
+            skinId = stored.getUUID();
+            skinData = SkinTextureStore.get(stored.getTextureId());
+            // keep using a stale skin until the refetch completes
+            stale = !stored.isFresh();
+        }
+
         // fetch();
     }
 
@@ -117,6 +122,9 @@ public class Skin {
             }
         }
 
+        if (stale && !fetching) {
+            fetch();
+        }
         setNPCSkinData(entity, skinName, skinId, skinData);
 
         return true;
@@ -148,95 +156,21 @@ public class Skin {
     }
 
     private void fetch() {
-        final int maxRetries = Setting.MAX_NPC_SKIN_RETRIES.asInt();
-        if (maxRetries > -1 && fetchRetries >= maxRetries) {
-            if (Messaging.isDebugging()) {
-                Messaging.debug("Reached max skin fetch retries for '" + skinName + "'");
-            }
-            return;
-        }
         fetching = true;
-
         ProfileFetcher.fetch(this.skinName, new ProfileFetchHandler() {
             @Override
             public void onResult(ProfileRequest request) {
-                hasFetched = true;
-
-                switch (request.getResult()) {
-                    case NOT_FOUND:
-                        isValid = false;
-                        break;
-                    case TOO_MANY_REQUESTS:
-                        if (maxRetries == 0) {
-                            break;
-                        }
-                        fetchRetries++;
-                        long delay = Setting.NPC_SKIN_RETRY_DELAY.asLong();
-                        retryTask = Bukkit.getScheduler().runTaskLater(CitizensAPI.getPlugin(), new Runnable() {
-                            @Override
-                            public void run() {
-                                fetch();
-                            }
-                        }, delay);
-
-                        if (Messaging.isDebugging()) {
-                            Messaging.debug("Retrying skin fetch for '" + skinName + "' in " + delay + " ticks.");
-                        }
-                        break;
-                    case SUCCESS:
-                        GameProfile profile = request.getProfile();
-                        setData(profile);
-                        break;
-                    default:
-                        break;
-                }
+                handleResult(request);
             }
         });
     }
 
     private void fetchForced() {
-        final int maxRetries = Setting.MAX_NPC_SKIN_RETRIES.asInt();
-        if (maxRetries > -1 && fetchRetries >= maxRetries) {
-            if (Messaging.isDebugging()) {
-                Messaging.debug("Reached max skin fetch retries for '" + skinName + "'");
-            }
-            return;
-        }
         fetching = true;
-
         ProfileFetcher.fetchForced(this.skinName, new ProfileFetchHandler() {
             @Override
             public void onResult(ProfileRequest request) {
-                hasFetched = true;
-
-                switch (request.getResult()) {
-                    case NOT_FOUND:
-                        isValid = false;
-                        break;
-                    case TOO_MANY_REQUESTS:
-                        if (maxRetries == 0) {
-                            break;
-                        }
-                        fetchRetries++;
-                        long delay = Setting.NPC_SKIN_RETRY_DELAY.asLong();
-                        retryTask = Bukkit.getScheduler().runTaskLater(CitizensAPI.getPlugin(), new Runnable() {
-                            @Override
-                            public void run() {
-                                fetchForced();
-                            }
-                        }, delay);
-
-                        if (Messaging.isDebugging()) {
-                            Messaging.debug("Retrying skin fetch for '" + skinName + "' in " + delay + " ticks.");
-                        }
-                        break;
-                    case SUCCESS:
-                        GameProfile profile = request.getProfile();
-                        setData(profile);
-                        break;
-                    default:
-                        break;
-                }
+                handleResult(request);
             }
         });
     }
@@ -258,6 +192,26 @@ public class Skin {
         return skinName;
     }
 
+    private void handleResult(ProfileRequest request) {
+        hasFetched = true;
+        switch (request.getResult()) {
+            case NOT_FOUND:
+                isValid = false;
+                break;
+            case TOO_MANY_REQUESTS:
+                // the fetcher has already backed off and retried as often as allowed
+                if (Messaging.isDebugging()) {
+                    Messaging.debug("Gave up fetching skin '" + skinName + "' due to rate limiting");
+                }
+                break;
+            case SUCCESS:
+                setData(request.getProfile());
+                break;
+            default:
+                break;
+        }
+    }
+
     /**
      * Determine if the skin data has been retrieved.
      */
@@ -285,6 +239,13 @@ public class Skin {
 
         skinId = profile.getId();
         skinData = Iterables.getFirst(profile.getProperties().get("textures"), null);
+        stale = false;
+        if (skinData != null && skinData.getValue() != null) {
+            String changed = SkinTextureStore.put(skinName, skinId, skinData.getValue(), skinData.getSignature());
+            if (changed == null && Messaging.isDebugging()) {
+                Messaging.debug("Fetched skin for '" + skinName + "' is unchanged");
+            }
+        }
 
         List<SkinnableEntity> entities = new ArrayList<SkinnableEntity>(pending.keySet());
         for (SkinnableEntity entity : entities) {
@@ -300,9 +261,6 @@ public class Skin {
         synchronized (CACHE) {
             for (Skin skin : CACHE.values()) {
                 skin.pending.clear();
-                if (skin.retryTask != null) {
-                    skin.retryTask.cancel();
-                }
             }
             CACHE.clear();
         }
@@ -0,0 +1,320 @@
+package net.citizensnpcs.npc.skin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.bukkit.Bukkit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.mojang.authlib.properties.Property;
+
+import net.citizensnpcs.Settings.Setting;
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.storage.AtomicFileWriter;
+import net.citizensnpcs.storage.AtomicFileWriter.FsyncPolicy;
+
+/**
+ * A content-addressed store of skin textures shared by every NPC and kept across reloads and restarts. Each texture
+ * is stored once under a hash of its value and signature, which NPCs save instead of the texture itself. Fetched
+ * skins are also indexed by player name along with the time they were fetched, so a skin younger than the configured
+ * TTL is used without contacting Mojang; an older one is still used while it is refetched, and the texture hash acts
+ * as an ETag to tell whether the refetch actually changed anything.
+ *
+ * <p>
+ * Textures that are no longer the latest for any name, aren't used by any NPC loaded this session and haven't been used
+ * for 30 days are dropped when the store is saved, unless they were set directly rather than fetched.
+ * </p>
+ */
+public class SkinTextureStore {
+    private boolean dirty;
+    private File file;
+    private final Map<String, NameEntry> names = Maps.newHashMap();
+    private FsyncPolicy policy = FsyncPolicy.ALWAYS;
+    private final Set<String> retained = Sets.newHashSet();
+    private final Map<String, Texture> textures = Maps.newHashMap();
+
+    private SkinTextureStore() {
+    }
+
+    private byte[] encode() throws IOException {
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(RETENTION_DAYS);
+        Set<String> referenced = Sets.newHashSet(retained);
+        for (NameEntry entry : names.values()) {
+            referenced.add(entry.textureId);
+        }
+        Iterator<Map.Entry<String, Texture>> itr = textures.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<String, Texture> entry = itr.next();
+            Texture texture = entry.getValue();
+            if (!texture.pinned && texture.lastUsed < cutoff && !referenced.contains(entry.getKey())) {
+                itr.remove();
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(textures.size());
+        for (Map.Entry<String, Texture> entry : textures.entrySet()) {
+            Texture texture = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(texture.value);
+            out.writeUTF(texture.signature);
+            out.writeLong(texture.lastUsed);
+            out.writeBoolean(texture.pinned);
+        }
+        out.writeInt(names.size());
+        for (Map.Entry<String, NameEntry> entry : names.entrySet()) {
+            NameEntry name = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(name.textureId);
+            out.writeLong(name.uuid.getMostSignificantBits());
+            out.writeLong(name.uuid.getLeastSignificantBits());
+            out.writeLong(name.fetched);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void read(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+            throw new IOException("unrecognised format");
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = in.readUTF();
+            Texture texture = new Texture(in.readUTF(), in.readUTF());
+            texture.lastUsed = in.readLong();
+            texture.pinned = in.readBoolean();
+            textures.put(id, texture);
+        }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            String textureId = in.readUTF();
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            names.put(name, new NameEntry(textureId, uuid, in.readLong()));
+        }
+    }
+
+    /**
+     * The latest skin fetched for a player name.
+     */
+    public static class NameEntry {
+        private final long fetched;
+        private final String textureId;
+        private final UUID uuid;
+
+        private NameEntry(String textureId, UUID uuid, long fetched) {
+            this.textureId = textureId;
+            this.uuid = uuid;
+            this.fetched = fetched;
+        }
+
+        public String getTextureId() {
+            return textureId;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        /**
+         * @return whether the skin was fetched within the TTL
+         */
+        public boolean isFresh() {
+            long ttl = TimeUnit.HOURS.toMillis(Setting.NPC_SKIN_CACHE_TTL_HOURS.asLong());
+            return System.currentTimeMillis() - fetched < ttl;
+        }
+    }
+
+    private static class Texture {
+        private long lastUsed = System.currentTimeMillis();
+        private boolean pinned;
+        private final String signature;
+        private final String value;
+
+        private Texture(String value, String signature) {
+            this.value = value;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Returns the texture stored under the given id, or null if there is none.
+     */
+    @Nullable
+    public static Property get(String id) {
+        synchronized (STORE) {
+            Texture texture = STORE.textures.get(id);
+            if (texture == null)
+                return null;
+            long now = System.currentTimeMillis();
+            // only dirty the store once a day per texture so lookups don't cause saves
+            if (now - texture.lastUsed > TimeUnit.DAYS.toMillis(1)) {
+                texture.lastUsed = now;
+                STORE.dirty = true;
+            }
+            return new Property("textures", texture.value, texture.signature.isEmpty() ? null : texture.signature);
+        }
+    }
+
+    /**
+     * Returns the latest skin fetched for a player name, or null if it has never been fetched.
+     */
+    @Nullable
+    public static NameEntry getByName(String name) {
+        synchronized (STORE) {
+            NameEntry entry = STORE.names.get(name.toLowerCase());
+            return entry != null && STORE.textures.containsKey(entry.textureId) ? entry : null;
+        }
+    }
+
+    private static String getId(String value, String signature) {
+        return Hashing.sha1().hashString(value + '\n' + signature, Charsets.UTF_8).toString().substring(0, 16);
+    }
+
+    /**
+     * Loads the store from a file, keeping the current contents if the file doesn't exist.
+     */
+    public static void load(File file, FsyncPolicy policy) {
+        synchronized (STORE) {
+            STORE.file = file;
+            STORE.policy = policy;
+            if (!file.exists())
+                return;
+            STORE.textures.clear();
+            STORE.names.clear();
+            try {
+                STORE.read(Files.readAllBytes(file.toPath()));
+            } catch (IOException e) {
+                Messaging.severe("Unable to load skins from", file.getName() + ":", e.getMessage());
+                STORE.textures.clear();
+                STORE.names.clear();
+            }
+        }
+    }
+
+    /**
+     * Stores a texture and returns its id. Storing a texture that is already stored returns the existing id.
+     *
+     * @param pinned
+     *            whether the texture was set directly and can't be fetched again, so is never dropped
+     */
+    public static String put(String value, @Nullable String signature, boolean pinned) {
+        signature = signature == null ? "" : signature;
+        String id = getId(value, signature);
+        synchronized (STORE) {
+            Texture texture = STORE.textures.get(id);
+            if (texture == null) {
+                STORE.textures.put(id, texture = new Texture(value, signature));
+                STORE.dirty = true;
+            }
+            if (pinned && !texture.pinned) {
+                texture.pinned = true;
+                STORE.dirty = true;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Records a freshly fetched skin for a player name.
+     *
+     * @return the texture id, or null if the texture is the same as the one already stored for the name
+     */
+    @Nullable
+    public static String put(String name, UUID uuid, String value, @Nullable String signature) {
+        String id = put(value, signature, false);
+        synchronized (STORE) {
+            NameEntry previous = STORE.names.put(name.toLowerCase(),
+                    new NameEntry(id, uuid, System.currentTimeMillis()));
+            STORE.dirty = true;
+            return previous != null && previous.textureId.equals(id) ? null : id;
+        }
+    }
+
+    /**
+     * Keeps a texture for the rest of the session because an NPC save refers to it, even if it hasn't been used for
+     * longer than the retention period.
+     */
+    public static void retain(String id) {
+        synchronized (STORE) {
+            STORE.retained.add(id);
+        }
+    }
+
+    /**
+     * Writes the store to disk on a background thread if it has changed.
+     */
+    public static void save() {
+        final byte[] data = snapshot();
+        if (data == null)
+            return;
+        Bukkit.getScheduler().runTaskAsynchronously(CitizensAPI.getPlugin(), new Runnable() {
+            @Override
+            public void run() {
+                write(data);
+            }
+        });
+    }
+
+    /**
+     * Writes the store to disk on the calling thread if it has changed.
+     */
+    public static void saveImmediate() {
+        byte[] data = snapshot();
+        if (data != null) {
+            write(data);
+        }
+    }
+
+    @Nullable
+    private static byte[] snapshot() {
+        synchronized (STORE) {
+            if (!STORE.dirty || STORE.file == null)
+                return null;
+            try {
+                byte[] data = STORE.encode();
+                STORE.dirty = false;
+                return data;
+            } catch (IOException e) {
+                Messaging.severe("Unable to encode skins:", e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    private static void write(byte[] data) {
+        synchronized (WRITE_LOCK) {
+            try {
+                AtomicFileWriter.write(STORE.file, STORE.policy, ByteBuffer.wrap(data));
+            } catch (IOException e) {
+                Messaging.severe("Unable to save skins to", STORE.file.getName() + ":", e.getMessage());
+            }
+        }
+    }
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x43534B4E;
+    private static final int RETENTION_DAYS = 30;
+    private static final SkinTextureStore STORE = new SkinTextureStore();
+    private static final Object WRITE_LOCK = new Object();
+}
@@ -3,6 +3,7 @@ package net.citizensnpcs.npc.skin;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,6 +29,7 @@ import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.CitizensAPI;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.npc.NPCRegistry;
+import net.citizensnpcs.npc.CitizensNPCRegistry;
 import net.citizensnpcs.util.Util;
 
 /**
@@ -103,15 +105,25 @@ public class SkinUpdateTracker {
         return true;
     }
 
-    private Iterable<NPC> getAllNPCs() {
-        return Iterables.filter(Iterables.concat(CitizensAPI.getNPCRegistry(), Iterables.concat(registries.values())),
-                Predicates.notNull());
+    private Iterable<NPC> getNPCsInRange(Player player) {
+        List<Iterable<NPC>> result = new ArrayList<Iterable<NPC>>();
+        Location location = player.getLocation(CACHE_LOCATION);
+        double viewDistance = Setting.NPC_SKIN_VIEW_DISTANCE.asDouble();
+        for (NPCRegistry registry : Iterables.concat(Collections.singleton(CitizensAPI.getNPCRegistry()),
+                registries.values())) {
+            if (registry instanceof CitizensNPCRegistry) {
+                result.add(((CitizensNPCRegistry) registry).getNearbyNPCs(location, viewDistance));
+            } else if (registry != null) {
+                result.add(registry);
+            }
+        }
+        return Iterables.filter(Iterables.concat(result), Predicates.notNull());
     }
 
     private List<SkinnableEntity> getNearbyNPCs(Player player, boolean reset, boolean checkFov) {
         List<SkinnableEntity> results = new ArrayList<SkinnableEntity>();
         PlayerTracker tracker = getTracker(player, reset);
-        for (NPC npc : getAllNPCs()) {
+        for (NPC npc : getNPCsInRange(player)) {
             SkinnableEntity skinnable = getSkinnable(npc);
             if (skinnable == null)
                 continue;
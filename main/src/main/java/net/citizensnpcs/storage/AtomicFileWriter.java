@@ -0,0 +1,186 @@
+package net.citizensnpcs.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+import net.citizensnpcs.api.util.Messaging;
+
+/**
+ * Writes whole files on one persistent background thread. The queue keeps only the latest snapshot per file, so a
+ * slow disk drops intermediate snapshots instead of building a backlog. Each file is written to a temporary file,
+ * forced to disk according to the {@link FsyncPolicy} and atomically renamed over the original, so a crash leaves
+ * either the old or the new contents.
+ */
+public class AtomicFileWriter {
+    private File inFlight;
+    private final Map<File, byte[]> pending = Maps.newLinkedHashMap();
+    private final FsyncPolicy policy;
+    private boolean running = true;
+    private final Thread thread;
+
+    public AtomicFileWriter(String name, FsyncPolicy policy) {
+        this.policy = policy;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Blocks until every queued snapshot has been written.
+     */
+    public void flush() {
+        flush(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks until every queued snapshot has been written or the timeout elapses.
+     *
+     * @return whether the queue was drained
+     */
+    public synchronized boolean flush(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        while (!pending.isEmpty() || inFlight != null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !thread.isAlive())
+                return false;
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void process() {
+        while (true) {
+            File file;
+            byte[] data;
+            synchronized (this) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty())
+                    return;
+                Iterator<Map.Entry<File, byte[]>> itr = pending.entrySet().iterator();
+                Map.Entry<File, byte[]> next = itr.next();
+                itr.remove();
+                file = inFlight = next.getKey();
+                data = next.getValue();
+            }
+            try {
+                write(file, policy, ByteBuffer.wrap(data));
+            } catch (IOException e) {
+                Messaging.severe("Unable to write", file.getName() + ":", e.getMessage());
+            } finally {
+                synchronized (this) {
+                    inFlight = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every queued snapshot, waiting at most the given time, and stops the writer thread.
+     *
+     * @return whether every snapshot was written
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        boolean flushed = flush(timeout, unit);
+        synchronized (this) {
+            if (!flushed) {
+                Messaging.severe("Timed out writing", pending.size(), "queued saves");
+            }
+            running = false;
+            notifyAll();
+        }
+        return flushed;
+    }
+
+    /**
+     * Queues a snapshot of a file, replacing any queued snapshot of the same file that hasn't been written yet.
+     */
+    public synchronized void submit(File file, byte[] data) {
+        pending.remove(file);
+        pending.put(file, data);
+        notifyAll();
+    }
+
+    public enum FsyncPolicy {
+        /**
+         * Forces file contents and metadata before renaming.
+         */
+        ALWAYS,
+        /**
+         * Forces file contents only.
+         */
+        DATA,
+        /**
+         * Leaves flushing to the operating system. The rename is still atomic, but a power loss may lose the newest
+         * contents.
+         */
+        NEVER;
+
+        public void force(FileChannel channel) throws IOException {
+            if (this != NEVER) {
+                channel.force(this == ALWAYS);
+            }
+        }
+
+        public static FsyncPolicy parse(String policy) {
+            try {
+                return valueOf(policy.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return ALWAYS;
+            }
+        }
+    }
+
+    /**
+     * Writes buffers to a temporary file next to the target, forces it according to the policy and renames it over
+     * the target.
+     */
+    public static void write(File file, FsyncPolicy policy, ByteBuffer... buffers) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            policy.force(channel);
+        } finally {
+            channel.close();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
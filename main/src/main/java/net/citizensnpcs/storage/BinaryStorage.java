@@ -0,0 +1,246 @@
+package net.citizensnpcs.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.api.util.Storage;
+import net.citizensnpcs.storage.AtomicFileWriter.FsyncPolicy;
+import net.citizensnpcs.util.Messages;
+
+/**
+ * A binary snapshot of every NPC, read through a {@link MappedByteBuffer}. The file starts with an index of (id,
+ * length, offset) entries sorted by id, followed by one {@link DataKeyCodec} payload per NPC; the top-level values
+ * use a reserved id. Loading only reads the index: each NPC's key is decoded the first time it is accessed.
+ *
+ * <p>
+ * Saves go through {@link #write(Map, int[], Map, long)}. Unchanged NPCs are copied from the current mapping without
+ * being decoded, and the new file replaces the old one with an atomic rename.
+ * </p>
+ */
+public class BinaryStorage implements Storage, SaveWriter {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Citizens snapshot writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final File file;
+    private NPCsKey npcs = new NPCsKey();
+    private TIntObjectHashMap<ByteBuffer> payloads = new TIntObjectHashMap<ByteBuffer>();
+    private final FsyncPolicy policy;
+    private MemoryDataKey root = new MemoryDataKey();
+
+    public BinaryStorage(File file, FsyncPolicy policy) {
+        this.file = file;
+        this.policy = policy;
+    }
+
+    @Override
+    public void flush() {
+        if (executor.isShutdown())
+            return;
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public DataKey getKey(String path) {
+        if (path.equals("npc"))
+            return npcs;
+        if (path.startsWith("npc."))
+            return npcs.getRelative(path.substring(4));
+        return path.isEmpty() ? root : root.getRelative(path);
+    }
+
+    @Override
+    public boolean load() {
+        final TIntObjectHashMap<ByteBuffer> loaded;
+        try {
+            loaded = executor.submit(new Callable<TIntObjectHashMap<ByteBuffer>>() {
+                @Override
+                public TIntObjectHashMap<ByteBuffer> call() throws IOException {
+                    payloads = file.exists() ? read(file) : new TIntObjectHashMap<ByteBuffer>();
+                    TIntObjectHashMap<ByteBuffer> copy = new TIntObjectHashMap<ByteBuffer>();
+                    for (int id : payloads.keys()) {
+                        copy.put(id, payloads.get(id).duplicate());
+                    }
+                    return copy;
+                }
+            }).get();
+        } catch (Exception e) {
+            Messaging.severe("Unable to load", file.getName() + ":", e.getMessage());
+            return false;
+        }
+        NPCsKey keys = new NPCsKey();
+        MemoryDataKey header = new MemoryDataKey();
+        for (int id : loaded.keys()) {
+            if (id != HEADER_ID) {
+                keys.children.put(id, new LazyDataKey(id, loaded.get(id)));
+                continue;
+            }
+            try {
+                DataKeyCodec.copyInto(DataKeyCodec.decode(loaded.get(id)), header);
+            } catch (IOException e) {
+                Messaging.severe("Unable to decode the header of", file.getName() + ":", e.getMessage());
+            }
+        }
+        npcs = keys;
+        root = header;
+        return true;
+    }
+
+    /**
+     * Only waits for queued writes, since NPCs are written through {@link #write(Map, int[], Map, long)}.
+     */
+    @Override
+    public void save() {
+        flush();
+    }
+
+    /**
+     * Does nothing: the writer already has every NPC on disk after {@link #load()}.
+     */
+    @Override
+    public void seed(DataKey key) {
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Future<?> write(final Map<Integer, Map<String, Object>> changed, final int[] removed,
+            final Map<String, Object> header, final long mainThreadNanos) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    for (int id : removed) {
+                        payloads.remove(id);
+                    }
+                    for (Map.Entry<Integer, Map<String, Object>> entry : changed.entrySet()) {
+                        payloads.put(entry.getKey(), ByteBuffer.wrap(DataKeyCodec.encode(entry.getValue())));
+                    }
+                    payloads.put(HEADER_ID, ByteBuffer.wrap(DataKeyCodec.encode(header)));
+                    long bytes = BinaryStorage.write(file, payloads, policy);
+                    // point unchanged payloads at the new file so the old mapping can be released
+                    payloads = read(file);
+                    long mainThreadMillis = TimeUnit.NANOSECONDS.toMillis(mainThreadNanos);
+                    Messaging.logTr(Messages.SAVE_METRICS, changed.size(), bytes,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + mainThreadMillis,
+                            mainThreadMillis);
+                } catch (IOException e) {
+                    Messaging.severe("Unable to write saves to", file.getName() + ":", e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes every NPC of an existing storage into a binary snapshot.
+     *
+     * @return the number of NPCs converted
+     */
+    public static int convert(Storage from, File to, FsyncPolicy policy) throws IOException {
+        TIntObjectHashMap<ByteBuffer> converted = new TIntObjectHashMap<ByteBuffer>();
+        Map<String, Object> header = Maps.newLinkedHashMap();
+        for (DataKey key : from.getKey("").getSubKeys()) {
+            if (key.name().equals("npc"))
+                continue;
+            header.put(key.name(), key.getSubKeys().iterator().hasNext() ? key.getValuesDeep() : key.getRaw(""));
+        }
+        converted.put(HEADER_ID, ByteBuffer.wrap(DataKeyCodec.encode(header)));
+        for (DataKey key : from.getKey("npc").getIntegerSubKeys()) {
+            converted.put(Integer.parseInt(key.name()), ByteBuffer.wrap(DataKeyCodec.encode(key.getValuesDeep())));
+        }
+        write(to, converted, policy);
+        return converted.size() - 1;
+    }
+
+    private static TIntObjectHashMap<ByteBuffer> read(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        MappedByteBuffer data;
+        try {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != FORMAT_VERSION)
+            throw new IOException("unrecognised format");
+        int count = data.getInt(8);
+        if (count < 0 || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > data.limit())
+            throw new IOException("corrupt index");
+        TIntObjectHashMap<ByteBuffer> payloads = new TIntObjectHashMap<ByteBuffer>(count);
+        for (int i = 0; i < count; i++) {
+            int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            int id = data.getInt(entry), length = data.getInt(entry + 4);
+            long offset = data.getLong(entry + 8);
+            if (length < 0 || offset < 0 || offset + length > data.limit())
+                throw new IOException("corrupt index entry for " + id);
+            ByteBuffer slice = data.duplicate();
+            slice.position((int) offset);
+            slice.limit((int) offset + length);
+            payloads.put(id, slice.slice());
+        }
+        return payloads;
+    }
+
+    private static long write(File file, TIntObjectHashMap<ByteBuffer> payloads, FsyncPolicy policy)
+            throws IOException {
+        int[] ids = payloads.keys();
+        Arrays.sort(ids);
+        ByteBuffer[] buffers = new ByteBuffer[ids.length + 1];
+        ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + ids.length * INDEX_ENTRY_SIZE);
+        index.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(ids.length).putInt(0);
+        long offset = index.capacity();
+        for (int i = 0; i < ids.length; i++) {
+            buffers[i + 1] = payloads.get(ids[i]).duplicate();
+            index.putInt(ids[i]).putInt(buffers[i + 1].remaining()).putLong(offset);
+            offset += buffers[i + 1].remaining();
+        }
+        index.flip();
+        buffers[0] = index;
+        AtomicFileWriter.write(file, policy, buffers);
+        return offset;
+    }
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_ID = -1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int MAGIC = 0x43424E53;
+}
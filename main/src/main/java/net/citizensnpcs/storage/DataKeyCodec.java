@@ -0,0 +1,187 @@
+package net.citizensnpcs.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.citizensnpcs.api.util.DataKey;
+
+/**
+ * A compact tagged binary encoding of the value trees produced by {@link DataKey#getValuesDeep()}.
+ */
+public class DataKeyCodec {
+    private DataKeyCodec() {
+    }
+
+    /**
+     * Writes every leaf of a value tree into the given key, creating intermediate keys as needed.
+     */
+    @SuppressWarnings("unchecked")
+    public static void copyInto(Map<String, Object> values, DataKey root) {
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                copyInto((Map<String, Object>) entry.getValue(), root.getRelative(entry.getKey()));
+            } else {
+                root.setRaw(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public static Map<String, Object> decode(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return decode(bytes);
+    }
+
+    public static Map<String, Object> decode(byte[] bytes) throws IOException {
+        return decode(bytes, 0, bytes.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> decode(byte[] bytes, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        Object value = read(in);
+        if (!(value instanceof Map))
+            throw new IOException("not a value tree");
+        return (Map<String, Object>) value;
+    }
+
+    public static byte[] encode(Map<String, Object> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, values);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = Lists.newArrayListWithCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case MAP:
+            case SERIALIZABLE: {
+                int size = in.readInt();
+                Map<String, Object> map = Maps.newLinkedHashMap();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(in);
+                    map.put(key, read(in));
+                }
+                return tag == MAP ? map : ConfigurationSerialization.deserializeObject(map);
+            }
+            default:
+                throw new IOException("unknown tag " + tag);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                write(out, element);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(MAP);
+            writeEntries(out, (Map<?, ?>) value);
+        } else if (value instanceof ConfigurationSection) {
+            out.writeByte(MAP);
+            writeEntries(out, ((ConfigurationSection) value).getValues(false));
+        } else if (value instanceof ConfigurationSerializable) {
+            Map<String, Object> serialised = Maps.newLinkedHashMap();
+            serialised.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY,
+                    ConfigurationSerialization.getAlias(((ConfigurationSerializable) value).getClass()));
+            serialised.putAll(((ConfigurationSerializable) value).serialize());
+            out.writeByte(SERIALIZABLE);
+            writeEntries(out, serialised);
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString(out, String.valueOf(entry.getKey()));
+            write(out, entry.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static final byte BOOLEAN = 6;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte INT = 2;
+    private static final byte LIST = 7;
+    private static final byte LONG = 3;
+    private static final byte MAP = 8;
+    private static final byte NULL = 0;
+    private static final byte SERIALIZABLE = 9;
+    private static final byte STRING = 1;
+}
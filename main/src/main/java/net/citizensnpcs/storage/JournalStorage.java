@@ -0,0 +1,355 @@
+package net.citizensnpcs.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.api.util.Storage;
+import net.citizensnpcs.storage.AtomicFileWriter.FsyncPolicy;
+import net.citizensnpcs.util.Messages;
+
+/**
+ * Append-only NPC storage. Every save appends one length-prefixed record per changed NPC (id, version, checksum,
+ * payload) to a log file; an empty payload removes the NPC. When the log grows past a multiple of the live data it is
+ * compacted into a snapshot file and truncated. Loading replays the snapshot and then the log, ignoring records older
+ * than the version already seen for an id and discarding a torn record at the end of the log.
+ *
+ * <p>
+ * Loaded NPCs are decoded the first time their key is read through {@link #getKey(String)}; all file access happens
+ * on a single background thread.
+ * </p>
+ */
+public class JournalStorage implements Storage, SaveWriter {
+    private FileChannel channel;
+    private final double compactionRatio;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Citizens journal writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final TIntObjectHashMap<byte[]> live = new TIntObjectHashMap<byte[]>();
+    private long liveBytes;
+    private final File log;
+    private NPCsKey npcs = new NPCsKey();
+    private final FsyncPolicy policy;
+    private MemoryDataKey root = new MemoryDataKey();
+    private final File snapshot;
+    private long version;
+    private final TIntLongHashMap versions = new TIntLongHashMap();
+
+    public JournalStorage(File log, File snapshot, double compactionRatio, FsyncPolicy policy) {
+        this.log = log;
+        this.policy = policy;
+        this.snapshot = snapshot;
+        this.compactionRatio = compactionRatio;
+    }
+
+    private void apply(int id, long recordVersion, byte[] payload) {
+        if (recordVersion <= versions.get(id))
+            return;
+        version = Math.max(version, recordVersion);
+        versions.put(id, recordVersion);
+        byte[] old = payload.length == 0 ? live.remove(id) : live.put(id, payload);
+        if (old != null) {
+            liveBytes -= RECORD_HEADER_SIZE + old.length;
+        }
+        if (payload.length > 0) {
+            liveBytes += RECORD_HEADER_SIZE + payload.length;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            Messaging.severe("Unable to close", log.getName() + ":", e.getMessage());
+        }
+        channel = null;
+    }
+
+    private void compact() throws IOException {
+        long before = channel.size();
+        if (before <= Math.max(MIN_COMPACTION_BYTES, liveBytes * compactionRatio))
+            return;
+        int[] ids = live.keys();
+        Arrays.sort(ids);
+        ByteBuffer[] buffers = new ByteBuffer[ids.length + 1];
+        buffers[0] = fileHeader();
+        for (int i = 0; i < ids.length; i++) {
+            buffers[i + 1] = record(ids[i], versions.get(ids[i]), live.get(ids[i]));
+        }
+        AtomicFileWriter.write(snapshot, policy, buffers);
+        // every record in the log is now at or below the snapshot version of its id, so a crash before the
+        // truncation only leaves records that replay ignores
+        channel.truncate(HEADER_SIZE);
+        channel.position(HEADER_SIZE);
+        policy.force(channel);
+        Messaging.debug("Compacted", log.getName(), "from", before, "bytes into a snapshot of", liveBytes, "bytes");
+    }
+
+    @Override
+    public void flush() {
+        if (executor.isShutdown())
+            return;
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public DataKey getKey(String path) {
+        if (path.equals("npc"))
+            return npcs;
+        if (path.startsWith("npc."))
+            return npcs.getRelative(path.substring(4));
+        return path.isEmpty() ? root : root.getRelative(path);
+    }
+
+    @Override
+    public boolean load() {
+        try {
+            return executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return replay();
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // reads every complete record of a file and returns the offset after the last one
+    private long read(File file) throws IOException {
+        long size = file.length();
+        if (size == 0)
+            return 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("unrecognised format");
+            long offset = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                int length = in.readInt();
+                int id = in.readInt();
+                long recordVersion = in.readLong();
+                int checksum = in.readInt();
+                if (length < 0 || offset + RECORD_HEADER_SIZE + length > size)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                apply(id, recordVersion, payload);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            return offset;
+        } catch (EOFException e) {
+            throw new IOException("truncated header");
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean replay() {
+        closeChannel();
+        live.clear();
+        versions.clear();
+        liveBytes = 0;
+        version = 0;
+        try {
+            if (snapshot.exists()) {
+                read(snapshot);
+            }
+            long valid = log.exists() ? read(log) : 0;
+            channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (valid == 0) {
+                channel.truncate(0);
+                writeFully(channel, fileHeader());
+            } else if (channel.size() > valid) {
+                Messaging.severe("Discarding", channel.size() - valid, "bytes of incomplete records at the end of",
+                        log.getName());
+                channel.truncate(valid);
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            Messaging.severe("Unable to load", log.getName() + ":", e.getMessage());
+            return false;
+        }
+        NPCsKey keys = new NPCsKey();
+        MemoryDataKey header = new MemoryDataKey();
+        for (int id : live.keys()) {
+            if (id != HEADER_ID) {
+                // payload arrays are replaced rather than modified, so the keys can share them
+                keys.children.put(id, new LazyDataKey(id, ByteBuffer.wrap(live.get(id))));
+                continue;
+            }
+            try {
+                DataKeyCodec.copyInto(DataKeyCodec.decode(live.get(id)), header);
+            } catch (IOException e) {
+                Messaging.severe("Unable to decode the header of", log.getName() + ":", e.getMessage());
+            }
+        }
+        npcs = keys;
+        root = header;
+        return true;
+    }
+
+    /**
+     * Only waits for queued records, since NPCs are written through {@link #write(Map, int[], Map, long)}.
+     */
+    @Override
+    public void save() {
+        flush();
+    }
+
+    /**
+     * Does nothing: the journal already knows every record on disk after {@link #load()}.
+     */
+    @Override
+    public void seed(DataKey npcs) {
+    }
+
+    @Override
+    public void shutdown() {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Future<?> write(final Map<Integer, Map<String, Object>> changed, final int[] removed,
+            final Map<String, Object> header, final long mainThreadNanos) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (channel == null)
+                    return;
+                long start = System.nanoTime();
+                TIntObjectHashMap<byte[]> appended = new TIntObjectHashMap<byte[]>();
+                try {
+                    for (int id : removed) {
+                        if (live.containsKey(id)) {
+                            appended.put(id, EMPTY);
+                        }
+                    }
+                    for (Map.Entry<Integer, Map<String, Object>> entry : changed.entrySet()) {
+                        appended.put(entry.getKey(), DataKeyCodec.encode(entry.getValue()));
+                    }
+                    appended.put(HEADER_ID, header.isEmpty() ? EMPTY : DataKeyCodec.encode(header));
+                } catch (IOException e) {
+                    Messaging.severe("Unable to encode NPCs for", log.getName() + ":", e.getMessage());
+                    return;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                TIntList ids = new TIntArrayList();
+                for (int id : appended.keys()) {
+                    byte[] payload = appended.get(id);
+                    byte[] current = live.get(id);
+                    // unchanged NPCs are skipped so that periodic full saves don't grow the log
+                    if (current == null ? payload.length == 0 : Arrays.equals(current, payload))
+                        continue;
+                    ByteBuffer record = record(id, version + ids.size() + 1, payload);
+                    bytes.write(record.array(), 0, record.limit());
+                    ids.add(id);
+                }
+                try {
+                    if (!ids.isEmpty()) {
+                        writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+                        policy.force(channel);
+                        for (int i = 0; i < ids.size(); i++) {
+                            apply(ids.get(i), version + 1, appended.get(ids.get(i)));
+                        }
+                    }
+                    compact();
+                } catch (IOException e) {
+                    Messaging.severe("Unable to append to", log.getName() + ":", e.getMessage());
+                    return;
+                }
+                long mainThreadMillis = TimeUnit.NANOSECONDS.toMillis(mainThreadNanos);
+                Messaging.logTr(Messages.SAVE_METRICS, ids.size(), bytes.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + mainThreadMillis,
+                        mainThreadMillis);
+            }
+        });
+    }
+
+    private static ByteBuffer fileHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer record(int id, long recordVersion, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putInt(id).putLong(recordVersion).putInt((int) crc.getValue()).put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_ID = -1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAGIC = 0x434A524E;
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 20;
+}
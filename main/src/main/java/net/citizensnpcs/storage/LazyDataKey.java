@@ -0,0 +1,134 @@
+package net.citizensnpcs.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+import net.citizensnpcs.api.util.Messaging;
+
+/**
+ * A single NPC, decoded from its payload on first access.
+ */
+class LazyDataKey extends DataKey {
+    private DataKey delegate;
+    private final int id;
+    private ByteBuffer payload;
+
+    LazyDataKey(int id, ByteBuffer payload) {
+        super("npc." + id);
+        this.id = id;
+        this.payload = payload;
+    }
+
+    private DataKey getDelegate() {
+        if (delegate == null) {
+            MemoryDataKey decoded = new MemoryDataKey();
+            if (payload != null) {
+                try {
+                    DataKeyCodec.copyInto(DataKeyCodec.decode(payload), decoded);
+                } catch (IOException e) {
+                    Messaging.severe("Unable to decode NPC", id + ":", e.getMessage());
+                }
+                payload = null;
+            }
+            delegate = decoded;
+        }
+        return delegate;
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        return getDelegate().getBoolean(key);
+    }
+
+    @Override
+    public double getDouble(String key) {
+        return getDelegate().getDouble(key);
+    }
+
+    @Override
+    public int getInt(String key) {
+        return getDelegate().getInt(key);
+    }
+
+    @Override
+    public long getLong(String key) {
+        return getDelegate().getLong(key);
+    }
+
+    @Override
+    public Object getRaw(String key) {
+        return getDelegate().getRaw(key);
+    }
+
+    @Override
+    public DataKey getRelative(String relative) {
+        return getDelegate().getRelative(relative);
+    }
+
+    @Override
+    public String getString(String key) {
+        return getDelegate().getString(key);
+    }
+
+    @Override
+    public Iterable<DataKey> getSubKeys() {
+        return getDelegate().getSubKeys();
+    }
+
+    @Override
+    public Map<String, Object> getValuesDeep() {
+        return getDelegate().getValuesDeep();
+    }
+
+    boolean isEmpty() {
+        return payload == null && !getDelegate().getSubKeys().iterator().hasNext();
+    }
+
+    @Override
+    public boolean keyExists(String key) {
+        return getDelegate().keyExists(key);
+    }
+
+    @Override
+    public String name() {
+        return Integer.toString(id);
+    }
+
+    @Override
+    public void removeKey(String key) {
+        getDelegate().removeKey(key);
+    }
+
+    @Override
+    public void setBoolean(String key, boolean value) {
+        getDelegate().setBoolean(key, value);
+    }
+
+    @Override
+    public void setDouble(String key, double value) {
+        getDelegate().setDouble(key, value);
+    }
+
+    @Override
+    public void setInt(String key, int value) {
+        getDelegate().setInt(key, value);
+    }
+
+    @Override
+    public void setLong(String key, long value) {
+        getDelegate().setLong(key, value);
+    }
+
+    @Override
+    public void setRaw(String key, Object value) {
+        getDelegate().setRaw(key, value);
+    }
+
+    @Override
+    public void setString(String key, String value) {
+        getDelegate().setString(key, value);
+    }
+}
@@ -0,0 +1,169 @@
+package net.citizensnpcs.storage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.citizensnpcs.api.util.DataKey;
+
+/**
+ * The "npc" key, with one lazily decoded child per id in the index.
+ */
+class NPCsKey extends DataKey {
+    final TIntObjectHashMap<LazyDataKey> children = new TIntObjectHashMap<LazyDataKey>();
+
+    NPCsKey() {
+        super("npc");
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        return resolve(key).getBoolean("");
+    }
+
+    private LazyDataKey getChild(String name) {
+        int id;
+        try {
+            id = Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("NPC keys must be integers: " + name);
+        }
+        LazyDataKey child = children.get(id);
+        if (child == null) {
+            children.put(id, child = new LazyDataKey(id, null));
+        }
+        return child;
+    }
+
+    @Override
+    public double getDouble(String key) {
+        return resolve(key).getDouble("");
+    }
+
+    @Override
+    public int getInt(String key) {
+        return resolve(key).getInt("");
+    }
+
+    @Override
+    public long getLong(String key) {
+        return resolve(key).getLong("");
+    }
+
+    @Override
+    public Object getRaw(String key) {
+        return key.isEmpty() ? getValuesDeep() : resolve(key).getRaw("");
+    }
+
+    @Override
+    public DataKey getRelative(String relative) {
+        return resolve(relative);
+    }
+
+    @Override
+    public String getString(String key) {
+        return resolve(key).getString("");
+    }
+
+    @Override
+    public Iterable<DataKey> getSubKeys() {
+        int[] ids = children.keys();
+        Arrays.sort(ids);
+        List<DataKey> keys = Lists.newArrayListWithCapacity(ids.length);
+        for (int id : ids) {
+            LazyDataKey child = children.get(id);
+            if (!child.isEmpty()) {
+                keys.add(child);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public Map<String, Object> getValuesDeep() {
+        Map<String, Object> values = Maps.newLinkedHashMap();
+        for (DataKey key : getSubKeys()) {
+            values.put(key.name(), key.getValuesDeep());
+        }
+        return values;
+    }
+
+    @Override
+    public boolean keyExists(String key) {
+        if (key.isEmpty())
+            return true;
+        int dot = key.indexOf('.');
+        LazyDataKey child;
+        try {
+            child = children.get(Integer.parseInt(dot == -1 ? key : key.substring(0, dot)));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return child != null && (dot == -1 ? !child.isEmpty() : child.keyExists(key.substring(dot + 1)));
+    }
+
+    @Override
+    public String name() {
+        return "npc";
+    }
+
+    @Override
+    public void removeKey(String key) {
+        int dot = key.indexOf('.');
+        if (dot == -1) {
+            try {
+                children.remove(Integer.parseInt(key));
+            } catch (NumberFormatException e) {
+            }
+            return;
+        }
+        getChild(key.substring(0, dot)).removeKey(key.substring(dot + 1));
+    }
+
+    private DataKey resolve(String key) {
+        int dot = key.indexOf('.');
+        if (dot == -1)
+            return getChild(key);
+        return getChild(key.substring(0, dot)).getRelative(key.substring(dot + 1));
+    }
+
+    @Override
+    public void setBoolean(String key, boolean value) {
+        resolve(key).setBoolean("", value);
+    }
+
+    @Override
+    public void setDouble(String key, double value) {
+        resolve(key).setDouble("", value);
+    }
+
+    @Override
+    public void setInt(String key, int value) {
+        resolve(key).setInt("", value);
+    }
+
+    @Override
+    public void setLong(String key, long value) {
+        resolve(key).setLong("", value);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void setRaw(String key, Object value) {
+        if (key.indexOf('.') == -1 && value instanceof Map) {
+            removeKey(key);
+            DataKeyCodec.copyInto((Map<String, Object>) value, getChild(key));
+            return;
+        }
+        resolve(key).setRaw("", value);
+    }
+
+    @Override
+    public void setString(String key, String value) {
+        resolve(key).setString("", value);
+    }
+}
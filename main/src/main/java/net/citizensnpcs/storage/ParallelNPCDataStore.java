@@ -0,0 +1,178 @@
+package net.citizensnpcs.storage;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.entity.EntityType;
+
+import com.google.common.collect.Lists;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.npc.NPCDataStore;
+import net.citizensnpcs.api.npc.NPCRegistry;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.api.util.Storage;
+import net.citizensnpcs.util.Messages;
+import net.citizensnpcs.util.Util;
+
+/**
+ * Loads NPCs in two phases. Worker threads decode each NPC's key and parse its name, type and UUID into an
+ * {@link NPCRecord}; the main thread then creates and loads the NPCs in id order, so traits load exactly as before.
+ * Every other operation is delegated.
+ *
+ * <p>
+ * Only worthwhile for storages that decode lazily, such as the binary and journal formats; YAML is fully parsed before
+ * loading starts, so it is off unless storage.parallel-load.threads is set above 1.
+ * </p>
+ */
+public class ParallelNPCDataStore implements NPCDataStore {
+    private final NPCDataStore delegate;
+    private ExecutorService pool;
+    private final Storage storage;
+    private final int threads;
+
+    public ParallelNPCDataStore(Storage storage, NPCDataStore delegate, int threads) {
+        this.storage = storage;
+        this.delegate = delegate;
+        this.threads = threads;
+    }
+
+    @Override
+    public void clearData(NPC npc) {
+        delegate.clearData(npc);
+    }
+
+    @Override
+    public int createUniqueNPCId(NPCRegistry registry) {
+        return delegate.createUniqueNPCId(registry);
+    }
+
+    // reused across reloads; idle workers exit on their own rather than being restarted for every load
+    private ExecutorService getPool() {
+        if (pool == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Citizens NPC loader");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            pool = executor;
+        }
+        return pool;
+    }
+
+    @Override
+    public void loadInto(NPCRegistry registry) {
+        List<DataKey> keys = Lists.newArrayList(storage.getKey("npc").getIntegerSubKeys());
+        List<Future<List<NPCRecord>>> batches = Lists.newArrayList();
+        ExecutorService pool = getPool();
+        try {
+            for (int start = 0; start < keys.size(); start += BATCH_SIZE) {
+                final List<DataKey> batch = keys.subList(start, Math.min(keys.size(), start + BATCH_SIZE));
+                batches.add(pool.submit(new Callable<List<NPCRecord>>() {
+                    @Override
+                    public List<NPCRecord> call() {
+                        List<NPCRecord> records = Lists.newArrayListWithCapacity(batch.size());
+                        for (DataKey key : batch) {
+                            records.add(NPCRecord.parse(key));
+                        }
+                        return records;
+                    }
+                }));
+            }
+            int created = 0;
+            for (Future<List<NPCRecord>> batch : batches) {
+                for (NPCRecord record : batch.get()) {
+                    if (record.name == null) {
+                        Messaging.logTr(Messages.LOAD_NAME_NOT_FOUND, record.id);
+                        continue;
+                    }
+                    if (record.type == null) {
+                        Messaging.logTr(Messages.LOAD_UNKNOWN_NPC_TYPE, record.unparsedType);
+                        continue;
+                    }
+                    NPC npc = registry.createNPC(record.type, record.uuid, record.id, record.name);
+                    npc.load(record.key);
+                    created++;
+                }
+            }
+            Messaging.logTr(Messages.NUM_LOADED_NOTIFICATION, created);
+        } catch (Exception e) {
+            Messaging.severe("Unable to load NPCs:", e.getMessage());
+            e.printStackTrace();
+        } finally {
+            for (Future<List<NPCRecord>> batch : batches) {
+                batch.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void reloadFromSource() {
+        delegate.reloadFromSource();
+    }
+
+    @Override
+    public void saveToDisk() {
+        delegate.saveToDisk();
+    }
+
+    @Override
+    public void saveToDiskImmediate() {
+        delegate.saveToDiskImmediate();
+    }
+
+    @Override
+    public void store(NPC npc) {
+        delegate.store(npc);
+    }
+
+    @Override
+    public void storeAll(NPCRegistry registry) {
+        delegate.storeAll(registry);
+    }
+
+    /**
+     * The parsed identity of a stored NPC. The key has already been decoded, so the main thread only loads traits.
+     */
+    private static class NPCRecord {
+        private final int id;
+        private final DataKey key;
+        private final String name;
+        private final EntityType type;
+        private final String unparsedType;
+        private final UUID uuid;
+
+        private NPCRecord(int id, DataKey key, String name, String unparsedType, EntityType type, UUID uuid) {
+            this.id = id;
+            this.key = key;
+            this.name = name;
+            this.unparsedType = unparsedType;
+            this.type = type;
+            this.uuid = uuid;
+        }
+
+        private static NPCRecord parse(DataKey key) {
+            int id = Integer.parseInt(key.name());
+            String name = key.keyExists("name") ? key.getString("name") : null;
+            String unparsedType = key.keyExists("traits.type") ? key.getString("traits.type") : "PLAYER";
+            String uuid = key.keyExists("uuid") ? key.getString("uuid") : "";
+            return new NPCRecord(id, key, name, unparsedType, Util.matchEntityType(unparsedType),
+                    uuid.isEmpty() ? UUID.randomUUID() : UUID.fromString(uuid));
+        }
+    }
+
+    private static final int BATCH_SIZE = 64;
+}
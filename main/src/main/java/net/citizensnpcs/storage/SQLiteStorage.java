@@ -0,0 +1,256 @@
+package net.citizensnpcs.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.MemoryDataKey;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.api.util.Storage;
+import net.citizensnpcs.util.Messages;
+
+/**
+ * Stores NPCs in an embedded SQLite database file, one row per NPC. Each row holds the {@link DataKeyCodec} payload of
+ * the NPC plus indexed columns for its UUID, owner and type, so NPCs can be looked up without decoding
+ * them. Rows are decoded lazily through {@link #getKey(String)}, and writes run in batched transactions on a single
+ * background thread that also owns the connection.
+ */
+public class SQLiteStorage implements Storage, SaveWriter {
+    private Connection connection;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Citizens database writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final File file;
+    private NPCsKey npcs = new NPCsKey();
+    private MemoryDataKey root = new MemoryDataKey();
+
+    public SQLiteStorage(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the database and creates the schema if needed.
+     *
+     * @return whether the database could be opened
+     */
+    public boolean connect() {
+        try {
+            return executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (connection != null)
+                        return true;
+                    Class.forName("org.sqlite.JDBC");
+                    connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+                    Statement statement = connection.createStatement();
+                    try {
+                        statement.executeUpdate("CREATE TABLE IF NOT EXISTS npcs (id INTEGER PRIMARY KEY, uuid TEXT, "
+                                + "owner TEXT, type TEXT, data BLOB NOT NULL)");
+                        statement
+                                .executeUpdate("CREATE TABLE IF NOT EXISTS header (id INTEGER PRIMARY KEY, data BLOB)");
+                        statement.executeUpdate("CREATE INDEX IF NOT EXISTS npcs_uuid ON npcs (uuid)");
+                        statement.executeUpdate("CREATE INDEX IF NOT EXISTS npcs_owner ON npcs (owner)");
+                        statement.executeUpdate("CREATE INDEX IF NOT EXISTS npcs_type ON npcs (type)");
+                    } finally {
+                        statement.close();
+                    }
+                    return true;
+                }
+            }).get();
+        } catch (Exception e) {
+            Messaging.severe("Unable to open", file.getName() + ":", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (executor.isShutdown())
+            return;
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public DataKey getKey(String path) {
+        if (path.equals("npc"))
+            return npcs;
+        if (path.startsWith("npc."))
+            return npcs.getRelative(path.substring(4));
+        return path.isEmpty() ? root : root.getRelative(path);
+    }
+
+    @Override
+    public boolean load() {
+        if (!connect())
+            return false;
+        final NPCsKey keys = new NPCsKey();
+        final MemoryDataKey header = new MemoryDataKey();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws SQLException, IOException {
+                    Statement statement = connection.createStatement();
+                    try {
+                        ResultSet results = statement.executeQuery("SELECT id, data FROM npcs");
+                        while (results.next()) {
+                            int id = results.getInt(1);
+                            keys.children.put(id, new LazyDataKey(id, ByteBuffer.wrap(results.getBytes(2))));
+                        }
+                        results.close();
+                        results = statement.executeQuery("SELECT data FROM header WHERE id = 0");
+                        if (results.next()) {
+                            DataKeyCodec.copyInto(DataKeyCodec.decode(results.getBytes(1)), header);
+                        }
+                        results.close();
+                    } finally {
+                        statement.close();
+                    }
+                    return null;
+                }
+            }).get();
+        } catch (Exception e) {
+            Messaging.severe("Unable to load", file.getName() + ":", e.getMessage());
+            return false;
+        }
+        npcs = keys;
+        root = header;
+        return true;
+    }
+
+    /**
+     * Only waits for queued writes, since NPCs are written through {@link #write(Map, int[], Map, long)}.
+     */
+    @Override
+    public void save() {
+        flush();
+    }
+
+    /**
+     * Does nothing: the database already holds every NPC.
+     */
+    @Override
+    public void seed(DataKey key) {
+    }
+
+    @Override
+    public void shutdown() {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (connection == null)
+                    return;
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    Messaging.severe("Unable to close", file.getName() + ":", e.getMessage());
+                }
+                connection = null;
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Future<?> write(final Map<Integer, Map<String, Object>> changed, final int[] removed,
+            final Map<String, Object> header, final long mainThreadNanos) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (connection == null)
+                    return;
+                long start = System.nanoTime();
+                long bytes = 0;
+                try {
+                    connection.setAutoCommit(false);
+                    PreparedStatement delete = connection.prepareStatement("DELETE FROM npcs WHERE id = ?");
+                    PreparedStatement upsert = connection.prepareStatement("INSERT OR REPLACE INTO npcs "
+                            + "(id, uuid, owner, type, data) VALUES (?, ?, ?, ?, ?)");
+                    PreparedStatement headerUpsert = connection
+                            .prepareStatement("INSERT OR REPLACE INTO header (id, data) VALUES (0, ?)");
+                    try {
+                        for (int id : removed) {
+                            delete.setInt(1, id);
+                            delete.addBatch();
+                        }
+                        delete.executeBatch();
+                        int batched = 0;
+                        for (Map.Entry<Integer, Map<String, Object>> entry : changed.entrySet()) {
+                            MemoryDataKey key = new MemoryDataKey();
+                            DataKeyCodec.copyInto(entry.getValue(), key);
+                            byte[] data = DataKeyCodec.encode(entry.getValue());
+                            bytes += data.length;
+                            upsert.setInt(1, entry.getKey());
+                            upsert.setString(2, getString(key, "uuid"));
+                            upsert.setString(3, getString(key, key.keyExists("traits.owner.uuid") ? "traits.owner.uuid"
+                                    : "traits.owner.owner"));
+                            upsert.setString(4, getString(key, "traits.type"));
+                            upsert.setBytes(5, data);
+                            upsert.addBatch();
+                            if (++batched % BATCH_SIZE == 0) {
+                                upsert.executeBatch();
+                                connection.commit();
+                            }
+                        }
+                        upsert.executeBatch();
+                        headerUpsert.setBytes(1, DataKeyCodec.encode(header));
+                        headerUpsert.executeUpdate();
+                        connection.commit();
+                    } finally {
+                        delete.close();
+                        upsert.close();
+                        headerUpsert.close();
+                    }
+                } catch (Exception e) {
+                    Messaging.severe("Unable to write saves to", file.getName() + ":", e.getMessage());
+                    try {
+                        connection.rollback();
+                    } catch (SQLException rollback) {
+                    }
+                    return;
+                }
+                long mainThreadMillis = TimeUnit.NANOSECONDS.toMillis(mainThreadNanos);
+                Messaging.logTr(Messages.SAVE_METRICS, changed.size(), bytes,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + mainThreadMillis,
+                        mainThreadMillis);
+            }
+        });
+    }
+
+    private static String getString(DataKey key, String path) {
+        return key.keyExists(path) ? String.valueOf(key.getRaw(path)) : null;
+    }
+
+    private static final int BATCH_SIZE = 500;
+}
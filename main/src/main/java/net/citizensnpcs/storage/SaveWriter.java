@@ -0,0 +1,41 @@
+package net.citizensnpcs.storage;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.citizensnpcs.api.util.DataKey;
+
+/**
+ * Persists serialised NPCs off the main thread. Only NPCs that changed since the last write are handed over.
+ */
+public interface SaveWriter {
+    /**
+     * Blocks until every queued write has finished.
+     */
+    public void flush();
+
+    /**
+     * Replaces the writer's view of the saves with the NPCs already on disk, stored under their ids.
+     */
+    public void seed(DataKey npcs);
+
+    /**
+     * Stops the writer after every queued write has finished.
+     */
+    public void shutdown();
+
+    /**
+     * Queues a write of the saves.
+     *
+     * @param changed
+     *            The serialised NPCs that changed since the last write, keyed by id
+     * @param removed
+     *            The ids of NPCs to drop from the saves
+     * @param header
+     *            The top-level values other than the NPCs themselves
+     * @param mainThreadNanos
+     *            The time the main thread spent serialising, for the save metric
+     */
+    public Future<?> write(Map<Integer, Map<String, Object>> changed, int[] removed, Map<String, Object> header,
+            long mainThreadNanos);
+}
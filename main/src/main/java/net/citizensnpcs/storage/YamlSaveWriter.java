@@ -0,0 +1,154 @@
+package net.citizensnpcs.storage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.configuration.file.YamlConstructor;
+import org.bukkit.configuration.file.YamlRepresenter;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.api.util.Messaging;
+import net.citizensnpcs.util.Messages;
+
+/**
+ * Builds a YAML saves file on a background thread. Each NPC is encoded separately when it changes and the encoded
+ * fragments are concatenated on write, so a save only costs the main thread the serialisation of changed NPCs. The
+ * file itself is written through an {@link AtomicFileWriter}.
+ */
+public class YamlSaveWriter implements SaveWriter {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Citizens save writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final File file;
+    private final TIntObjectHashMap<String> fragments = new TIntObjectHashMap<String>();
+    private final AtomicFileWriter writer;
+    private Map<String, Object> writtenHeader;
+    private Yaml yaml;
+
+    public YamlSaveWriter(File file, AtomicFileWriter writer) {
+        this.file = file;
+        this.writer = writer;
+    }
+
+    private String build(Map<String, Object> header) {
+        StringBuilder out = new StringBuilder();
+        if (!header.isEmpty()) {
+            out.append(getYaml().dump(header));
+        }
+        int[] ids = fragments.keys();
+        if (ids.length == 0)
+            return out.toString();
+        Arrays.sort(ids);
+        out.append("npc:\n");
+        for (int id : ids) {
+            out.append(fragments.get(id));
+        }
+        return out.toString();
+    }
+
+    private String encode(int id, Object data) {
+        String dumped = getYaml().dump(Collections.singletonMap(String.valueOf(id), data));
+        StringBuilder out = new StringBuilder(dumped.length() + 64);
+        for (String line : dumped.split("\n")) {
+            out.append("  ").append(line).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void flush() {
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        writer.flush();
+    }
+
+    private Yaml getYaml() {
+        if (yaml == null) {
+            DumperOptions options = new DumperOptions();
+            options.setIndent(2);
+            options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+            YamlRepresenter representer = new YamlRepresenter();
+            representer.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+            yaml = new Yaml(new YamlConstructor(), representer, options);
+        }
+        return yaml;
+    }
+
+    @Override
+    public void seed(DataKey key) {
+        final Map<String, Object> npcs = key.getValuesDeep();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                fragments.clear();
+                for (Map.Entry<String, Object> entry : npcs.entrySet()) {
+                    try {
+                        int id = Integer.parseInt(entry.getKey());
+                        fragments.put(id, encode(id, entry.getValue()));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Future<?> write(final Map<Integer, Map<String, Object>> changed, final int[] removed,
+            final Map<String, Object> header, final long mainThreadNanos) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // nothing to rebuild, so keep periodic saves of an unchanged registry from rewriting the file
+                if (changed.isEmpty() && removed.length == 0 && header.equals(writtenHeader))
+                    return;
+                long start = System.nanoTime();
+                for (int id : removed) {
+                    fragments.remove(id);
+                }
+                for (Map.Entry<Integer, Map<String, Object>> entry : changed.entrySet()) {
+                    fragments.put(entry.getKey(), encode(entry.getKey(), entry.getValue()));
+                }
+                byte[] bytes = build(header).getBytes(StandardCharsets.UTF_8);
+                writer.submit(file, bytes);
+                writtenHeader = header;
+                long mainThreadMillis = TimeUnit.NANOSECONDS.toMillis(mainThreadNanos);
+                Messaging.logTr(Messages.SAVE_METRICS, changed.size(), bytes.length,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + mainThreadMillis,
+                        mainThreadMillis);
+            }
+        });
+    }
+}
@@ -3,10 +3,11 @@ package net.citizensnpcs.trait;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
 
+import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
 import org.bukkit.Location;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.metadata.MetadataValue;
@@ -20,6 +21,8 @@ import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.trait.TraitName;
 import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.npc.NPCSnapshot;
+import net.citizensnpcs.npc.NPCSnapshot.PlayerSnapshot;
 import net.citizensnpcs.util.NMS;
 import net.citizensnpcs.util.Util;
 
@@ -28,12 +31,14 @@ import net.citizensnpcs.util.Util;
  *
  */
 @TraitName("lookclose")
-public class LookClose extends Trait implements Toggleable, CommandConfigurable {
+public class LookClose extends Trait implements Toggleable, CommandConfigurable, ParallelTrait {
     @Persist("enabled")
     private boolean enabled = Setting.DEFAULT_LOOK_CLOSE.asBoolean();
     @Persist
     private boolean enableRandomLook = Setting.DEFAULT_RANDOM_LOOK_CLOSE.asBoolean();
+    private boolean computed;
     private Player lookingAt;
+    private UUID nearest;
     @Persist
     private int randomLookDelay = Setting.DEFAULT_RANDOM_LOOK_DELAY.asInt();
     @Persist
@@ -59,6 +64,13 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
                 : lookingAt != null && lookingAt.isValid();
     }
 
+    @Override
+    public void compute(NPCSnapshot snapshot) {
+        PlayerSnapshot player = enabled ? snapshot.getNearestPlayer(range) : null;
+        nearest = player == null ? null : player.getUniqueId();
+        computed = true;
+    }
+
     @Override
     public void configure(CommandContext args) {
         range = args.getFlagDouble("range", args.getFlagDouble("r", range));
@@ -70,14 +82,11 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
      */
     public void findNewTarget() {
         List<Player> nearby = new ArrayList<>();
-        for (Entity entity : npc.getEntity().getNearbyEntities(range, range, range)) {
-            if (!(entity instanceof Player))
-                continue;
-
-            Player player = (Player) entity;
-            if (CitizensAPI.getNPCRegistry().getNPC(entity) != null || player.getGameMode() == GameMode.SPECTATOR
-                    || entity.getLocation(CACHE_LOCATION).getWorld() != NPC_LOCATION.getWorld()
-                    || player.hasPotionEffect(PotionEffectType.INVISIBILITY) || isPluginVanished((Player) entity))
+        for (Player player : npc.getEntity().getWorld().getPlayers()) {
+            if (CitizensAPI.getNPCRegistry().getNPC(player) != null || player.getGameMode() == GameMode.SPECTATOR
+                    || player.getLocation(CACHE_LOCATION).getWorld() != NPC_LOCATION.getWorld()
+                    || CACHE_LOCATION.distanceSquared(NPC_LOCATION) > range * range
+                    || player.hasPotionEffect(PotionEffectType.INVISIBILITY) || isPluginVanished(player))
                 continue;
             nearby.add(player);
         }
@@ -155,8 +164,13 @@ public class LookClose extends Trait implements Toggleable, CommandConfigurable
         }
         npc.getEntity().getLocation(NPC_LOCATION);
         if (hasInvalidTarget()) {
-            findNewTarget();
+            if (computed) {
+                lookingAt = nearest == null ? null : Bukkit.getPlayer(nearest);
+            } else {
+                findNewTarget();
+            }
         }
+        computed = false;
         if (npc.getNavigator().isNavigating()) {
             npc.getNavigator().setPaused(lookingAt != null);
         } else if (lookingAt == null && enableRandomLook && t <= 0) {
@@ -0,0 +1,12 @@
+package net.citizensnpcs.trait;
+
+import net.citizensnpcs.npc.NPCSnapshot;
+
+/**
+ * Marks a trait as splitting its tick into two phases. {@link #compute(NPCSnapshot)} is called off the main thread at
+ * the start of every tick, in parallel with other NPCs, and must only read the snapshot and write the trait's own
+ * fields. The trait's {@link Runnable#run()} is then called on the main thread as usual and applies the result.
+ */
+public interface ParallelTrait {
+    public void compute(NPCSnapshot snapshot);
+}
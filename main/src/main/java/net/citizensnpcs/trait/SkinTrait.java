@@ -1,12 +1,15 @@
 package net.citizensnpcs.trait;
 
 import com.google.common.base.Preconditions;
+import com.mojang.authlib.properties.Property;
 
 import net.citizensnpcs.Settings.Setting;
 import net.citizensnpcs.api.npc.NPC;
 import net.citizensnpcs.api.persistence.Persist;
 import net.citizensnpcs.api.trait.Trait;
 import net.citizensnpcs.api.trait.TraitName;
+import net.citizensnpcs.api.util.DataKey;
+import net.citizensnpcs.npc.skin.SkinTextureStore;
 import net.citizensnpcs.npc.skin.SkinnableEntity;
 
 @TraitName("skintrait")
@@ -18,6 +21,8 @@ public class SkinTrait extends Trait {
     @Persist
     private String skinName;
     @Persist
+    private String textureId;
+    @Persist
     private String textureRaw;
     @Persist
     private boolean updateSkins = Setting.NPC_SKIN_USE_LATEST.asBoolean();
@@ -30,6 +35,7 @@ public class SkinTrait extends Trait {
      * Clears skin texture and name.
      */
     public void clearTexture() {
+        textureId = null;
         textureRaw = null;
         signature = null;
         skinName = null;
@@ -46,7 +52,8 @@ public class SkinTrait extends Trait {
      * @return The texture signature, or null
      */
     public String getSignature() {
-        return signature;
+        Property texture = textureId == null ? null : SkinTextureStore.get(textureId);
+        return texture == null ? signature : texture.getSignature();
     }
 
     /**
@@ -60,7 +67,20 @@ public class SkinTrait extends Trait {
      * @return The encoded texture data, or null
      */
     public String getTexture() {
-        return textureRaw;
+        Property texture = textureId == null ? null : SkinTextureStore.get(textureId);
+        return texture == null ? textureRaw : texture.getValue();
+    }
+
+    /**
+     * @return The id of the texture in the {@link SkinTextureStore}, or null
+     */
+    public String getTextureId() {
+        return textureId;
+    }
+
+    @Override
+    public void load(DataKey key) {
+        storeTexture();
     }
 
     @SuppressWarnings("deprecation")
@@ -87,6 +107,7 @@ public class SkinTrait extends Trait {
             npc.data().remove(NPC.PLAYER_SKIN_USE_LATEST);
         }
         if (update) {
+            storeTexture();
             onSkinChange(false);
         }
     }
@@ -157,16 +178,20 @@ public class SkinTrait extends Trait {
         Preconditions.checkNotNull(data);
 
         this.skinName = skinName.toLowerCase();
+        // a texture set directly can't be fetched again, so the save keeps its own copy in case the store loses it
         this.signature = signature;
         this.textureRaw = data;
         this.updateSkins = false;
+        storeTexture();
         npc.data().setPersistent("cached-skin-uuid-name", skinName.toLowerCase());
         onSkinChange(false);
     }
 
     public void setTexture(String value, String signature) {
-        this.textureRaw = value;
-        this.signature = signature;
+        this.textureId = SkinTextureStore.put(value, signature, false);
+        this.textureRaw = null;
+        this.signature = null;
+        SkinTextureStore.retain(textureId);
     }
 
     /**
@@ -175,4 +200,18 @@ public class SkinTrait extends Trait {
     public boolean shouldUpdateSkins() {
         return updateSkins;
     }
+
+    // moves the raw texture into the shared store, keeping it in the save only if it can't be fetched again by name
+    private void storeTexture() {
+        if (textureRaw != null) {
+            textureId = SkinTextureStore.put(textureRaw, signature, !updateSkins);
+            if (updateSkins) {
+                textureRaw = null;
+                signature = null;
+            }
+        }
+        if (textureId != null) {
+            SkinTextureStore.retain(textureId);
+        }
+    }
 }
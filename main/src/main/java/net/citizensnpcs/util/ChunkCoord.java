@@ -53,10 +53,4 @@ public class ChunkCoord {
         final int prime = 31;
         return prime * (prime * (prime + ((worldUUID == null) ? 0 : worldUUID.hashCode())) + x) + z;
     }
-
-    public void setForceLoaded(boolean b) {
-        SUPPORTS_FORCE_LOADED = false;
-    }
-
-    private static boolean SUPPORTS_FORCE_LOADED = true;
 }
\ No newline at end of file
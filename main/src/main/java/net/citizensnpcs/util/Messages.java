@@ -34,6 +34,8 @@ public class Messages {
     public static final String CAT_STOPPED_SITTING = "citizens.commands.npc.cat.sitting-stop";
     public static final String CAT_TYPE_SET = "citizens.commands.npc.cat.type-set";
     public static final String CHAT_TRIGGER_PROMPT = "citizens.editors.waypoints.triggers.chat.prompt";
+    public static final String CHUNK_TICKET_STATS = "citizens.commands.citizens.chunks.stats";
+    public static final String CHUNK_TICKET_WORLD_STATS = "citizens.commands.citizens.chunks.world-stats";
     public static final String CITIZENS_IMPLEMENTATION_DISABLED = "citizens.changed-implementation";
     public static final String CITIZENS_INCOMPATIBLE = "citizens.notifications.incompatible-version";
     public static final String CITIZENS_INVALID_COMMAND_CLASS = "citizens.commands.invalid.class";
@@ -73,6 +75,7 @@ public class Messages {
     public static final String COMMANDS_SEQUENTIAL_UNSET = "citizens.commands.npc.commands.sequential-unset";
     public static final String CONTROLLABLE_REMOVED = "citizens.commands.npc.controllable.removed";
     public static final String CONTROLLABLE_SET = "citizens.commands.npc.controllable.set";
+    public static final String CONVERTED_SAVES = "citizens.saves.converted";
     public static final String COPIER_EDITOR_BEGIN = "citizens.editors.copier.begin";
     public static final String COPIER_EDITOR_END = "citizens.editors.copier.end";
     public static final String CURRENT_SCRIPTS = "citizens.commands.npc.script.current-scripts";
@@ -253,6 +256,7 @@ public class Messages {
     public static final String PASSIVE_UNSET = "citizens.commands.npc.passive.unset";
     public static final String PATHFINDER_OPEN_DOORS_DISABLED = "citizens.commands.waypoints.opendoors.disabled";
     public static final String PATHFINDER_OPEN_DOORS_ENABLED = "citizens.commands.waypoints.opendoors.enabled";
+    public static final String PATHFINDING_CACHE_STATS = "citizens.commands.citizens.pathcache.stats";
     public static final String PATHFINDING_OPTIONS_ATTACK_RANGE_SET = "citizens.commands.npc.pathopt.attack-range-set";
     public static final String PATHFINDING_OPTIONS_AVOID_WATER_SET = "citizens.commands.npc.pathopt.avoid-water-set";
     public static final String PATHFINDING_OPTIONS_AVOID_WATER_UNSET = "citizens.commands.npc.pathopt.avoid-water-unset";
@@ -280,6 +284,7 @@ public class Messages {
     public static final String RESPAWN_DELAY_SET = "citizens.commands.npc.respawn.delay-set";
     public static final String SADDLED_SET = "citizens.editors.equipment.saddled-set";
     public static final String SADDLED_STOPPED = "citizens.editors.equipment.saddled-stopped";
+    public static final String SAVE_METRICS = "citizens.saves.saved";
     public static final String SCRIPT_COMPILED = "citizens.commands.script.compiled";
     public static final String SCRIPT_COMPILING = "citizens.commands.script.compiling";
     public static final String SCRIPT_FILE_MISSING = "citizens.commands.script.file-missing";
@@ -0,0 +1,63 @@
+package net.citizensnpcs.npc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.citizensnpcs.api.npc.NPC;
+
+public class NPCSpatialIndexTest {
+    private NPCSpatialIndex index;
+    private World world;
+
+    @Test
+    public void bucketsByChunk() {
+        NPC first = createNPC(1), second = createNPC(2);
+        index.update(first, new Location(world, 1, 64, 1));
+        index.update(second, new Location(world, -1, 64, 15));
+        assertEquals(Arrays.asList(first), index.getNPCsInChunk(world, 0, 0));
+        assertEquals(Arrays.asList(second), index.getNPCsInChunk(world, -1, 0));
+    }
+
+    private NPC createNPC(int id) {
+        NPC npc = mock(NPC.class);
+        when(npc.getId()).thenReturn(id);
+        return npc;
+    }
+
+    @Test
+    public void movesAcrossChunkBoundaries() {
+        NPC npc = createNPC(1);
+        index.update(npc, new Location(world, 15, 64, 0));
+        index.update(npc, new Location(world, 14, 64, 0));
+        assertEquals(Arrays.asList(npc), index.getNPCsInChunk(world, 0, 0));
+        index.update(npc, new Location(world, 16, 64, 0));
+        assertTrue(index.getNPCsInChunk(world, 0, 0).isEmpty());
+        assertEquals(Arrays.asList(npc), index.getNPCsInChunk(world, 1, 0));
+    }
+
+    @Test
+    public void removesNPCs() {
+        NPC npc = createNPC(1);
+        index.update(npc, new Location(world, 0, 64, 0));
+        index.remove(npc);
+        index.remove(npc);
+        assertTrue(index.getNPCsInChunk(world, 0, 0).isEmpty());
+    }
+
+    @Before
+    public void setUp() {
+        index = new NPCSpatialIndex();
+        world = mock(World.class);
+        when(world.getUID()).thenReturn(UUID.randomUUID());
+    }
+}
@@ -0,0 +1,76 @@
+package net.citizensnpcs.npc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.citizensnpcs.api.npc.NPC;
+
+public class RespawnIndexTest {
+    private RespawnIndex index;
+    private final UUID world = UUID.randomUUID();
+
+    @Test
+    public void addIsIdempotent() {
+        NPC npc = mock(NPC.class);
+        assertTrue(index.add(world, 1, 2, npc));
+        assertFalse(index.add(world, 1, 2, npc));
+        assertEquals(1, index.getPendingCount(world));
+    }
+
+    @Test
+    public void keysRoundTripNegativeCoordinates() {
+        long key = RespawnIndex.getKey(-5, -1234567);
+        assertEquals(-5, RespawnIndex.getX(key));
+        assertEquals(-1234567, RespawnIndex.getZ(key));
+    }
+
+    @Test
+    public void listsChunksWithPendingNPCs() {
+        index.add(world, 0, 0, mock(NPC.class));
+        index.add(world, -3, 7, mock(NPC.class));
+        long[] chunks = index.getChunks(world);
+        Arrays.sort(chunks);
+        long[] expected = { RespawnIndex.getKey(0, 0), RespawnIndex.getKey(-3, 7) };
+        Arrays.sort(expected);
+        assertArrayEquals(expected, chunks);
+        assertEquals(0, index.getChunks(UUID.randomUUID()).length);
+    }
+
+    @Test
+    public void removeUpdatesCounts() {
+        NPC first = mock(NPC.class), second = mock(NPC.class);
+        index.add(world, 4, 4, first);
+        index.add(world, 4, 4, second);
+        assertTrue(index.remove(world, 4, 4, first));
+        assertFalse(index.remove(world, 4, 4, first));
+        assertEquals(Arrays.asList(second), index.getNPCs(world, 4, 4));
+        assertEquals(1, index.getPendingCount(world));
+        assertTrue(index.remove(world, 4, 4, second));
+        assertEquals(0, index.getPendingCount(world));
+        assertEquals(0, index.getChunks(world).length);
+    }
+
+    @Before
+    public void setUp() {
+        index = new RespawnIndex();
+    }
+
+    @Test
+    public void separatesWorlds() {
+        NPC npc = mock(NPC.class);
+        UUID other = UUID.randomUUID();
+        index.add(world, 0, 0, npc);
+        assertTrue(index.getNPCs(other, 0, 0).isEmpty());
+        assertEquals(Arrays.asList(npc), index.getNPCs(world, 0, 0));
+        assertFalse(index.remove(other, 0, 0, npc));
+    }
+}
@@ -0,0 +1,38 @@
+package net.citizensnpcs.npc.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+import org.junit.Test;
+
+public class PathRepairTest {
+    @Test
+    public void keepsPartBetweenCurrentAndDestination() {
+        List<Vector> path = Arrays.asList(new Vector(0, 64, 0), new Vector(1, 64, 0), new Vector(2, 64, 0),
+                new Vector(3, 64, 0), new Vector(4, 64, 0));
+        List<Vector> prefix = PathRepair.getPrefix(path, new Location(null, 1.5, 64, 0.5),
+                new Location(null, 3.5, 64, 2.5));
+        assertEquals(Arrays.asList(new Vector(1, 64, 0), new Vector(2, 64, 0), new Vector(3, 64, 0)), prefix);
+    }
+
+    @Test
+    public void neverRunsBackwards() {
+        List<Vector> path = Arrays.asList(new Vector(0, 64, 0), new Vector(1, 64, 0), new Vector(2, 64, 0));
+        List<Vector> prefix = PathRepair.getPrefix(path, new Location(null, 2.5, 64, 0.5),
+                new Location(null, 0.5, 64, 0.5));
+        assertEquals(Arrays.asList(new Vector(2, 64, 0)), prefix);
+    }
+
+    @Test
+    public void returnsNullWithoutPath() {
+        Location location = new Location(null, 0, 64, 0);
+        assertNull(PathRepair.getPrefix(null, location, location));
+        assertNull(PathRepair.getPrefix(Collections.<Vector> emptyList(), location, location));
+    }
+}
@@ -0,0 +1,135 @@
+package net.citizensnpcs.npc.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.mojang.authlib.Agent;
+import com.mojang.authlib.GameProfile;
+import com.mojang.authlib.GameProfileRepository;
+import com.mojang.authlib.ProfileLookupCallback;
+
+public class ProfileFetcherTest {
+    private final AtomicInteger calls = new AtomicInteger();
+    private ProfileFetcher fetcher;
+
+    @Test
+    public void cachesFoundProfiles() throws Exception {
+        create(failing("", 0), 0);
+        ProfileRequest first = fetcher.fetch("Notch", false).get(5, TimeUnit.SECONDS);
+        assertSame(first, fetcher.fetch("notch", false).get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void coalescesConcurrentRequests() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        create(new GameProfileRepository() {
+            @Override
+            public void findProfilesByNames(String[] names, Agent agent, ProfileLookupCallback callback) {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (String name : names) {
+                    callback.onProfileLookupSucceeded(new GameProfile(UUID.randomUUID(), name));
+                }
+            }
+        }, 0);
+        CompletableFuture<ProfileRequest> first = fetcher.fetch("Notch", false);
+        CompletableFuture<ProfileRequest> second = fetcher.fetch("notch", false);
+        assertSame(first, second);
+        release.countDown();
+        assertEquals(ProfileFetchResult.SUCCESS, first.get(5, TimeUnit.SECONDS).getResult());
+        assertEquals(1, calls.get());
+    }
+
+    private void create(GameProfileRepository repository, int maxRetries) {
+        fetcher = new ProfileFetcher(repository, DIRECT, new TokenBucket(1000, 600000), 2, maxRetries, 1) {
+            @Override
+            protected GameProfile fillProperties(GameProfile profile) {
+                return profile;
+            }
+        };
+    }
+
+    // fails every name with the given message the given number of times before finding it
+    private GameProfileRepository failing(final String message, final int failures) {
+        return new GameProfileRepository() {
+            @Override
+            public void findProfilesByNames(String[] names, Agent agent, ProfileLookupCallback callback) {
+                int call = calls.incrementAndGet();
+                for (String name : names) {
+                    if (call <= failures) {
+                        callback.onProfileLookupFailed(new GameProfile(null, name), new Exception(message));
+                    } else {
+                        callback.onProfileLookupSucceeded(new GameProfile(UUID.randomUUID(), name));
+                    }
+                }
+            }
+        };
+    }
+
+    @Test
+    public void forcedFetchLooksUpAgain() throws Exception {
+        create(failing("", 0), 0);
+        ProfileRequest first = fetcher.fetch("Notch", false).get(5, TimeUnit.SECONDS);
+        ProfileRequest forced = fetcher.fetch("Notch", true).get(5, TimeUnit.SECONDS);
+        assertNotSame(first, forced);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws Exception {
+        create(failing("too many requests", Integer.MAX_VALUE), 2);
+        ProfileRequest request = fetcher.fetch("Notch", false).get(5, TimeUnit.SECONDS);
+        assertEquals(ProfileFetchResult.TOO_MANY_REQUESTS, request.getResult());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void reportsNotFound() throws Exception {
+        create(failing("Server did not find the requested profile", 1), 0);
+        ProfileRequest request = fetcher.fetch("Notch", false).get(5, TimeUnit.SECONDS);
+        assertEquals(ProfileFetchResult.NOT_FOUND, request.getResult());
+        assertSame(request, fetcher.fetch("Notch", false).get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void retriesTooManyRequests() throws Exception {
+        create(failing("too many requests", 2), 5);
+        ProfileRequest request = fetcher.fetch("Notch", false).get(5, TimeUnit.SECONDS);
+        assertEquals(ProfileFetchResult.SUCCESS, request.getResult());
+        assertEquals("notch", request.getPlayerName());
+        assertNotNull(request.getProfile());
+        assertEquals(3, calls.get());
+    }
+
+    @After
+    public void tearDown() {
+        if (fetcher != null) {
+            fetcher.shutdown();
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+}
@@ -0,0 +1,44 @@
+package net.citizensnpcs.npc.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+    @Test
+    public void burstsUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(3, 1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire());
+        }
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    public void drainEmptiesBucket() {
+        TokenBucket bucket = new TokenBucket(5, 1);
+        bucket.drain();
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    public void refillsAtRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, TimeUnit.MINUTES.toMillis(1));
+        assertEquals(0, bucket.tryAcquire());
+        long wait = bucket.tryAcquire();
+        assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(1));
+        Thread.sleep(5);
+        assertEquals(0, bucket.tryAcquire());
+    }
+
+    @Test
+    public void reportsTimeUntilNextToken() {
+        TokenBucket bucket = new TokenBucket(1, 60);
+        bucket.tryAcquire();
+        long wait = bucket.tryAcquire();
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900) && wait <= TimeUnit.SECONDS.toNanos(1));
+    }
+}
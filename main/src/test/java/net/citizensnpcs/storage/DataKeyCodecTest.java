@@ -0,0 +1,45 @@
+package net.citizensnpcs.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class DataKeyCodecTest {
+    @Test
+    public void decodesFromOffset() throws IOException {
+        Map<String, Object> values = Maps.newLinkedHashMap();
+        values.put("name", "Bob");
+        byte[] encoded = DataKeyCodec.encode(values);
+        byte[] padded = new byte[encoded.length + 8];
+        System.arraycopy(encoded, 0, padded, 4, encoded.length);
+        assertEquals(values, DataKeyCodec.decode(padded, 4, encoded.length));
+        assertEquals(values, DataKeyCodec.decode(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonTree() throws IOException {
+        DataKeyCodec.decode(new byte[] { 1, 0, 0, 0, 0 });
+    }
+
+    @Test
+    public void roundTripsValueTree() throws IOException {
+        Map<String, Object> traits = Maps.newLinkedHashMap();
+        traits.put("spawned", true);
+        traits.put("speed", 1.5D);
+        traits.put("scale", 0.25F);
+        traits.put("ticks", 1234567890123L);
+        traits.put("lines", Arrays.<Object> asList("a", 2, null));
+        Map<String, Object> values = Maps.newLinkedHashMap();
+        values.put("name", "Bob \u00e9");
+        values.put("id", 7);
+        values.put("traits", traits);
+        assertEquals(values, DataKeyCodec.decode(DataKeyCodec.encode(values)));
+    }
+}
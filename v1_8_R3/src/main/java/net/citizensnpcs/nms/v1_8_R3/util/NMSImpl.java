@@ -295,6 +295,9 @@ public class NMSImpl implements NMSBridge {
         Block type = CraftMagicNumbers.getBlock(block);
         BlockPosition pos = new BlockPosition(block.getX(), block.getY(), block.getZ());
         AxisAlignedBB aabb = type.a(world, pos, world.getType(pos));
+        if (aabb == null) {
+            return new BoundingBox(pos.getX(), pos.getY(), pos.getZ(), pos.getX(), pos.getY(), pos.getZ());
+        }
         return new BoundingBox(aabb.a, aabb.b, aabb.c, aabb.d, aabb.e, aabb.f);
     }
 